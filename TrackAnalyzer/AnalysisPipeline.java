@@ -0,0 +1,248 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A chain of stages (e.g. decoding, key detection, bpm detection, writing
+ * results) connected by bounded queues. Every stage has its own number of
+ * worker threads, so I/O bound and CPU bound stages can be sized
+ * independently. If a stage falls behind, the queue in front of it fills up
+ * and the stages before it block, so only a bounded number of tracks is in
+ * memory at any time.
+ */
+public class AnalysisPipeline {
+
+	/**
+	 * a track and the intermediate results of its analysis, which are passed
+	 * on from stage to stage
+	 */
+	public static class Track {
+
+		public final String filename;
+		/**
+		 * audio opened by the decode stage, which is decoded while the
+		 * analyse stage reads it, closed as soon as it has been analysed
+		 */
+		public PcmDecoder.PcmStream pcm;
+		public KeyDetectionResult keyResult;
+		public double bpm = Double.NaN;
+		/**
+		 * see TempoEstimator.getConfidence()
+		 */
+		public double bpmConfidence = Double.NaN;
+		/**
+		 * duration of the audio in seconds, NaN if it wasn't decoded
+		 */
+		public double duration = Double.NaN;
+		/**
+		 * time spent decoding (opening the audio in the decode stage and
+		 * reading it in the analyse stage) and analysing
+		 */
+		public long decodeNanos;
+		public long analyseNanos;
+		/**
+		 * set if a stage couldn't process the track. Failed tracks skip all
+		 * further stages except for the last one, so the failure can be
+		 * logged.
+		 */
+		public boolean failed = false;
+		/**
+		 * fingerprint of the decoded audio, see ResultCache
+		 */
+		public String fingerprint;
+		/**
+		 * set if the result was taken from the ResultCache, the track isn't
+		 * decoded and analysed then
+		 */
+		public boolean cached = false;
+		/**
+		 * features taken from the FeatureCache, the track isn't decoded and
+		 * analysed from audio then. After the analysis from audio they hold
+		 * the features for the FeatureCache until the fingerprint is known.
+		 */
+		public Chromagram chromagram;
+		public FeatureCache.OnsetFunction onsetFunction;
+
+		public Track(String filename) {
+			this.filename = filename;
+		}
+
+		/**
+		 * closes the audio of the track, if it is still open
+		 */
+		public void closeAudio() {
+			if (pcm != null) {
+				pcm.close();
+				pcm = null;
+			}
+		}
+	}
+
+	/**
+	 * one stage of the pipeline
+	 */
+	public static abstract class Stage {
+
+		final String name;
+		final int workers;
+
+		/**
+		 * @param name name of the stage, used for the worker threads
+		 * @param workers number of worker threads for this stage
+		 */
+		public Stage(String name, int workers) {
+			this.name = name;
+			this.workers = Math.max(1, workers);
+		}
+
+		public abstract void process(Track t) throws Exception;
+
+		/**
+		 * called once after the last track has passed this stage, by the
+		 * last of its workers, e.g. to write out what the stage buffered
+		 */
+		public void finish() throws Exception {
+		}
+	}
+	/**
+	 * marks the end of the input, passed on to the next stage after all
+	 * workers of a stage are done
+	 */
+	private static final Track END = new Track(null);
+	private final int queueCapacity;
+	private final ArrayList<Stage> stages = new ArrayList<Stage>();
+	private final ArrayList<BlockingQueue<Track>> queues = new ArrayList<BlockingQueue<Track>>();
+	private final ArrayList<Thread> threads = new ArrayList<Thread>();
+
+	/**
+	 * @param queueCapacity max. number of tracks waiting in front of each
+	 * stage
+	 */
+	public AnalysisPipeline(int queueCapacity) {
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	public void addStage(Stage stage) {
+		stages.add(stage);
+	}
+
+	/**
+	 * starts the worker threads of all stages
+	 */
+	public void start() {
+		for (int i = 0; i < stages.size(); i++) {
+			queues.add(new ArrayBlockingQueue<Track>(queueCapacity));
+		}
+		for (int i = 0; i < stages.size(); i++) {
+			Stage stage = stages.get(i);
+			AtomicInteger running = new AtomicInteger(stage.workers);
+			for (int w = 0; w < stage.workers; w++) {
+				Thread t = new Thread(new Worker(i, running), stage.name + "-" + w);
+				threads.add(t);
+				t.start();
+			}
+		}
+	}
+
+	/**
+	 * adds a track to the pipeline, blocks while the first stage is busy
+	 */
+	public void put(Track t) throws InterruptedException {
+		queues.get(0).put(t);
+	}
+
+	/**
+	 * signals the end of the input and waits until all tracks have passed
+	 * the last stage
+	 */
+	public void finish() throws InterruptedException {
+		queues.get(0).put(END);
+		for (Thread t : threads) {
+			t.join();
+		}
+	}
+
+	private final class Worker implements Runnable {
+
+		private final Stage stage;
+		private final BlockingQueue<Track> in;
+		private final BlockingQueue<Track> out;
+		private final AtomicInteger running;
+
+		Worker(int index, AtomicInteger running) {
+			stage = stages.get(index);
+			in = queues.get(index);
+			out = index + 1 < queues.size() ? queues.get(index + 1) : null;
+			this.running = running;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Track t = in.take();
+					if (t == END) {
+						// put it back for the other workers of this stage
+						in.put(END);
+						if (running.decrementAndGet() == 0) {
+							try {
+								stage.finish();
+							} catch (Throwable ex) {
+								Logger.getLogger(AnalysisPipeline.class.getName()).log(Level.SEVERE,
+										"error at the end of stage " + stage.name, ex);
+							}
+							if (out != null) {
+								out.put(END);
+							}
+						}
+						return;
+					}
+					if (!t.failed || out == null) {
+						try {
+							stage.process(t);
+						} catch (Throwable ex) {
+							// also Errors, e.g. OutOfMemoryError while decoding a very long track: a
+							// worker which died would never pass on END, and finish() would wait forever
+							Logger.getLogger(AnalysisPipeline.class.getName()).log(Level.SEVERE,
+									"error in stage " + stage.name + " for " + t.filename, ex);
+							t.failed = true;
+							t.closeAudio();
+						}
+					}
+					if (out != null) {
+						out.put(t);
+					}
+				}
+			} catch (InterruptedException ex) {
+				Logger.getLogger(AnalysisPipeline.class.getName()).log(Level.SEVERE,
+						"stage " + stage.name + " was interrupted, tracks are missing", ex);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -27,6 +27,7 @@ package TrackAnalyzer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class AudioData {
 
@@ -84,42 +85,44 @@ public class AudioData {
         frameRate = n;
     }
 
+    /**
+     * adds newSamples samples with value 0, existing samples are kept
+     */
     public void addToSampleCount(int newSamples) {
-        //samples.ensureCapacity(sampleCount + newSamples);
-		samples = new double[sampleCount + newSamples];
-        //for (int i = 0; i < newSamples; i++) {
-        //    samples.add(0.0);
-        //}
+        if (sampleCount + newSamples > samples.length) {
+            samples = Arrays.copyOf(samples, sampleCount + newSamples);
+        }
         sampleCount += newSamples;
     }
 
+    /**
+     * mixes all channels down to one, in place
+     */
     public void reduceToMono() {
         if (channels == 1) {
             return;
         }
-        //ArrayList<Double> newStream = new ArrayList<Double>(sampleCount / channels);
-        double[] newStream = new double[sampleCount / channels];
         for (int i = 0; i < sampleCount; i += channels) {
             double mono = 0.0;
             for (int j = 0; j < channels; j++) {
                 mono += samples[i + j];
             }
             mono /= channels;
-            newStream[i/channels]=mono;
+            samples[i / channels] = mono;
         }
-        samples = newStream;
         sampleCount /= channels;
         channels = 1;
     }
 
 	/**
 	 * cuts the audio file to a shorter version of length duration, starting
-	 * at offset 60 seconds, or earlier if not possible at 60 sec. 
+	 * at offset 60 seconds, or earlier if not possible at 60 sec. The
+	 * samples are moved in place. AudioSource.excerpt does the same for
+	 * streams.
 	 * @param duration 
 	 */
 	public void cutLength(int duration) {
 		int bps = frameRate * channels;
-		double[] new_samples = new double[duration * bps];
 		int start_offset = 60;
 		// if file too short to start at start_offset, start at length of track - duration
 		start_offset = Math.min(start_offset*bps, sampleCount-duration*bps);
@@ -128,9 +131,8 @@ public class AudioData {
 		if (duration * bps > sampleCount)
 			return;
 		else {
-			System.arraycopy(samples, start_offset, new_samples, 0, duration*bps);
-			samples = new_samples;
-			sampleCount = duration * frameRate;
+			System.arraycopy(samples, start_offset, samples, 0, duration*bps);
+			sampleCount = duration * bps;
 		}
 	}
 	
@@ -164,33 +166,14 @@ public class AudioData {
 
             // Get the number of audio channels in the wav file
             channels = wavFile.getNumChannels();
-            sampleCount = (int) wavFile.getNumFrames() * channels;
-
-
-            double[] buffer = new double[sampleCount];
-
-            int framesRead;
-            double min = Double.MAX_VALUE;
-            double max = Double.MIN_VALUE;
-
-            do {
-                // Read frames into buffer
-                framesRead = wavFile.readFrames(buffer, sampleCount/channels);
-
-                // Loop through frames and look for minimum and maximum value
-                for (int s = 0; s < framesRead * channels; s++) {
-                    if (buffer[s] > max) {
-                        max = buffer[s];
-                    }
-                    if (buffer[s] < min) {
-                        min = buffer[s];
-                    }
-                }
-            } while (framesRead != 0);
-
-            //samples = Utils.doubleArrayAsList(buffer);
-			samples = buffer;
             frameRate = (int) wavFile.getSampleRate();
+            int frames = (int) wavFile.getNumFrames();
+            sampleCount = frames * channels;
+
+            // Read all frames in one go
+            samples = new double[sampleCount];
+            int framesRead = wavFile.readFrames(samples, frames);
+            sampleCount = framesRead * channels;
             // Close the wavFile
             wavFile.close();
         } catch (Exception e) {
@@ -0,0 +1,178 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+/**
+ * A mono audio stream which is read chunk by chunk, so the analysis doesn't
+ * need the whole track as a double[] in memory. Sources can be chained, e.g.
+ * decoded PCM -> downsampler -> excerpt -> spectrum analyser.
+ */
+public abstract class AudioSource {
+
+	public abstract int getFrameRate();
+
+	/**
+	 * @return the total number of frames, or -1 if it is not known in advance
+	 */
+	public abstract int getFrameCount();
+
+	/**
+	 * @return the number of frames expected, e.g. from the duration in the
+	 * header of a compressed file, which may be a little off. -1 if not known.
+	 */
+	public int getEstimatedFrameCount() {
+		return getFrameCount();
+	}
+
+	/**
+	 * reads the next frames.
+	 *
+	 * @return the number of frames read, less than length only at the end of
+	 * the stream, 0 if there's nothing left
+	 */
+	public abstract int read(double[] buffer, int offset, int length) throws Exception;
+
+	/**
+	 * skips frames, sources which can seek should override this.
+	 *
+	 * @return the number of frames skipped
+	 */
+	public int skip(int frames) throws Exception {
+		double[] scratch = new double[Math.min(frames, 8192)];
+		int skipped = 0;
+		while (skipped < frames) {
+			int n = read(scratch, 0, Math.min(scratch.length, frames - skipped));
+			if (n == 0) {
+				break;
+			}
+			skipped += n;
+		}
+		return skipped;
+	}
+
+	/**
+	 * an excerpt of length duration, starting at offset 60 seconds, or earlier
+	 * if not possible at 60 sec. Same as AudioData.cutLength, but without
+	 * reading the skipped part into memory. Needs a source with a known or
+	 * estimated frame count, otherwise the excerpt simply starts at the
+	 * beginning.
+	 *
+	 * @param duration length of the excerpt in seconds
+	 */
+	public AudioSource excerpt(int duration) {
+		final AudioSource source = this;
+		final int length = duration * getFrameRate();
+		int frameCount = getEstimatedFrameCount();
+		if (frameCount >= 0 && length > frameCount) {
+			return this;
+		}
+		// if file too short to start at start_offset, start at length of track - duration
+		final int start = frameCount < 0 ? 0 : Math.max(0, Math.min(60 * getFrameRate(), frameCount - length));
+		return new AudioSource() {
+			private int position = -start;
+
+			@Override
+			public int getFrameRate() {
+				return source.getFrameRate();
+			}
+
+			@Override
+			public int getFrameCount() {
+				// with an estimated frame count the source may end early
+				return source.getFrameCount() >= 0 ? length : -1;
+			}
+
+			@Override
+			public int getEstimatedFrameCount() {
+				return length;
+			}
+
+			@Override
+			public int read(double[] buffer, int offset, int len) throws Exception {
+				if (position < 0) {
+					position += source.skip(-position);
+					if (position < 0) {
+						return 0;
+					}
+				}
+				int n = source.read(buffer, offset, Math.min(len, length - position));
+				position += n;
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * reads until buffer holds length frames or the stream ends
+	 *
+	 * @return the number of frames read
+	 */
+	public int readFully(double[] buffer, int offset, int length) throws Exception {
+		int total = 0;
+		while (total < length) {
+			int n = read(buffer, offset + total, length - total);
+			if (n == 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * @return a source reading one channel of audio
+	 */
+	public static AudioSource fromAudioData(final AudioData audio, final int channel) {
+		return new AudioSource() {
+			private final int channels = audio.getChannels();
+			private final int frameCount = audio.getSampleCount() / channels;
+			private int position = 0;
+
+			@Override
+			public int getFrameRate() {
+				return audio.getFrameRate();
+			}
+
+			@Override
+			public int getFrameCount() {
+				return frameCount;
+			}
+
+			@Override
+			public int read(double[] buffer, int offset, int length) {
+				double[] samples = audio.getSamples();
+				int n = Math.min(length, frameCount - position);
+				for (int i = 0, j = position * channels + channel; i < n; i++, j += channels) {
+					buffer[offset + i] = samples[j];
+				}
+				position += n;
+				return n;
+			}
+
+			@Override
+			public int skip(int frames) {
+				int n = Math.min(frames, frameCount - position);
+				position += n;
+				return n;
+			}
+		};
+	}
+}
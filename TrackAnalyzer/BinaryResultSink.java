@@ -0,0 +1,269 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes results in a compact binary format which is stored by column: the
+ * results are collected in blocks of up to BLOCK_ROWS tracks, and each block
+ * stores all values of one field together, so a reader which only needs
+ * e.g. keys and bpms can skip the rest and the columns compress well.
+ *
+ * File format (big endian): MAGIC, VERSION, then blocks, each consisting of
+ * the number of tracks n and the columns
+ * filenames (n strings, written with DataOutputStream.writeUTF()),
+ * flags (n bytes: FAILED, WROTE_TAGS, CACHED),
+ * keys (n bytes, the ordinal of the key, -1 if the track failed),
+ * key confidences, tuning offsets, bpms, bpm confidences, durations, decode
+ * times, analysis times (n floats each, NaN if unknown),
+ * segment counts (n ints),
+ * then for all segments of the block (the sum of the counts) first windows,
+ * last windows (ints), keys (bytes), energies and confidences (floats).
+ *
+ * A block is written when it is full and when the sink is closed, so up to
+ * BLOCK_ROWS results are lost if the process is killed. read() returns the
+ * complete blocks.
+ */
+public class BinaryResultSink extends ResultSink {
+
+	public static final int MAGIC = 0x54414b4f; // "TAKO"
+	public static final int VERSION = 2;
+	public static final int BLOCK_ROWS = 4096;
+	public static final int FAILED = 1;
+	public static final int WROTE_TAGS = 2;
+	public static final int CACHED = 4;
+	private static final int FLOAT_COLUMNS = 7;
+	private static final Parameters.key_t[] KEYS = Parameters.key_t.values();
+	private final DataOutputStream out;
+	private final ArrayList<TrackResult> block = new ArrayList<TrackResult>(BLOCK_ROWS);
+
+	public BinaryResultSink(File file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	@Override
+	public void write(List<TrackResult> batch) throws IOException {
+		for (TrackResult r : batch) {
+			block.add(r);
+			if (block.size() == BLOCK_ROWS) {
+				writeBlock();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!block.isEmpty()) {
+				writeBlock();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		out.writeInt(block.size());
+		int segments = 0;
+		for (TrackResult r : block) {
+			out.writeUTF(r.filename);
+			segments += r.segments.length;
+		}
+		for (TrackResult r : block) {
+			out.writeByte((r.failed ? FAILED : 0) | (r.wroteTags ? WROTE_TAGS : 0) | (r.cached ? CACHED : 0));
+		}
+		for (TrackResult r : block) {
+			out.writeByte(r.key == null ? -1 : r.key.ordinal());
+		}
+		for (int column = 0; column < FLOAT_COLUMNS; column++) {
+			for (TrackResult r : block) {
+				out.writeFloat(getFloat(r, column));
+			}
+		}
+		for (TrackResult r : block) {
+			out.writeInt(r.segments.length);
+		}
+		KeyDetectionSegment[] all = new KeyDetectionSegment[segments];
+		int i = 0;
+		for (TrackResult r : block) {
+			System.arraycopy(r.segments, 0, all, i, r.segments.length);
+			i += r.segments.length;
+		}
+		for (KeyDetectionSegment s : all) {
+			out.writeInt(s.firstWindow);
+		}
+		for (KeyDetectionSegment s : all) {
+			out.writeInt(s.lastWindow);
+		}
+		for (KeyDetectionSegment s : all) {
+			out.writeByte(s.key.ordinal());
+		}
+		for (KeyDetectionSegment s : all) {
+			out.writeFloat(s.energy);
+		}
+		for (KeyDetectionSegment s : all) {
+			out.writeFloat(s.confidence);
+		}
+		out.flush();
+		block.clear();
+	}
+
+	private static float getFloat(TrackResult r, int column) {
+		switch (column) {
+			case 0:
+				return r.keyConfidence;
+			case 1:
+				return r.tuningOffset;
+			case 2:
+				return (float) r.bpm;
+			case 3:
+				return r.bpmConfidence;
+			case 4:
+				return r.duration;
+			case 5:
+				return r.decodeMillis;
+			default:
+				return r.analyseMillis;
+		}
+	}
+
+	private static void setFloat(TrackResult r, int column, float value) {
+		switch (column) {
+			case 0:
+				r.keyConfidence = value;
+				break;
+			case 1:
+				r.tuningOffset = value;
+				break;
+			case 2:
+				r.bpm = value;
+				break;
+			case 3:
+				r.bpmConfidence = value;
+				break;
+			case 4:
+				r.duration = value;
+				break;
+			case 5:
+				r.decodeMillis = value;
+				break;
+			default:
+				r.analyseMillis = value;
+		}
+	}
+
+	/**
+	 * reads a file written by a BinaryResultSink
+	 *
+	 * @return the results of all complete blocks
+	 * @throws IOException if the file can't be read or has an unknown format
+	 */
+	public static ArrayList<TrackResult> read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("unknown format: " + file);
+			}
+			ArrayList<TrackResult> results = new ArrayList<TrackResult>();
+			while (true) {
+				int n;
+				try {
+					n = in.readInt();
+				} catch (EOFException ex) {
+					return results;
+				}
+				try {
+					results.addAll(readBlock(in, n));
+				} catch (EOFException ex) {
+					// incomplete block at the end
+					return results;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static List<TrackResult> readBlock(DataInputStream in, int n) throws IOException {
+		TrackResult[] rows = new TrackResult[n];
+		for (int i = 0; i < n; i++) {
+			rows[i] = new TrackResult();
+			rows[i].filename = in.readUTF();
+		}
+		for (TrackResult r : rows) {
+			int flags = in.readByte();
+			r.failed = (flags & FAILED) != 0;
+			r.wroteTags = (flags & WROTE_TAGS) != 0;
+			r.cached = (flags & CACHED) != 0;
+		}
+		for (TrackResult r : rows) {
+			int key = in.readByte();
+			r.key = key < 0 ? null : KEYS[key];
+		}
+		for (int column = 0; column < FLOAT_COLUMNS; column++) {
+			for (TrackResult r : rows) {
+				setFloat(r, column, in.readFloat());
+			}
+		}
+		int segments = 0;
+		for (TrackResult r : rows) {
+			r.segments = new KeyDetectionSegment[in.readInt()];
+			segments += r.segments.length;
+		}
+		KeyDetectionSegment[] all = new KeyDetectionSegment[segments];
+		for (int i = 0; i < segments; i++) {
+			all[i] = new KeyDetectionSegment();
+			all[i].firstWindow = in.readInt();
+		}
+		for (KeyDetectionSegment s : all) {
+			s.lastWindow = in.readInt();
+		}
+		for (KeyDetectionSegment s : all) {
+			s.key = KEYS[in.readByte()];
+		}
+		for (KeyDetectionSegment s : all) {
+			s.energy = in.readFloat();
+		}
+		for (KeyDetectionSegment s : all) {
+			s.confidence = in.readFloat();
+		}
+		int i = 0;
+		for (TrackResult r : rows) {
+			System.arraycopy(all, i, r.segments, 0, r.segments.length);
+			i += r.segments.length;
+		}
+		return Arrays.asList(rows);
+	}
+}
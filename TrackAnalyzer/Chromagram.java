@@ -24,111 +24,142 @@
 ************************************************************************/ 
 package TrackAnalyzer;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
+/**
+ * Chroma magnitudes of hops x bins, stored row by row (one row per hop) in a
+ * single float array. A Chromagram created by the copy constructor shares the
+ * array with the original, which is fine since the reduce methods never
+ * modify the array in place but replace it.
+ */
 public class Chromagram {
 
     private int hops;
     private int bins;
-    private ArrayList<ArrayList<Float>> chromaData;
+    private float[] chromaData;
+    /**
+     * deviation of the recording from concert pitch in cents, NaN before
+     * reduceTuningBins(), with one bin per semitone or if there are no peaks
+     */
+    private float tuningOffset = Float.NaN;
 
-    private void tuningHarte(Parameters params) throws Exception {
-        /*
-         * This is quite involved, and it's only an approximation of Harte's
-         * method based on his thesis rather than a port of his code, but it
-         * works well for e.g. Strawberry Fields Forever and other recordings he
-         * mentioned as being difficult from a tuning perspective.
-         */
-        int oct = params.getOctaves();
-        int bps = (bins / oct) / 12;
+    /**
+     * spectral peaks of each hop, at most bins / 2 per hop. The peaks of hop
+     * h start at h * bins.
+     */
+    private static final class Peaks {
+
+        final int[] counts;
+        final float[] locations;
+        final float[] magnitudes;
+
+        Peaks(int hops, int bins) {
+            counts = new int[hops];
+            locations = new float[hops * bins];
+            magnitudes = new float[hops * bins];
+        }
+    }
+
+    private Peaks findPeaks() {
         // find peaks; anything that's higher energy than the mean for this hop and higher energy than its neighbours.
-        ArrayList<ArrayList<Float>> peakLocations = new ArrayList<ArrayList<Float>>();
-        ArrayList<ArrayList<Float>> peakMagnitudes = new ArrayList<ArrayList<Float>>();
+        Peaks p = new Peaks(hops, bins);
         for (int hop = 0; hop < hops; hop++) {
+            int row = hop * bins;
             // find mean magnitude for this hop
             float meanVal = 0;
             for (int bin = 0; bin < bins; bin++) {
-                meanVal += chromaData.get(hop).get(bin);
+                meanVal += chromaData[row + bin];
             }
             meanVal /= bins;
-            // find peak bins
-            ArrayList<Integer> peakBins = new ArrayList<Integer>(bins);
+            // find peak bins and use quadratic interpolation to find a more precise peak position and magnitude.
+            int peaks = 0;
             for (int bin = 1; bin < bins - 1; bin++) {
-                float binVal = getMagnitude(hop, bin);
+                float binVal = chromaData[row + bin];
                 // currently every peak over mean. Tried all peaks but accuracy dropped.
-                if (binVal > meanVal && binVal > getMagnitude(hop, bin - 1) && binVal > getMagnitude(hop, bin + 1)) {
-                    peakBins.add(bin);
+                if (binVal > meanVal && binVal > chromaData[row + bin - 1] && binVal > chromaData[row + bin + 1]) {
+                    float alpha = chromaData[row + bin - 1];
+                    float beta = binVal;
+                    float gamma = chromaData[row + bin + 1];
+                    float peakLocation = ((alpha - gamma) / (alpha - (2 * beta) + gamma)) / 2;
+                    float peakMagnitude = beta - ((1 / 4) * (alpha - gamma) * peakLocation);
+                    p.locations[row + peaks] = bin + peakLocation;
+                    p.magnitudes[row + peaks] = peakMagnitude;
+                    peaks++;
                 }
             }
-            // quadratic interpolation to find a more precise peak position and magnitude.
-            ArrayList<Float> peakLocationsRow = new ArrayList<Float>(peakBins.size());
-            ArrayList<Float> peakMagnitudesRow = new ArrayList<Float>(peakBins.size());
-            for (int peak = 0; peak < peakBins.size(); peak++) {
-                float alpha = getMagnitude(hop, peakBins.get(peak) - 1);
-                float beta = getMagnitude(hop, peakBins.get(peak));
-                float gamma = getMagnitude(hop, peakBins.get(peak) + 1);
-                float peakLocation = ((alpha - gamma) / (alpha - (2 * beta) + gamma)) / 2;
-                float peakMagnitude = beta - ((1 / 4) * (alpha - gamma) * peakLocation);
-                peakLocationsRow.add(peakBins.get(peak) + peakLocation);
-                peakMagnitudesRow.add(peakMagnitude);
-            }
-            peakLocations.add(peakLocationsRow);
-            peakMagnitudes.add(peakMagnitudesRow);
+            p.counts[hop] = peaks;
         }
+        return p;
+    }
+
+    /**
+     * @return the tuning peak; the subdivision of a semitone (in tenths of
+     * a bin) that most peaks are tuned to, -1 if there are no peaks
+     */
+    private int findTuningPeak(Peaks p, int bps) {
         // determine tuning distribution of peaks. Centre bin = concert tuning.
-        ArrayList<Float> peakTuningDistribution = new ArrayList<Float>(bps * 10);
-        for (int i = 0; i < bps * 10; i++) {
-            peakTuningDistribution.add(new Float(0.0));
-        }
+        float[] peakTuningDistribution = new float[bps * 10];
         for (int hop = 0; hop < hops; hop++) {
-            for (int peak = 0; peak < peakLocations.get(hop).size(); peak++) {
+            int row = hop * bins;
+            for (int peak = 0; peak < p.counts[hop]; peak++) {
                 // @todo check if fmodf is equal to the usage of %
-                float peakLocationMod = peakLocations.get(hop).get(peak) % (float) bps;
+                float peakLocationMod = p.locations[row + peak] % (float) bps;
                 peakLocationMod *= 10;
                 int peakLocationInt = (int) (peakLocationMod + 0.5);
                 peakLocationInt += 5;
-                peakTuningDistribution.set(peakLocationInt % (bps * 10), (float) (peakTuningDistribution.get(peakLocationInt % (bps * 10)) + (peakMagnitudes.get(hop).get(peak) / 1000.0)));
+                peakTuningDistribution[peakLocationInt % (bps * 10)] = (float) (peakTuningDistribution[peakLocationInt % (bps * 10)] + (p.magnitudes[row + peak] / 1000.0));
             }
         }
         // now find the tuning peak; the subdivision of a semitone that most peaks are tuned to.
         float tuningMax = 0;
         int tuningPeak = -1;
         for (int i = 0; i < bps * 10; i++) {
-            if (peakTuningDistribution.get(i) > tuningMax) {
-                tuningMax = peakTuningDistribution.get(i);
+            if (peakTuningDistribution[i] > tuningMax) {
+                tuningMax = peakTuningDistribution[i];
                 tuningPeak = i;
             }
         }
+        return tuningPeak;
+    }
+
+    private void tuningHarte(Parameters params, Peaks p, int tuningPeak) {
+        /*
+         * This is quite involved, and it's only an approximation of Harte's
+         * method based on his thesis rather than a port of his code, but it
+         * works well for e.g. Strawberry Fields Forever and other recordings he
+         * mentioned as being difficult from a tuning perspective.
+         */
+        int oct = params.getOctaves();
+        int bps = (bins / oct) / 12;
+        int[] peakCounts = p.counts;
+        float[] peakLocations = p.locations;
+        float[] peakMagnitudes = p.magnitudes;
         // now discard (zero out, for ease) any peaks that sit >= 0.2 semitones (e.g. 6 bins for 3bps) away from the tuning peak.
         // figure out which tuning bins to keep
-        ArrayList<Integer> binsToKeep = new ArrayList<Integer>();
+        boolean[] keepBin = new boolean[bps * 10];
         for (int i = (1 - (bps * 2)); i < bps * 2; i++) {
-            binsToKeep.add((tuningPeak + i + (bps * 10)) % (bps * 10));
+            keepBin[(tuningPeak + i + (bps * 10)) % (bps * 10)] = true;
         }
         // and discard the others
-        ArrayList<ArrayList<Float>> twelveBpoChroma = Utils.newFloatArrayList2D(hops, 12 * oct);
+        int newBins = 12 * oct;
+        float[] twelveBpoChroma = new float[hops * newBins];
         for (int hop = 0; hop < hops; hop++) {
-            for (int peak = 0; peak < peakLocations.get(hop).size(); peak++) {
-                float peakLocationMod = peakLocations.get(hop).get(peak) % (float) bps;
+            int row = hop * bins;
+            for (int peak = 0; peak < peakCounts[hop]; peak++) {
+                float peakLocationMod = peakLocations[row + peak] % (float) bps;
                 peakLocationMod *= 10;
                 int peakLocationInt = (int) (peakLocationMod + 0.5);
                 peakLocationInt += 5;
-                boolean discardMe = true;
-                for (int i = 0; i < binsToKeep.size(); i++) {
-                    if (peakLocationInt == binsToKeep.get(i)) {
-                        discardMe = false;
-                    }
-                }
-                if (!discardMe) { // this is a valid peak for the tuned chromagram
-                    int tunedPeakLocation = peakLocations.get(hop).get(peak).intValue();
+                // peakLocationInt goes up to bps * 10 + 5, tuning bins beyond bps * 10 are never kept
+                if (peakLocationInt >= 0 && peakLocationInt < bps * 10 && keepBin[peakLocationInt]) { // this is a valid peak for the tuned chromagram
+                    int tunedPeakLocation = (int) peakLocations[row + peak];
                     tunedPeakLocation /= bps;
-                    twelveBpoChroma.get(hop).set(tunedPeakLocation,
-                            twelveBpoChroma.get(hop).get(tunedPeakLocation) + peakMagnitudes.get(hop).get(peak));
+                    twelveBpoChroma[hop * newBins + tunedPeakLocation] += peakMagnitudes[row + peak];
                 }
             }
         }
         chromaData = twelveBpoChroma;
-        bins = 12 * oct;
+        bins = newBins;
 
     }
 
@@ -142,36 +173,35 @@ public class Chromagram {
          */
         int oct = params.getOctaves();
         int bps = (bins / oct) / 12;
-        ArrayList<ArrayList<Float>> twelveBpoChroma = Utils.newFloatArrayList2D(hops, 12 * oct);
-        for (int st = 0; st < 12 * oct; st++) {
-            ArrayList<Float> oneSemitoneChroma = new ArrayList<Float>(bps);
-            for (int i = 0; i < bps; i++) {
-                oneSemitoneChroma.add(new Float(0.0));
-            }
+        int newBins = 12 * oct;
+        float[] twelveBpoChroma = new float[hops * newBins];
+        float[] oneSemitoneChroma = new float[bps];
+        for (int st = 0; st < newBins; st++) {
+            Arrays.fill(oneSemitoneChroma, 0);
             for (int h = 0; h < hops; h++) {
                 for (int b = 0; b < bps; b++) {
-                    oneSemitoneChroma.set(b, oneSemitoneChroma.get(b) + chromaData.get(h).get(st * bps + b));
+                    oneSemitoneChroma[b] += chromaData[h * bins + st * bps + b];
                 }
             }
             // determine highest energy tuning bin
             int whichBin = 0;
-            float max = oneSemitoneChroma.get(0);
+            float max = oneSemitoneChroma[0];
             for (int i = 1; i < bps; i++) {
-                if (oneSemitoneChroma.get(i) > max) {
-                    max = oneSemitoneChroma.get(i);
+                if (oneSemitoneChroma[i] > max) {
+                    max = oneSemitoneChroma[i];
                     whichBin = i;
                 }
             }
             for (int h = 0; h < hops; h++) {
                 float weighted = (float) 0.0;
                 for (int b = 0; b < bps; b++) {
-                    weighted += (chromaData.get(h).get(st * bps + b) * (b == whichBin ? 1.0 : params.getDetunedBandWeight()));
+                    weighted += (chromaData[h * bins + st * bps + b] * (b == whichBin ? 1.0 : params.getDetunedBandWeight()));
                 }
-                twelveBpoChroma.get(h).set(st, weighted);
+                twelveBpoChroma[h * newBins + st] = weighted;
             }
         }
         chromaData = twelveBpoChroma;
-        bins = 12 * oct;
+        bins = newBins;
 
     }
 
@@ -179,37 +209,103 @@ public class Chromagram {
         hops = c.hops;
         bins = c.bins;
 		chromaData = c.chromaData;
+        tuningOffset = c.tuningOffset;
     }
 
     
     Chromagram(int h, int b) {
         hops = h;
         bins = b;
-        chromaData = Utils.newFloatArrayList2D(hops, bins);
+        chromaData = new float[hops * bins];
     }
 
-    public void setMagnitude(int h, int b, float val) throws Exception {
-        if (h >= hops) {
-            String ss = "Cannot set magnitude of out-of-bounds hop (" + h + "/" + hops + ")";
-            throw new Exception(ss);
-        }
-        if (b >= bins) {
-            String ss = "Cannot set magnitude of out-of-bounds bin (" + b + "/" + bins + ")";
-            throw new Exception(ss);
+    /**
+     * an empty chromagram, hops are added with addHop()
+     */
+    Chromagram(int b) {
+        this(0, b);
+    }
+
+    /**
+     * adds a hop with all magnitudes 0, the backing array grows as needed
+     * @return index of the first bin of the new hop in the backing array
+     */
+    int addHop() {
+        if ((hops + 1) * bins > chromaData.length) {
+            chromaData = Arrays.copyOf(chromaData, Math.max(64, hops * 2) * bins);
         }
-        chromaData.get(h).set(b, new Float(val));
+        hops++;
+        return (hops - 1) * bins;
+    }
+
+    /**
+     * no bounds checks apart from the ones of the backing array
+     */
+    public void setMagnitude(int h, int b, float val) {
+        assert b < bins : "Cannot set magnitude of out-of-bounds bin (" + b + "/" + bins + ")";
+        chromaData[h * bins + b] = val;
+    }
+
+    /**
+     * no bounds checks apart from the ones of the backing array
+     */
+    public float getMagnitude(int h, int b) {
+        assert b < bins : "Cannot get magnitude of out-of-bounds bin (" + b + "/" + bins + ")";
+        return chromaData[h * bins + b];
+    }
+
+    /**
+     * copies the magnitudes of all bins of one hop to dst
+     */
+    public void getRow(int h, float[] dst) {
+        System.arraycopy(chromaData, h * bins, dst, 0, bins);
     }
 
-    public float getMagnitude(int h, int b) throws Exception {
-        if (h >= hops) {
-            String ss = "Cannot get magnitude of out-of-bounds hop (" + h + "/" + hops + ")";
-            throw new Exception(ss);
+    /**
+     * sets the magnitudes of all bins of one hop from src
+     */
+    public void setRow(int h, float[] src) {
+        System.arraycopy(src, 0, chromaData, h * bins, bins);
+    }
+
+    /**
+     * copies the magnitudes of one bin for all hops to dst
+     */
+    public void getColumn(int b, float[] dst) {
+        for (int h = 0, i = b; h < hops; h++, i += bins) {
+            dst[h] = chromaData[i];
         }
-        if (b >= bins) {
-            String ss = "Cannot get magnitude of out-of-bounds bin (" + b + "/" + bins + ")";
-            throw new Exception(ss);
+    }
+
+    /**
+     * adds up the magnitudes of hops firstHop to lastHop (inclusive) per bin.
+     * @param sum receives the sum for each bin, must have at least getBins()
+     * elements
+     * @return the sum over all bins, i.e. the energy of these hops
+     */
+    public float sumRows(int firstHop, int lastHop, float[] sum) {
+        float energy = 0;
+        for (int hop = firstHop; hop <= lastHop; hop++) {
+            int row = hop * bins;
+            for (int bin = 0; bin < bins; bin++) {
+                float value = chromaData[row + bin];
+                sum[bin] += value;
+                energy += value;
+            }
         }
-        return chromaData.get(h).get(b);
+        return energy;
+    }
+
+    /**
+     * @return the backing array, the magnitude of hop h and bin b is at index
+     * h * getBins() + b. It may be longer than getHops() * getBins().
+     */
+    public float[] getData() {
+        return chromaData;
+    }
+
+    public float getTuningOffset() {
+        return tuningOffset;
     }
 
     public int getHops() {
@@ -226,14 +322,15 @@ public class Chromagram {
         if (bpo == bins) {
             return;
         }
-        ArrayList<ArrayList<Float>> oneOctaveChroma = Utils.newFloatArrayList2D(hops, bpo);
+        float[] oneOctaveChroma = new float[hops * bpo];
         for (int h = 0; h < hops; h++) {
+            int row = h * bins;
             for (int b = 0; b < bpo; b++) {
                 float singleBin = (float) 0.0;
                 for (int o = 0; o < oct; o++) {
-                    singleBin += chromaData.get(h).get(o * bpo + b);
+                    singleBin += chromaData[row + o * bpo + b];
                 }
-                oneOctaveChroma.get(h).set(b, singleBin / oct);
+                oneOctaveChroma[h * bpo + b] = singleBin / oct;
             }
         }
         chromaData = oneOctaveChroma;
@@ -241,15 +338,29 @@ public class Chromagram {
 
     }
 
+    /**
+     * reduces the chromagram to one bin per semitone. The tuning offset is
+     * measured from the peaks like in the Harte tuning, whatever the tuning
+     * method. A chromagram which already has one bin per semitone (the
+     * default) is left as it is and no peaks are searched, its peaks can't
+     * be located precisely enough, so the tuning offset stays unknown.
+     */
     public void reduceTuningBins(Parameters params) throws Exception {
         int oct = params.getOctaves();
         if (bins == 12 * oct) {
             return;
         }
+        int bps = (bins / oct) / 12;
+        Peaks peaks = findPeaks();
+        int tuningPeak = findTuningPeak(peaks, bps);
+        if (tuningPeak >= 0) {
+            // the centre tuning bin (bps * 5) is concert pitch, a tuning bin is a tenth of a chroma bin
+            tuningOffset = (tuningPeak - bps * 5) * 10f / bps;
+        }
         if (params.getTuningMethod() == Parameters.tuning_method_t.TUNING_BIN_ADAPTIVE) {
             tuningBinAdaptive(params);
         } else {
-            tuningHarte(params);
+            tuningHarte(params, peaks, tuningPeak);
         }
     }
 }
@@ -13,14 +13,28 @@ public class CommandLineArgs {
     @Parameter(names = "-w", description = "write to Tags")
 	public boolean writeTags = false;
 
-    @Parameter(names = "--hiquality", description = "don't downsample for bpm detection")
-	public boolean hiQuality = false;
-	
+	@Parameter(names = "--tag-batch", description = "number of tag writes which are collected and sorted by directory before they are written, 1 writes the tags of each track right away")
+	public int tagBatch = TagWriter.DEFAULT_BATCH_SIZE;
+
+	@Parameter(names = "--journal", description = "with -w, don't write tags but record the writes in this file (dry run), see --apply-journal")
+	public String journal = "";
+
+	@Parameter(names = "--apply-journal", description = "write the tags recorded in this file with --journal and exit")
+	public String applyJournal = "";
+
 	@Parameter(names = "-o", description = "write results to text file")
 	public String writeList = "";
+
+	@Parameter(names = "--format", description = "format of the -o file: " + ResultSink.FORMAT_TEXT + " (filename;key;bpm;wroteTags), " + ResultSink.FORMAT_JSONL + ", " + ResultSink.FORMAT_CSV + " or " + ResultSink.FORMAT_BINARY + " (with key and bpm confidence, tuning, segments and timings)")
+	public String format = ResultSink.FORMAT_TEXT;
 	
 	@Parameter(names = "--nobpm", description = "don't detect bpm")
 	public boolean noBpm = false;
+
+	public static final String BPM_ENGINE_BEATROOT = "beatroot";
+	public static final String BPM_ENGINE_FAST = "fast";
+	@Parameter(names = "--bpm-engine", description = "bpm detection: " + BPM_ENGINE_BEATROOT + " (beat tracking, accurate) or " + BPM_ENGINE_FAST + " (autocorrelation of the onset detection function, tempo only). Both report tempi of about 67-165 bpm, faster tracks come back at half tempo")
+	public String bpmEngine = BPM_ENGINE_BEATROOT;
 	
 	@Parameter(names = "--duration", description = "cut track to length <duration> s for faster analysis")
 	public int duration = -1;
@@ -28,6 +42,27 @@ public class CommandLineArgs {
 	@Parameter(names = "-l", description = "text file containing list of audio files")
 	public String filelist = "";
 
+	@Parameter(names = "--scan", description = "directory tree with audio files to analyse, can be given more than once. Only files which are new or have changed since the last run (according to the result cache) are analysed")
+	public List<String> scanDirs = new ArrayList<String>();
+
+	@Parameter(names = "--stream", description = "analyse 16 bit signed little endian mono PCM with this samplerate from standard input while it arrives (e.g. from ffmpeg -f s16le -ac 1 -), printing key and bpm of the last minute every few seconds")
+	public int streamRate = 0;
+
+	@Parameter(names = "--threads", description = "number of worker threads for key and bpm detection each (default: number of cores)")
+	public int threads = -1;
+
+	@Parameter(names = "--decoders", description = "number of worker threads looking up cached results and starting to decode tracks, which are decoded while they are analysed (default: same as --threads)")
+	public int decoders = -1;
+
+	@Parameter(names = "--cachedir", description = "directory for cached data (default: .trackanalyzer in the home directory)")
+	public String cacheDir = "";
+
+	@Parameter(names = "--features", description = "keep the chromagram and the onset detection function of every analysed track in the cache directory (about 35 KB per minute of audio), so analysing again with other key detection parameters or onset thresholds skips decoding and spectral analysis")
+	public boolean features = false;
+
+	@Parameter(names = "--nocache", description = "don't read or write cached data")
+	public boolean noCache = false;
+
 	@Parameter(names = {"--help","-h","-?"}, help = true)
 	public boolean help;
 
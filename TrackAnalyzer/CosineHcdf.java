@@ -28,8 +28,6 @@
 package TrackAnalyzer;
 
 import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 //@todo test this class
 public class CosineHcdf extends Segmentation {
 
@@ -41,16 +39,12 @@ public class CosineHcdf extends Segmentation {
 		float gaussianSigma = params.getHcdfGaussianSigma();
 		int padding = 0; // as opposed to gaussianSize/2
 		ArrayList<Float> cosine = new ArrayList<Float>(hops + padding);
+		float[] chroma = ch.getData();
 		for (int hop = 0; hop < hops; hop++) {
 			float top = (float) 0.0;
 			float bottom = (float) 0.0;
 			for (int bin = 0; bin < bins; bin++) {
-				float mag = 0;
-				try {
-					mag = ch.getMagnitude(hop, bin);
-				} catch (Exception ex) {
-					Logger.getLogger(CosineHcdf.class.getName()).log(Level.SEVERE, null, ex);
-				}
+				float mag = chroma[hop * bins + bin];
 				top += mag;
 				bottom += Math.pow(mag, 2);
 			}
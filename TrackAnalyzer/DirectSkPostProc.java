@@ -42,9 +42,29 @@ public class DirectSkPostProc extends FftPostProcessor {
 
 	public DirectSkPostProc(int fr, Parameters params) throws Exception {
 		super(fr, params);
+		// the kernel depends on the frame rate and the spectral parameters only
+		String cacheKey = "kernel_" + fr + "_" + fftFrameSize + "_" + params.getOctaves() + "_" + params.getBpo()
+				+ "_" + SpectralCache.keyPart(params.getStartingFreqA()) + "_" + params.getOffsetToC()
+				+ "_" + SpectralCache.keyPart(params.getDirectSkStretch());
+		SpectralCache.Entry cached = SpectralCache.load(cacheKey);
+		if (cached != null && cached.ints.length == bins && cached.tables.length == bins) {
+			binOffsets = cached.ints;
+			mySpecKernel = cached.tables;
+		} else {
+			buildKernel(fr, params);
+			SpectralCache.store(cacheKey, binOffsets, mySpecKernel);
+		}
+		// only the fft bins covered by a kernel are needed
+		magnitudeCount = 0;
+		for (int i = 0; i < bins; i++) {
+			magnitudeCount = Math.max(magnitudeCount, binOffsets[i] + mySpecKernel[i].length);
+		}
+	}
+
+	private void buildKernel(int fr, Parameters params) throws Exception {
 // TODO check that last frequency doesn't go over Nyquist, and for sufficient low end resolution.
 		binOffsets = new int[bins];
-		mySpecKernel = new float[bins][fftFrameSize];
+		mySpecKernel = new float[bins][];
 		float myQFactor = (float) (params.getDirectSkStretch() * (Math.pow(2, (1.0 / params.getBpo())) - 1));
 		for (int i = 0; i < bins; i++) {
 			float centreOfWindow = params.getBinFreq(i) * fftFrameSize / fr;
@@ -78,21 +98,16 @@ public class DirectSkPostProc extends FftPostProcessor {
 	}
 
 	@Override
-	public final ArrayList<Float> chromaVector(double[] fftResult) {
-		ArrayList<Float> cv = new ArrayList<Float>(bins);
+	public final void chromaVector(float[] magnitudes, float[] chroma, int offset) {
 		for (int i = 0; i < bins; i++) {
 			float sum = (float) 0.0;
 			int kernel_i_size = mySpecKernel[i].length;
 			float[] kernel_i = mySpecKernel[i];
+			int binOffset = binOffsets[i];
 			for (int j = 0; j < kernel_i_size; j++) {
-				int binNum = binOffsets[i] + j;
-				double real = fftResult[binNum * 2];
-				double imag = fftResult[binNum * 2 + 1];
-				float magnitude = (float) Math.sqrt((real * real) + (imag * imag));
-				sum += (magnitude * kernel_i[j]);
+				sum += (magnitudes[binOffset + j] * kernel_i[j]);
 			}
-			cv.add(new Float(sum));
+			chroma[offset + i] = sum;
 		}
-		return cv;
 	}
 }
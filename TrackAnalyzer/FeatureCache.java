@@ -0,0 +1,235 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk store of the features of analysed tracks: the chromagram before
+ * tuning, which is all key detection needs after the spectral analysis, and
+ * BeatRoot's onset detection function, which is all onset picking, beat
+ * tracking and tempo estimation need. Analysing a track again with other
+ * tone profiles, segmentation, tuning or onset thresholds then skips
+ * decoding and all FFTs, see TrackAnalyzer.detectFromFeatures().
+ *
+ * Like ResultCache, features are keyed by the fingerprint of the decoded
+ * audio and a hash of the settings they depend on (see
+ * ResultCache.settingsHash()). Each entry is a binary file, named
+ * &lt;fingerprint&gt;-&lt;settings hash&gt; with the extension .chroma or
+ * .onset, in a subdirectory named after the first two characters of the
+ * fingerprint, so no directory gets too large. With the default settings a
+ * chromagram takes about 10 KB and an onset detection function about 24 KB
+ * per minute of audio (the values are stored as floats). Entries are
+ * written and read like the entries of the SpectralCache: written to a
+ * temporary file and renamed, read with a single read; if anything goes
+ * wrong, the features are simply computed again.
+ *
+ * File format (big endian): MAGIC, VERSION, then for a chromagram the number
+ * of hops, the number of bins and the magnitudes hop by hop, for an onset
+ * detection function the samplerate (float), the hop size in samples, the
+ * number of values and the values.
+ */
+public class FeatureCache {
+
+	private static final int MAGIC = 0x54414b46; // "TAKF"
+	/**
+	 * increment when the format or the way the features are computed
+	 * changes, so old entries are ignored
+	 */
+	private static final int VERSION = 1;
+	private static final String CHROMAGRAM = ".chroma";
+	private static final String ONSET_FUNCTION = ".onset";
+
+	/**
+	 * a cached onset detection function
+	 */
+	public static final class OnsetFunction {
+
+		/**
+		 * the normalised onset detection function, one value per frame
+		 */
+		public final double[] values;
+		public final float sampleRate;
+		/**
+		 * spacing of the frames in samples
+		 */
+		public final int hopSize;
+
+		public OnsetFunction(double[] values, float sampleRate, int hopSize) {
+			this.values = values;
+			this.sampleRate = sampleRate;
+			this.hopSize = hopSize;
+		}
+	}
+	private final File directory;
+
+	/**
+	 * @param directory the cache directory, created when the first entry is
+	 * stored
+	 */
+	public FeatureCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return the default cache directory, --cachedir replaces the
+	 * .trackanalyzer part
+	 */
+	public static File getDefaultDirectory() {
+		return new File(new File(System.getProperty("user.home"), ".trackanalyzer"), "features");
+	}
+
+	/**
+	 * @return the cached chromagram (before tuning) or null if there is none
+	 */
+	public Chromagram getChromagram(String fingerprint, long settings) {
+		ByteBuffer buffer = load(fingerprint, settings, CHROMAGRAM);
+		if (buffer == null) {
+			return null;
+		}
+		try {
+			int hops = buffer.getInt();
+			int bins = buffer.getInt();
+			Chromagram ch = new Chromagram(hops, bins);
+			buffer.asFloatBuffer().get(ch.getData(), 0, hops * bins);
+			return ch;
+		} catch (RuntimeException ex) {
+			Logger.getLogger(FeatureCache.class.getName()).log(Level.FINE, "broken chromagram for " + fingerprint, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * stores a chromagram (before tuning), errors are only logged
+	 */
+	public void putChromagram(String fingerprint, long settings, Chromagram ch) {
+		int n = ch.getHops() * ch.getBins();
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 4 * n);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(ch.getHops()).putInt(ch.getBins());
+		buffer.asFloatBuffer().put(ch.getData(), 0, n);
+		store(fingerprint, settings, CHROMAGRAM, buffer.array());
+	}
+
+	/**
+	 * @return the cached onset detection function or null if there is none
+	 */
+	public OnsetFunction getOnsetFunction(String fingerprint, long settings) {
+		ByteBuffer buffer = load(fingerprint, settings, ONSET_FUNCTION);
+		if (buffer == null) {
+			return null;
+		}
+		try {
+			float sampleRate = buffer.getFloat();
+			int hopSize = buffer.getInt();
+			double[] values = new double[buffer.getInt()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = buffer.getFloat();
+			}
+			return new OnsetFunction(values, sampleRate, hopSize);
+		} catch (RuntimeException ex) {
+			Logger.getLogger(FeatureCache.class.getName()).log(Level.FINE, "broken onset function for " + fingerprint, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * stores an onset detection function, errors are only logged
+	 */
+	public void putOnsetFunction(String fingerprint, long settings, OnsetFunction f) {
+		ByteBuffer buffer = ByteBuffer.allocate(20 + 4 * f.values.length);
+		buffer.putInt(MAGIC).putInt(VERSION).putFloat(f.sampleRate).putInt(f.hopSize).putInt(f.values.length);
+		for (double v : f.values) {
+			buffer.putFloat((float) v);
+		}
+		store(fingerprint, settings, ONSET_FUNCTION, buffer.array());
+	}
+
+	private File getFile(String fingerprint, long settings, String extension) {
+		return new File(new File(directory, fingerprint.substring(0, 2)),
+				fingerprint + "-" + Long.toHexString(settings) + extension);
+	}
+
+	/**
+	 * @return the entry after MAGIC and VERSION, or null
+	 */
+	private ByteBuffer load(String fingerprint, long settings, String extension) {
+		File file = getFile(fingerprint, settings, extension);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			byte[] bytes;
+			try {
+				bytes = new byte[(int) raf.length()];
+				raf.readFully(bytes);
+			} finally {
+				raf.close();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (bytes.length < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			return buffer;
+		} catch (IOException ex) {
+			Logger.getLogger(FeatureCache.class.getName()).log(Level.FINE, "can't read cache entry " + file, ex);
+			return null;
+		}
+	}
+
+	private void store(String fingerprint, long settings, String extension, byte[] entry) {
+		File file = getFile(fingerprint, settings, extension);
+		File dir = file.getParentFile();
+		File tmp = null;
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("can't create " + dir);
+			}
+			tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(entry);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// another process was faster, or the platform can't replace files
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("can't rename " + tmp + " to " + file);
+				}
+			}
+			tmp = null;
+		} catch (IOException ex) {
+			Logger.getLogger(FeatureCache.class.getName()).log(Level.FINE, "can't write cache entry " + file, ex);
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+}
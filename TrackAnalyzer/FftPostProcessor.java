@@ -24,13 +24,22 @@
 ************************************************************************/ 
 package TrackAnalyzer;
 
-import java.util.ArrayList;
-
+/**
+ * Turns the result of an FFT into a chroma vector in two steps: magnitudes()
+ * computes the magnitude of each FFT bin once, and chromaVector() applies the
+ * spectral kernel to these magnitudes. Both write into arrays owned by the
+ * caller, so nothing is allocated per FFT frame.
+ */
 public abstract class FftPostProcessor {
 
 	protected int bins;
 	protected int fftFrameSize;
 	protected int frameRate;
+	/**
+	 * number of FFT bins (starting at 0) whose magnitudes are needed by
+	 * chromaVector()
+	 */
+	protected int magnitudeCount;
 
 	public static FftPostProcessor getFftPostProcessor(int fr, Parameters params) throws Exception {
 		return new DirectSkPostProc(fr, params);
@@ -42,7 +51,40 @@ public abstract class FftPostProcessor {
 		frameRate = fr;
 		bins = params.getOctaves() * params.getBpo();
 		fftFrameSize = params.getFftFrameSize();
+		magnitudeCount = fftFrameSize;
+	}
+
+	/**
+	 * @return the size of the magnitudes array needed by magnitudes() and
+	 * chromaVector()
+	 */
+	public int getMagnitudeCount() {
+		return magnitudeCount;
+	}
+
+	/**
+	 * computes the magnitudes of the FFT bins used by chromaVector()
+	 *
+	 * @param fftResult the complex FFT result, real and imaginary parts
+	 * interleaved
+	 * @param magnitudes receives the magnitude of FFT bin i at index i, must
+	 * have at least getMagnitudeCount() elements
+	 */
+	public void magnitudes(double[] fftResult, float[] magnitudes) {
+		for (int i = 0; i < magnitudeCount; i++) {
+			double real = fftResult[i * 2];
+			double imag = fftResult[i * 2 + 1];
+			magnitudes[i] = (float) Math.sqrt((real * real) + (imag * imag));
+		}
 	}
 
-	abstract public ArrayList<Float> chromaVector(double[] fftResult);
+	/**
+	 * computes a chroma vector of getBins() values from the FFT magnitudes
+	 *
+	 * @param magnitudes FFT magnitudes as computed by magnitudes()
+	 * @param chroma receives the chroma vector
+	 * @param offset index of the first chroma value in chroma, e.g. the
+	 * start of a row of a Chromagram's backing array
+	 */
+	abstract public void chromaVector(float[] magnitudes, float[] chroma, int offset);
 }
@@ -25,16 +25,38 @@
 package TrackAnalyzer;
 
 import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
-import java.util.ArrayList;
-import java.util.Arrays;
 
+/**
+ * Immutable apart from the per-thread scratch buffers, so one instance can be
+ * used by any number of threads at the same time.
+ */
 public class FftwAnalyser extends SpectrumAnalyser {
 
-	private int fftFrameSize;
-	private FftPostProcessor pp;
-	private double[] fftInput;
-	private ArrayList<Float> window;
+	private final int fftFrameSize;
+	private final FftPostProcessor pp;
+	private final float[] window;
+	/**
+	 * the FFT plan, its tables are only read while transforming
+	 */
 	private final DoubleFFT_1D fft;
+	private final ThreadLocal<double[]> fftInput = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[fftFrameSize * 2]; //2 because these are complex values with real and img. part
+		}
+	};
+	private final ThreadLocal<double[]> frame = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[fftFrameSize];
+		}
+	};
+	private final ThreadLocal<float[]> magnitudes = new ThreadLocal<float[]>() {
+		@Override
+		protected float[] initialValue() {
+			return new float[pp.getMagnitudeCount()];
+		}
+	};
 
 	public FftwAnalyser(int f, Parameters params) throws Exception {
 		super(f, params);
@@ -43,45 +65,76 @@ public class FftwAnalyser extends SpectrumAnalyser {
 		pp = FftPostProcessor.getFftPostProcessor(f, params);
 		//fftInput = (fftw_complex*)fftw.fftw_malloc(sizeof(fftw_complex)*fftFrameSize);
 		//fftInput = fftw.fftw_malloc(new NativeLong(sizeofDouble*fftFrameSize));
-		fftInput = new double[fftFrameSize * 2]; //2 because these are complex values with real and img. part
 		//fftResult = (fftw_complex*)fftw_malloc(sizeof(fftw_complex)*fftFrameSize);
 		//fftResult = fftw.fftw_malloc(new NativeLong(sizeofDouble*fftFrameSize));
 		// plan 1-dimensional DFT
 		//fftPlan = fftw_plan_dft_1d(fftFrameSize, fftInput, fftResult, FFTW_FORWARD, FFTW_ESTIMATE);
 		//fftPlan = fftw.fftw_plan_dft_1d(fftFrameSize, inbuf, resultbuf, FFTW3Library.FFTW_FORWARD, FFTW3Library.FFTW_ESTIMATE);	
 		// prep temporal window function
-		WindowFunction wf = WindowFunction.getWindowFunction(params.getTemporalWindow());
-		window = new ArrayList<Float>(fftFrameSize);
-		for (int i = 0; i < fftFrameSize; i++) {
-			window.add(wf.window(i, fftFrameSize));
+		String cacheKey = "window_" + params.getTemporalWindow() + "_" + fftFrameSize;
+		SpectralCache.Entry cached = SpectralCache.load(cacheKey);
+		if (cached != null && cached.tables.length == 1 && cached.tables[0].length == fftFrameSize) {
+			window = cached.tables[0];
+		} else {
+			WindowFunction wf = WindowFunction.getWindowFunction(params.getTemporalWindow());
+			window = new float[fftFrameSize];
+			for (int i = 0; i < fftFrameSize; i++) {
+				window[i] = wf.window(i, fftFrameSize);
+			}
+			SpectralCache.store(cacheKey, new int[0], new float[][]{window});
 		}
 
 	}
 
 	@Override
-	public Chromagram chromagram(AudioData audio) throws Exception {
-		analyserMutex.lock();
-		try {
-			int sampleCount = audio.getSampleCount();
-			Chromagram ch = new Chromagram((sampleCount / hopSize) + 1, bins);
-			for (int i = 0; i < sampleCount; i += hopSize) {
-				for (int j = 0; j < fftFrameSize; j++) {
-					if (i + j < sampleCount) {
-						fftInput[j] = (double) (audio.getSample(i + j) * window.get(j)); // real part, windowed
-					} else {
-						fftInput[j] = 0.0; // zero-pad if no PCM data remaining
-					}
+	public Chromagram chromagram(AudioSource source) throws Exception {
+		// sliding window over the stream, frame[0] is the first sample of the current hop
+		double[] frame = this.frame.get();
+		int valid = source.readFully(frame, 0, fftFrameSize);
+		int sampleCount = valid;
+		Chromagram ch = new Chromagram(bins);
+		while (valid > 0) {
+			int row = ch.addHop();
+			chromaVector(frame, valid, ch.getData(), row);
+			// move on by one hop
+			if (hopSize < fftFrameSize) {
+				boolean full = valid == fftFrameSize;
+				valid = Math.max(0, valid - hopSize);
+				System.arraycopy(frame, hopSize, frame, 0, valid);
+				if (full) {
+					int n = source.readFully(frame, valid, fftFrameSize - valid);
+					valid += n;
+					sampleCount += n;
 				}
-				fft.realForwardFull(fftInput);
-				ArrayList<Float> cv = pp.chromaVector(fftInput);
+			} else if (valid == fftFrameSize) {
+				int skipped = source.skip(hopSize - fftFrameSize);
+				valid = skipped < hopSize - fftFrameSize ? 0 : source.readFully(frame, 0, fftFrameSize);
+				sampleCount += skipped + valid;
+			} else {
+				valid = 0;
+			}
+		}
+		// one hop per hopSize samples, plus one (which stays empty if
+		// sampleCount is a multiple of hopSize)
+		if (sampleCount % hopSize == 0) {
+			ch.addHop();
+		}
+		return ch;
+	}
 
-				for (int j = 0; j < bins; j++) {
-					ch.setMagnitude(i / hopSize, j, cv.get(j));
-				}
+	@Override
+	public void chromaVector(double[] frame, int valid, float[] chroma, int offset) {
+		double[] fftInput = this.fftInput.get();
+		float[] magnitudes = this.magnitudes.get();
+		for (int j = 0; j < fftFrameSize; j++) {
+			if (j < valid) {
+				fftInput[j] = (double) (frame[j] * window[j]); // real part, windowed
+			} else {
+				fftInput[j] = 0.0; // zero-pad if no PCM data remaining
 			}
-			return ch;
-		} finally {
-			analyserMutex.unlock();
 		}
+		fft.realForwardFull(fftInput);
+		pp.magnitudes(fftInput, magnitudes);
+		pp.chromaVector(magnitudes, chroma, offset);
 	}
 }
\ No newline at end of file
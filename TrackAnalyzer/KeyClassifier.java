@@ -44,9 +44,15 @@ public class KeyClassifier {
 	}
 
 	public key_t classify(ArrayList<Float> chroma) {
-		ArrayList<Float> scores = new ArrayList<Float>(24);
-		for (int i= 0; i<24; i++)
-			scores.add(new Float(0));
+		return classify(chroma, new float[key_t.values().length]);
+	}
+
+	/**
+	 * @param scores receives the similarity of the chroma vector to each
+	 * key, indexed by the ordinal of the key (the last one is SILENCE)
+	 * @return the key with the highest score
+	 */
+	public key_t classify(ArrayList<Float> chroma, float[] scores) {
 		float bestScore = (float) 0.0;
 		if (similarityMeasure == Parameters.similarity_measure_t.SIMILARITY_CORRELATION) {
 			float chromaMean = (float) 0.0;
@@ -55,28 +61,25 @@ public class KeyClassifier {
 			}
 			chromaMean /= chroma.size();
 			for (int i = 0; i < 12; i++) { // for each pair of profiles
-				float sc = major.correlation(chroma, chromaMean, i); // major
-				scores.set(i * 2, sc);
-				sc = minor.correlation(chroma, chromaMean, i); // minor
-				scores.set((i * 2) + 1, sc);
+				scores[i * 2] = major.correlation(chroma, chromaMean, i); // major
+				scores[(i * 2) + 1] = minor.correlation(chroma, chromaMean, i); // minor
 			}
 			bestScore = silence.correlation(chroma, chromaMean, 0);
 		} else {
 			// Cosine measure
 			for (int i = 0; i < 12; i++) { // for each pair of profiles
-				float sc = major.cosine(chroma, i); // major
-				scores.set(i * 2, sc);
-				sc = minor.cosine(chroma, i); // minor
-				scores.set((i * 2) + 1, sc);
+				scores[i * 2] = major.cosine(chroma, i); // major
+				scores[(i * 2) + 1] = minor.cosine(chroma, i); // minor
 			}
 			bestScore = silence.cosine(chroma, 0);
 		}
+		scores[key_t.SILENCE.ordinal()] = bestScore;
 		// find best match, starting with silence
 		key_t bestMatch = key_t.SILENCE;
 		for (key_t key : key_t.values()) {
 			if (!key.equals(key_t.SILENCE)) {
-				if (scores.get(key.ordinal()) > bestScore) {
-					bestScore = scores.get(key.ordinal());
+				if (scores[key.ordinal()] > bestScore) {
+					bestScore = scores[key.ordinal()];
 					bestMatch = key;
 				}
 			}
@@ -84,4 +87,24 @@ public class KeyClassifier {
 		return bestMatch;
 
 	}
+
+	/**
+	 * @param scores the scores of classify()
+	 * @param key the key returned by classify()
+	 * @return how clearly the key won, from 0 (the runner-up scored the
+	 * same) to 1: (best score - second best score) / best score
+	 */
+	public static float confidence(float[] scores, key_t key) {
+		float best = scores[key.ordinal()];
+		if (!(best > 0)) {
+			return 0;
+		}
+		float second = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < scores.length; i++) {
+			if (i != key.ordinal() && scores[i] > second) {
+				second = scores[i];
+			}
+		}
+		return Math.max(0, Math.min(1, (best - second) / best));
+	}
 }
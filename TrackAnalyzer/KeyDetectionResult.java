@@ -33,4 +33,13 @@ public class KeyDetectionResult {
 	public ArrayList<Float> harmonicChangeSignal = new ArrayList<Float>();
 	public ArrayList<KeyDetectionSegment> segments = new ArrayList<KeyDetectionSegment>();
 	public Parameters.key_t globalKeyEstimate;
+	/**
+	 * energy weighted mean of the segment confidences, segments in another
+	 * key than the global key count as 0
+	 */
+	public float confidence;
+	/**
+	 * deviation from concert pitch in cents, NaN if unknown
+	 */
+	public float tuningOffset = Float.NaN;
 }
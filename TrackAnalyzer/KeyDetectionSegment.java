@@ -29,6 +29,10 @@ public class KeyDetectionSegment {
 	public int firstWindow;
 	public int lastWindow;
 	public float energy;
+	/**
+	 * see KeyClassifier.confidence()
+	 */
+	public float confidence;
 	public int length() {
 		return 0;
 		//@todo fill in
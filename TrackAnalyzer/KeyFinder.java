@@ -26,15 +26,15 @@ package TrackAnalyzer;
 
 import TrackAnalyzer.Parameters.key_t;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class KeyFinder {
 
-	private SpectrumAnalyserFactory saFactory = new SpectrumAnalyserFactory();
+	private final SpectrumAnalyserFactory saFactory = SpectrumAnalyserFactory.getInstance();
 
 
 
 	public KeyDetectionResult findKey(AudioData audio, Parameters params) throws Exception {
-		KeyDetectionResult result = new KeyDetectionResult();
 		// make audio stream monaural
 		audio.reduceToMono();
 
@@ -42,10 +42,38 @@ public class KeyFinder {
 		SpectrumAnalyser sa = saFactory.getSpectrumAnalyser(audio.getFrameRate(), params);
 
 		// run spectrum analysis
-		Chromagram ch = sa.chromagram(audio);
+		return findKey(sa.chromagram(audio), params);
+	}
+
+	/**
+	 * detects the key of a mono stream, which is analysed hop by hop
+	 */
+	public KeyDetectionResult findKey(AudioSource audio, Parameters params) throws Exception {
+		return findKey(chromagram(audio, params), params);
+	}
 
+	/**
+	 * runs the spectral analysis of a mono stream, which is the expensive
+	 * part of key detection. The chromagram (before tuning) is all that
+	 * findKey(Chromagram, Parameters) needs.
+	 */
+	public Chromagram chromagram(AudioSource audio, Parameters params) throws Exception {
+		SpectrumAnalyser sa = saFactory.getSpectrumAnalyser(audio.getFrameRate(), params);
+		return sa.chromagram(audio);
+	}
+
+	/**
+	 * detects the key from a chromagram returned by chromagram(), which
+	 * isn't changed. Only the parameters which don't affect the spectral
+	 * analysis (see Parameters.equivalentForSpectralAnalysis) may differ from
+	 * the ones the chromagram was computed with.
+	 */
+	public KeyDetectionResult findKey(Chromagram chromagram, Parameters params) throws Exception {
+		Chromagram ch = new Chromagram(chromagram);
+		KeyDetectionResult result = new KeyDetectionResult();
 		// reduce chromagram
 		ch.reduceTuningBins(params);
+		result.tuningOffset = ch.getTuningOffset();
 		result.fullChromagram = new Chromagram(ch);
 		ch.reduceToOneOctave(params);
 		result.oneOctaveChromagram = new Chromagram(ch);
@@ -65,25 +93,21 @@ public class KeyFinder {
 			keyWeights.add(new Float(0));
 		}
 
+		float[] segmentSum = new float[ch.getBins()];
+		float[] scores = new float[key_t.values().length];
 		for (int s = 0; s < segmentBoundaries.size() - 1; s++) {
 			KeyDetectionSegment segment = new KeyDetectionSegment();
 			segment.firstWindow = segmentBoundaries.get(s);
 			segment.lastWindow = segmentBoundaries.get(s + 1) - 1;
 			// collapse segment's time dimension, for a single chroma vector and a single energy value
+			Arrays.fill(segmentSum, 0);
+			segment.energy += ch.sumRows(segment.firstWindow, segment.lastWindow, segmentSum);
 			ArrayList<Float> segmentChroma = new ArrayList<Float>(ch.getBins());
 			for (int i = 0; i < ch.getBins(); i++) {
-				segmentChroma.add(new Float(0));
+				segmentChroma.add(segmentSum[i]);
 			}
-			// for each relevant hop of the chromagram
-			for (int hop = segment.firstWindow; hop <= segment.lastWindow; hop++) {
-				// for each bin
-				for (int bin = 0; bin < ch.getBins(); bin++) {
-					float value = ch.getMagnitude(hop, bin);
-					segmentChroma.set(bin, segmentChroma.get(bin) + value);
-					segment.energy += value;
-				}
-			}
-			segment.key = hc.classify(segmentChroma);
+			segment.key = hc.classify(segmentChroma, scores);
+			segment.confidence = KeyClassifier.confidence(scores, segment.key);
 			if (segment.key != key_t.SILENCE) {
 				keyWeights.set(segment.key.ordinal(), keyWeights.get(segment.key.ordinal()) + segment.energy);
 			}
@@ -102,6 +126,18 @@ public class KeyFinder {
 			}
 
 		}
+		float totalEnergy = 0;
+		for (KeyDetectionSegment segment : result.segments) {
+			if (segment.key != key_t.SILENCE) {
+				totalEnergy += segment.energy;
+				if (segment.key == result.globalKeyEstimate) {
+					result.confidence += segment.confidence * segment.energy;
+				}
+			}
+		}
+		if (totalEnergy > 0) {
+			result.confidence /= totalEnergy;
+		}
 		return result;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,196 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks directory trees and reports every audio file it finds. Directories
+ * are listed by a pool of threads, since on network shares and spinning
+ * disks most of the time is spent waiting for the file system. The order in
+ * which files are reported is therefore not defined. Hidden files and
+ * directories (starting with a dot) are skipped, and directories reached
+ * through symbolic links are only walked once.
+ */
+public class LibraryScanner {
+
+	/**
+	 * extensions (lower case) of the files which are reported
+	 */
+	public static final String[] AUDIO_EXTENSIONS = {
+		"mp3", "flac", "wav", "aif", "aiff", "m4a", "mp4", "aac", "ogg", "oga", "opus", "wma", "ape", "wv"
+	};
+
+	/**
+	 * receives the audio files, called concurrently by the scanner threads
+	 */
+	public interface Listener {
+
+		void found(File file) throws InterruptedException;
+	}
+	private final int threads;
+	private final AtomicInteger directories = new AtomicInteger();
+	private final AtomicInteger files = new AtomicInteger();
+
+	/**
+	 * @param threads number of threads listing directories
+	 */
+	public LibraryScanner(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @return true if the name of the file has one of the AUDIO_EXTENSIONS
+	 */
+	public static boolean isAudioFile(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot < 0) {
+			return false;
+		}
+		String extension = name.substring(dot + 1).toLowerCase();
+		for (String e : AUDIO_EXTENSIONS) {
+			if (e.equals(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * walks the directory trees and passes every audio file to the listener,
+	 * returns when all directories have been listed and the listener has
+	 * seen all files. Unreadable directories are logged and skipped.
+	 *
+	 * @param roots the top directories
+	 * @param listener receives the audio files
+	 * @throws InterruptedException if interrupted or if the listener was
+	 * interrupted
+	 */
+	public void scan(List<File> roots, final Listener listener) throws InterruptedException {
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final AtomicInteger pending = new AtomicInteger(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final Set<String> visited = Collections.synchronizedSet(new HashSet<String>());
+		final boolean[] interrupted = {false};
+		directories.set(0);
+		files.set(0);
+
+		/**
+		 * lists a directory and submits its subdirectories
+		 */
+		final class Walker implements Runnable {
+
+			private final File dir;
+
+			Walker(File dir) {
+				this.dir = dir;
+			}
+
+			@Override
+			public void run() {
+				try {
+					walk();
+				} catch (InterruptedException ex) {
+					synchronized (interrupted) {
+						interrupted[0] = true;
+					}
+					done.countDown();
+				} finally {
+					if (pending.decrementAndGet() == 0) {
+						done.countDown();
+					}
+				}
+			}
+
+			private void walk() throws InterruptedException {
+				try {
+					if (!visited.add(dir.getCanonicalPath())) {
+						return;
+					}
+				} catch (IOException ex) {
+					Logger.getLogger(LibraryScanner.class.getName()).log(Level.WARNING, "can't resolve " + dir, ex);
+					return;
+				}
+				File[] entries = dir.listFiles();
+				if (entries == null) {
+					Logger.getLogger(LibraryScanner.class.getName()).log(Level.WARNING, "can't list " + dir);
+					return;
+				}
+				directories.incrementAndGet();
+				for (File f : entries) {
+					if (f.getName().startsWith(".")) {
+						continue;
+					}
+					if (f.isDirectory()) {
+						pending.incrementAndGet();
+						pool.execute(new Walker(f));
+					} else if (isAudioFile(f.getName())) {
+						files.incrementAndGet();
+						listener.found(f);
+					}
+				}
+			}
+		}
+		for (File root : roots) {
+			pending.incrementAndGet();
+			pool.execute(new Walker(root));
+		}
+		// the initial count keeps the scan from finishing while the roots are submitted
+		if (pending.decrementAndGet() == 0) {
+			done.countDown();
+		}
+		try {
+			done.await();
+		} finally {
+			pool.shutdownNow();
+		}
+		synchronized (interrupted) {
+			if (interrupted[0]) {
+				throw new InterruptedException("listener was interrupted");
+			}
+		}
+	}
+
+	/**
+	 * @return number of directories listed by the last scan
+	 */
+	public int getDirectories() {
+		return directories.get();
+	}
+
+	/**
+	 * @return number of audio files found by the last scan
+	 */
+	public int getFiles() {
+		return files.get();
+	}
+}
@@ -178,6 +178,42 @@ public class Parameters {
 		return true;
 	}
 
+	/**
+	 * @return a copy of the parameters relevant for spectral analysis (see
+	 * equivalentForSpectralAnalysis) and the hop size, everything else has
+	 * default values
+	 */
+	public Parameters spectralAnalysisCopy() {
+		Parameters copy = new Parameters();
+		copy.temporalWindow = temporalWindow;
+		copy.bps = bps;
+		copy.stFreq = stFreq;
+		copy.octaves = octaves;
+		copy.offsetToC = offsetToC;
+		copy.fftFrameSize = fftFrameSize;
+		copy.directSkStretch = directSkStretch;
+		copy.hopSize = hopSize;
+		copy.generateBinFreqs();
+		return copy;
+	}
+
+	/**
+	 * @return all parameters as a string, equal strings mean equal key
+	 * detection results (the bin frequencies are derived from the other
+	 * parameters). Used to tell whether a cached result can be reused.
+	 */
+	public String describe() {
+		return "offsetToC=" + offsetToC + ";hopSize=" + hopSize + ";fftFrameSize=" + fftFrameSize
+				+ ";octaves=" + octaves + ";bps=" + bps + ";arbitrarySegments=" + arbitrarySegments
+				+ ";hcdfPeakPickingNeighbours=" + hcdfPeakPickingNeighbours
+				+ ";hcdfGaussianSize=" + hcdfGaussianSize + ";hcdfGaussianSigma=" + hcdfGaussianSigma
+				+ ";stFreq=" + stFreq + ";directSkStretch=" + directSkStretch
+				+ ";detunedBandWeight=" + detunedBandWeight + ";temporalWindow=" + temporalWindow
+				+ ";segmentation=" + segmentation + ";similarityMeasure=" + similarityMeasure
+				+ ";toneProfile=" + toneProfile + ";tuningMethod=" + tuningMethod
+				+ ";customToneProfile=" + customToneProfile;
+	}
+
 	/**
 	 * * getters **
 	 */
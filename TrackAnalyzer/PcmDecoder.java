@@ -0,0 +1,579 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import it.sauronsoftware.jave.DefaultFFMPEGLocator;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decodes an audio file (mp3, flac, wav, etc. everything which can be decoded
+ * by ffmpeg) to mono audio with the samplerate of the file, so ffmpeg doesn't
+ * have to resample. ffmpeg writes 16 bit signed little endian PCM data to a
+ * pipe, which is converted block by block while the analysis reads it, so
+ * neither temporary wav files nor the whole track in memory are needed. The
+ * audio is used as it is for bpm detection, and is downsampled in-process for
+ * key detection. Uncompressed wav files are read directly with WavFile,
+ * without starting ffmpeg.
+ */
+public class PcmDecoder {
+
+	private static final int READ_BUFFER_SIZE = 65536;
+	/**
+	 * matches the audio stream lines ffmpeg writes for input and output, e.g.
+	 * "Stream #0:0: Audio: pcm_s16le, 48000 Hz, mono, s16, 768 kb/s". The
+	 * output stream comes last.
+	 */
+	private static final Pattern AUDIO_STREAM = Pattern.compile("Audio: [^,]+, (\\d+) Hz");
+	/**
+	 * matches the duration ffmpeg reports for the input, e.g. "Duration:
+	 * 00:03:21.45, start: 0.000000, bitrate: 320 kb/s"
+	 */
+	private static final Pattern DURATION = Pattern.compile("Duration: (\\d+):(\\d+):(\\d+(?:\\.\\d+)?)");
+	/**
+	 * seconds to wait for ffmpeg's report of the output format, once it
+	 * started writing audio the report should already be there
+	 */
+	private static final int FORMAT_TIMEOUT = 10;
+	private static final FfmpegLocator locator = new FfmpegLocator();
+
+	/**
+	 * gives access to the ffmpeg executable bundled with Jave
+	 */
+	private static final class FfmpegLocator extends DefaultFFMPEGLocator {
+
+		String getPath() {
+			return getFFMPEGExecutablePath();
+		}
+	}
+
+	/**
+	 * reads everything ffmpeg writes to stderr, otherwise ffmpeg blocks once
+	 * the pipe buffer is full. The last line is kept for error messages.
+	 */
+	private static final class StreamDrain extends Thread {
+
+		private final InputStream in;
+		private volatile String lastLine = "";
+		private volatile int samplerate = 0;
+		/**
+		 * duration of the input in seconds, NaN if ffmpeg didn't report it
+		 */
+		private volatile double duration = Double.NaN;
+		/**
+		 * released when the samplerate of the output is known, or when
+		 * ffmpeg closed stderr
+		 */
+		private final CountDownLatch format = new CountDownLatch(1);
+
+		StreamDrain(InputStream in) {
+			this.in = in;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			StringBuilder line = new StringBuilder();
+			try {
+				boolean output = false;
+				int c;
+				while ((c = in.read()) != -1) {
+					if (c == '\n' || c == '\r') {
+						if (line.length() > 0) {
+							lastLine = line.toString();
+							Matcher m = AUDIO_STREAM.matcher(lastLine);
+							if (m.find()) {
+								samplerate = Integer.parseInt(m.group(1));
+								if (output) {
+									format.countDown();
+								}
+							}
+							m = DURATION.matcher(lastLine);
+							if (!output && m.find()) {
+								duration = Integer.parseInt(m.group(1)) * 3600 + Integer.parseInt(m.group(2)) * 60
+										+ Double.parseDouble(m.group(3));
+							}
+							output |= lastLine.startsWith("Output #");
+							line.setLength(0);
+						}
+					} else {
+						line.append((char) c);
+					}
+				}
+				in.close();
+			} catch (IOException ex) {
+				// ffmpeg went away, nothing left to read
+			} finally {
+				format.countDown();
+			}
+		}
+	}
+
+	/**
+	 * mono audio which is decoded while it is read. Closing the stream
+	 * releases everything needed for decoding, it must be closed also if
+	 * reading fails.
+	 */
+	public static abstract class PcmStream extends AudioSource {
+
+		protected int frameRate;
+		/**
+		 * hashes the audio while it is read, null if no fingerprint is needed
+		 */
+		protected MessageDigest sha1;
+		private String fingerprint;
+		private long framesRead = 0;
+		private boolean ended = false;
+		private long readNanos = 0;
+
+		@Override
+		public int getFrameRate() {
+			return frameRate;
+		}
+
+		@Override
+		public final int read(double[] buffer, int offset, int length) throws Exception {
+			long start = System.nanoTime();
+			int n = readPcm(buffer, offset, length);
+			framesRead += n;
+			ended |= n < length;
+			readNanos += System.nanoTime() - start;
+			return n;
+		}
+
+		/**
+		 * reads the next frames, see AudioSource.read()
+		 */
+		protected abstract int readPcm(double[] buffer, int offset, int length) throws Exception;
+
+		@Override
+		public final int skip(int frames) throws Exception {
+			long start = System.nanoTime();
+			int n = skipPcm(frames);
+			framesRead += n;
+			ended |= n < frames;
+			readNanos += System.nanoTime() - start;
+			return n;
+		}
+
+		/**
+		 * skips frames by reading them, so they are hashed for the
+		 * fingerprint. Streams which can seek should override this.
+		 *
+		 * @return the number of frames skipped
+		 */
+		protected int skipPcm(int frames) throws Exception {
+			double[] scratch = new double[Math.min(frames, READ_BUFFER_SIZE / 2)];
+			int skipped = 0;
+			while (skipped < frames) {
+				int n = readPcm(scratch, 0, Math.min(scratch.length, frames - skipped));
+				if (n == 0) {
+					break;
+				}
+				skipped += n;
+			}
+			return skipped;
+		}
+
+		/**
+		 * @return the time spent reading and decoding so far in nanoseconds
+		 */
+		public long getReadNanos() {
+			return readNanos;
+		}
+
+		/**
+		 * @return the length of the audio in seconds, estimated if the stream
+		 * hasn't been read to the end and its length isn't known in advance
+		 */
+		public double getDuration() {
+			long frames;
+			if (ended) {
+				frames = framesRead;
+			} else if (getFrameCount() >= 0) {
+				frames = getFrameCount();
+			} else {
+				frames = Math.max(framesRead, getEstimatedFrameCount());
+			}
+			return frames / (double) frameRate;
+		}
+
+		/**
+		 * starts hashing the audio, the samplerate goes first
+		 */
+		protected void startFingerprint() {
+			sha1 = ResultCache.sha1();
+			sha1.update(new byte[]{(byte) (frameRate >>> 24), (byte) (frameRate >>> 16),
+						(byte) (frameRate >>> 8), (byte) frameRate});
+		}
+
+		/**
+		 * reads the rest of the stream, if the analysis didn't need all of
+		 * it, and returns the SHA-1 hash of the samplerate and the audio as 16
+		 * bit signed little endian mono PCM data. It identifies the audio
+		 * independently of the tags and the name of the file.
+		 *
+		 * @return the hash as a hex string, null if the stream was opened
+		 * without fingerprint
+		 */
+		public String fingerprint() throws Exception {
+			if (sha1 == null || fingerprint != null) {
+				return fingerprint;
+			}
+			double[] rest = new double[READ_BUFFER_SIZE / 2];
+			while (read(rest, 0, rest.length) > 0) {
+			}
+			StringBuilder hex = new StringBuilder(40);
+			for (byte b : sha1.digest()) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			fingerprint = hex.toString();
+			return fingerprint;
+		}
+
+		public abstract void close();
+	}
+
+	/**
+	 * reads the PCM data ffmpeg writes to its output pipe
+	 */
+	private static final class FfmpegStream extends PcmStream {
+
+		private final File input;
+		private final Process ffmpeg;
+		private final StreamDrain errors;
+		private final InputStream in;
+		/**
+		 * PCM data read from the pipe, the bytes from start to end haven't
+		 * been converted yet
+		 */
+		private final byte[] bytes = new byte[READ_BUFFER_SIZE];
+		private int start = 0;
+		private int end = 0;
+		private boolean decoded = false;
+		private boolean eof = false;
+		private boolean closed = false;
+
+		FfmpegStream(File input, Process ffmpeg) throws IOException {
+			this.input = input;
+			this.ffmpeg = ffmpeg;
+			ffmpeg.getOutputStream().close();
+			errors = new StreamDrain(ffmpeg.getErrorStream());
+			errors.start();
+			in = ffmpeg.getInputStream();
+		}
+
+		/**
+		 * waits until ffmpeg decoded the first audio, which it does after it
+		 * reported the format of its output
+		 */
+		void start(boolean fingerprint) throws IOException {
+			if (!fill()) {
+				throw new IOException("ffmpeg couldn't decode " + input + ": " + errors.lastLine);
+			}
+			try {
+				errors.format.await(FORMAT_TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while decoding " + input);
+			}
+			if (errors.samplerate <= 0) {
+				throw new IOException("samplerate of " + input + " is unknown");
+			}
+			frameRate = errors.samplerate;
+			if (fingerprint) {
+				startFingerprint();
+				sha1.update(bytes, 0, end);
+			}
+		}
+
+		/**
+		 * reads the next block from the pipe, keeping the bytes which haven't
+		 * been converted yet
+		 *
+		 * @return false at the end of the PCM data
+		 */
+		private boolean fill() throws IOException {
+			if (eof) {
+				return false;
+			}
+			System.arraycopy(bytes, start, bytes, 0, end - start);
+			end -= start;
+			start = 0;
+			int n = in.read(bytes, end, bytes.length - end);
+			if (n == -1) {
+				finish();
+				return false;
+			}
+			if (sha1 != null) {
+				sha1.update(bytes, end, n);
+			}
+			end += n;
+			decoded = true;
+			return true;
+		}
+
+		/**
+		 * waits for ffmpeg to exit at the end of the PCM data. If it reports
+		 * an error after it already decoded some audio, the partially
+		 * decoded audio is used.
+		 */
+		private void finish() throws IOException {
+			eof = true;
+			int exitValue;
+			try {
+				exitValue = ffmpeg.waitFor();
+				errors.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while decoding " + input);
+			}
+			if (exitValue != 0 && decoded) {
+				Logger.getLogger(PcmDecoder.class.getName()).log(Level.WARNING,
+						"ffmpeg reported an error while decoding " + input + ": " + errors.lastLine);
+			}
+		}
+
+		@Override
+		public int getFrameCount() {
+			return -1;
+		}
+
+		/**
+		 * @return the number of frames according to the duration ffmpeg
+		 * reported for the input, -1 if it didn't
+		 */
+		@Override
+		public int getEstimatedFrameCount() {
+			double duration = errors.duration;
+			return Double.isNaN(duration) ? -1 : (int) Math.round(duration * frameRate);
+		}
+
+		@Override
+		protected int readPcm(double[] buffer, int offset, int length) throws IOException {
+			int n = 0;
+			while (n < length) {
+				if (end - start < 2) {
+					if (!fill()) {
+						break;
+					}
+					continue;
+				}
+				int frames = Math.min(length - n, (end - start) / 2);
+				for (int i = 0, j = start; i < frames; i++, j += 2) {
+					buffer[offset + n + i] = ((bytes[j + 1] << 8) | (bytes[j] & 0xff)) / 32768.0;
+				}
+				start += 2 * frames;
+				n += frames;
+			}
+			return n;
+		}
+
+		/**
+		 * stops ffmpeg if it is still running and waits until everything it
+		 * wrote to stderr has been read
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				in.close();
+			} catch (IOException ex) {
+				// nothing left to do
+			}
+			ffmpeg.destroy();
+			try {
+				errors.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * reads a PCM wav file and mixes it down to mono
+	 */
+	private static final class WavStream extends PcmStream {
+
+		private final WavFile wavFile;
+		private final int channels;
+		private final double[] samples;
+		/**
+		 * the mono audio as 16 bit PCM data, which is hashed for the
+		 * fingerprint like the output of ffmpeg
+		 */
+		private final byte[] bytes;
+
+		WavStream(WavFile wavFile, boolean fingerprint) {
+			this.wavFile = wavFile;
+			frameRate = (int) wavFile.getSampleRate();
+			channels = wavFile.getNumChannels();
+			samples = new double[READ_BUFFER_SIZE / 2 * channels];
+			bytes = new byte[READ_BUFFER_SIZE];
+			if (fingerprint) {
+				startFingerprint();
+			}
+		}
+
+		@Override
+		public int getFrameCount() {
+			return (int) wavFile.getNumFrames();
+		}
+
+		@Override
+		protected int readPcm(double[] buffer, int offset, int length) throws Exception {
+			int n = 0;
+			while (n < length) {
+				int frames = wavFile.readFrames(samples, Math.min(length - n, READ_BUFFER_SIZE / 2));
+				for (int f = 0; f < frames; f++) {
+					double mono = 0.0;
+					for (int c = 0; c < channels; c++) {
+						mono += samples[f * channels + c];
+					}
+					buffer[offset + n + f] = mono / channels;
+				}
+				if (sha1 != null) {
+					for (int f = 0; f < frames; f++) {
+						int value = (int) Math.round(buffer[offset + n + f] * 32768.0);
+						value = Math.max(-32768, Math.min(32767, value));
+						bytes[2 * f] = (byte) value;
+						bytes[2 * f + 1] = (byte) (value >> 8);
+					}
+					sha1.update(bytes, 0, 2 * frames);
+				}
+				n += frames;
+				if (frames == 0) {
+					break;
+				}
+			}
+			return n;
+		}
+
+		/**
+		 * seeks in the file, unless the skipped frames are needed for the
+		 * fingerprint
+		 */
+		@Override
+		protected int skipPcm(int frames) throws Exception {
+			if (sha1 != null) {
+				return super.skipPcm(frames);
+			}
+			int n = (int) Math.min(frames, wavFile.getFramesRemaining());
+			wavFile.seek(wavFile.getNumFrames() - wavFile.getFramesRemaining() + n);
+			return n;
+		}
+
+		@Override
+		public void close() {
+			try {
+				wavFile.close();
+			} catch (IOException ex) {
+				// nothing left to do
+			}
+		}
+	}
+
+	/**
+	 * Starts decoding an audio file to mono audio with the samplerate of the
+	 * file. The audio is decoded while it is read from the returned stream,
+	 * which must be closed, also if reading fails. If ffmpeg reports an error
+	 * after it already decoded some audio, the stream ends with the partially
+	 * decoded audio.
+	 *
+	 * @param input an audio file which will be decoded
+	 * @param fingerprint true if the audio should be hashed while it is read,
+	 * see PcmStream.fingerprint()
+	 * @return the decoded audio
+	 * @throws IOException if ffmpeg couldn't be started or didn't decode
+	 * anything
+	 */
+	public static PcmStream open(File input, boolean fingerprint) throws IOException {
+		if (!input.isFile()) {
+			throw new IOException("file not found: " + input);
+		}
+		if (input.getName().toLowerCase().endsWith(".wav")) {
+			PcmStream wav = openWav(input, fingerprint);
+			if (wav != null) {
+				return wav;
+			}
+		}
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(locator.getPath());
+		command.add("-i");
+		command.add(input.getAbsolutePath());
+		command.add("-vn");
+		command.add("-acodec");
+		command.add("pcm_s16le");
+		command.add("-f");
+		command.add("s16le");
+		command.add("-ac");
+		command.add("1");
+		command.add("-");
+		ProcessBuilder pb = new ProcessBuilder(command);
+		FfmpegStream stream = new FfmpegStream(input, pb.start());
+		boolean started = false;
+		try {
+			stream.start(fingerprint);
+			started = true;
+			return stream;
+		} finally {
+			if (!started) {
+				stream.close();
+			}
+		}
+	}
+
+	/**
+	 * @return a stream reading the wav file, or null if WavFile can't read
+	 * the file, so ffmpeg has to decode it
+	 */
+	private static PcmStream openWav(File input, boolean fingerprint) {
+		WavFile wavFile;
+		try {
+			wavFile = WavFile.openWavFile(input);
+		} catch (Exception ex) {
+			// e.g. compressed or unusual header, leave it to ffmpeg
+			Logger.getLogger(PcmDecoder.class.getName()).log(Level.FINE, "can't read " + input + ", using ffmpeg", ex);
+			return null;
+		}
+		if (wavFile.getNumFrames() == 0 || wavFile.getNumFrames() > Integer.MAX_VALUE) {
+			try {
+				wavFile.close();
+			} catch (IOException ex) {
+				// nothing left to do
+			}
+			return null;
+		}
+		return new WavStream(wavFile, fingerprint);
+	}
+}
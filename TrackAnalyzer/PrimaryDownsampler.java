@@ -24,141 +24,422 @@
 ************************************************************************/ 
 package TrackAnalyzer;
 
+import java.util.Arrays;
+
 /**
+ * Decimates audio by an integer factor, with a linear phase FIR lowpass
+ * filter in front. The filter is only evaluated for the output samples, and
+ * the input is processed chunk by chunk, so streams of any length can be
+ * decimated with a small buffer.
  *
- * Decent raised cosine filter, designed using A J Fisher's tool
- * at http://www-users.cs.york.ac.uk/~fisher/mkfilter I usually need a filter
- * that lowpasses under 1760 Hz, with the rolloff complete before the new
- * Nyquist (2205 Hz for a 10x downsample). That's 0.05 of 44100, for the
- * visualiser.
+ * For 44100 fs and 10x ds there's a decent raised cosine filter, designed
+ * using A J Fisher's tool at http://www-users.cs.york.ac.uk/~fisher/mkfilter
+ * I usually need a filter that lowpasses under 1760 Hz, with the rolloff
+ * complete before the new Nyquist (2205 Hz for a 10x downsample). That's 0.05
+ * of 44100, for the visualiser.
  *
  * Input to Fisher's tool: 44100, 2000, 0, 161, square root, no comp fn, hamming
  * window.
  *
- * IMPORTANT: The filter coefficients are all magic numbers, so this downsampler
- * is only for 44100 fs, 10x ds.
+ * Other frame rates and factors use a Hamming windowed sinc filter with the
+ * same relative cutoff (0.907 of the new Nyquist) and 16 taps per factor.
  */
 public class PrimaryDownsampler {
 
+    /**
+     * lowest frame rate the key detector works with, its highest bin is at
+     * 1760 Hz
+     */
+    public static final int KEY_FRAME_RATE = 4410;
+    // filter coefficients for 44100 fs, 10x ds
+    private static final double[] B_44100_10 = {
+        // 2000, 0, 161, sqrt, hamming.
+        -0.0022979864, -0.0014851155, -0.0005276345, +0.0005287637,
+        +0.0016288105, +0.0027066298, +0.0036859262, +0.0044820600,
+        +0.0050064517, +0.0051734225, +0.0049091760, +0.0041622026,
+        +0.0029140060, +0.0011887658, -0.0009395862, -0.0033443515,
+        -0.0058483343, -0.0082321768, -0.0102489292, -0.0116443067,
+        -0.0121813339, -0.0116673677, -0.0099809222, -0.0070953669,
+        -0.0030964983, +0.0018087642, +0.0072947272, +0.0129315999,
+        +0.0182126619, +0.0225928091, +0.0255360681, +0.0265684688,
+        +0.0253317039, +0.0216323992, +0.0154816648, +0.0071199603,
+        -0.0029768131, -0.0141127078, -0.0254095608, -0.0358661777,
+        -0.0444356705, -0.0501157252, -0.0520448654, -0.0495965416,
+        -0.0424622921, -0.0307153754, -0.0148472270, +0.0042291942,
+        +0.0252127139, +0.0464845605, +0.0662137647, +0.0824916099,
+        +0.0934864451, +0.0976077458, +0.0936666466, +0.0810194757,
+        +0.0596811993, +0.0303971839, -0.0053357703, -0.0453047237,
+        -0.0866737087, -0.1261316811, -0.1600878564, -0.1849028543,
+        -0.1971406561, -0.1938239736, -0.1726744703, -0.1323195052,
+        -0.0724487288, +0.0060931437, +0.1012868940, +0.2099971950,
+        +0.3281078087, +0.4507269541, +0.5724509503, +0.6876697384,
+        +0.7908945043, +0.8770856432, +0.9419588972, +0.9822487143,
+        +0.9959106445, +0.9822487143, +0.9419588972, +0.8770856432,
+        +0.7908945043, +0.6876697384, +0.5724509503, +0.4507269541,
+        +0.3281078087, +0.2099971950, +0.1012868940, +0.0060931437,
+        -0.0724487288, -0.1323195052, -0.1726744703, -0.1938239736,
+        -0.1971406561, -0.1849028543, -0.1600878564, -0.1261316811,
+        -0.0866737087, -0.0453047237, -0.0053357703, +0.0303971839,
+        +0.0596811993, +0.0810194757, +0.0936666466, +0.0976077458,
+        +0.0934864451, +0.0824916099, +0.0662137647, +0.0464845605,
+        +0.0252127139, +0.0042291942, -0.0148472270, -0.0307153754,
+        -0.0424622921, -0.0495965416, -0.0520448654, -0.0501157252,
+        -0.0444356705, -0.0358661777, -0.0254095608, -0.0141127078,
+        -0.0029768131, +0.0071199603, +0.0154816648, +0.0216323992,
+        +0.0253317039, +0.0265684688, +0.0255360681, +0.0225928091,
+        +0.0182126619, +0.0129315999, +0.0072947272, +0.0018087642,
+        -0.0030964983, -0.0070953669, -0.0099809222, -0.0116673677,
+        -0.0121813339, -0.0116443067, -0.0102489292, -0.0082321768,
+        -0.0058483343, -0.0033443515, -0.0009395862, +0.0011887658,
+        +0.0029140060, +0.0041622026, +0.0049091760, +0.0051734225,
+        +0.0050064517, +0.0044820600, +0.0036859262, +0.0027066298,
+        +0.0016288105, +0.0005287637, -0.0005276345, -0.0014851155,
+        -0.0022979864
+    };
+    private static final float GAIN_44100_10 = (float) 11.03969310;
+
+    /**
+     * @param frameRate the frame rate of the decoded audio
+     * @return the largest factor which divides frameRate and keeps the
+     * downsampled frame rate at or above KEY_FRAME_RATE, e.g. 10 for 44100 and
+     * 48000 Hz, 20 for 96000 Hz
+     */
+    public static int getKeyDownsampleFactor(int frameRate) {
+        for (int factor = frameRate / KEY_FRAME_RATE; factor > 1; factor--) {
+            if (frameRate % factor == 0) {
+                return factor;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return lowpass filter coefficients with a DC gain of 1 for decimating
+     * by factor
+     */
+    static double[] lowpass(int frameRate, int factor) {
+        if (frameRate == 44100 && factor == 10) {
+            double[] b = new double[B_44100_10.length];
+            for (int k = 0; k < b.length; k++) {
+                b[k] = B_44100_10[k] / GAIN_44100_10;
+            }
+            return b;
+        }
+        int filterOrder = 16 * factor;
+        double cutoff = 0.907 * 0.5 / factor;
+        double[] b = new double[filterOrder + 1];
+        double sum = 0.0;
+        for (int k = 0; k <= filterOrder; k++) {
+            double x = k - filterOrder / 2;
+            double sinc = (x == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            b[k] = sinc * (0.54 - 0.46 * Math.cos(2 * Math.PI * k / filterOrder));
+            sum += b[k];
+        }
+        for (int k = 0; k <= filterOrder; k++) {
+            b[k] /= sum;
+        }
+        return b;
+    }
+
     public AudioData downsample(AudioData audioIn, int factor) throws Exception {
         if (factor == 1) {
             return audioIn;
         }
+        int c = audioIn.getChannels();
+        int framesIn = audioIn.getSampleCount() / c;
+        int framesOut = (framesIn + factor - 1) / factor;
         // prep output buffer
         AudioData audioOut = new AudioData();
         audioOut.setFrameRate(audioIn.getFrameRate() / factor);
-        audioOut.setChannels(audioIn.getChannels());
-        int c = audioIn.getChannels();
-        int ns = audioIn.getSampleCount() / factor;
-        while (ns % c != 0) {
-            ns++;
-        }
-        if (audioIn.getSampleCount() % factor > 0) {
-            ns += c;
-        }
-        audioOut.addToSampleCount(ns);
-        // prep filter
-        int filterOrder = 160;
-        float gain = (float) 11.03969310;
-        int filterDelay = filterOrder / 2;
-        // create circular buffer for filter delay
-        Binode p = new Binode(); // first node
-        Binode q = p;
-        for (int i = 0; i < filterOrder; i++) {
-            q.r = new Binode(); // subsequent nodes
-            q.r.l = q;
-            q = q.r;
-        }
-
-        // join first and last nodes
-        p.l = q;
-        q.r = p;
-        // filter coefficients
-        double b[] = {
-            // 2000, 0, 161, sqrt, hamming.
-            -0.0022979864, -0.0014851155, -0.0005276345, +0.0005287637,
-            +0.0016288105, +0.0027066298, +0.0036859262, +0.0044820600,
-            +0.0050064517, +0.0051734225, +0.0049091760, +0.0041622026,
-            +0.0029140060, +0.0011887658, -0.0009395862, -0.0033443515,
-            -0.0058483343, -0.0082321768, -0.0102489292, -0.0116443067,
-            -0.0121813339, -0.0116673677, -0.0099809222, -0.0070953669,
-            -0.0030964983, +0.0018087642, +0.0072947272, +0.0129315999,
-            +0.0182126619, +0.0225928091, +0.0255360681, +0.0265684688,
-            +0.0253317039, +0.0216323992, +0.0154816648, +0.0071199603,
-            -0.0029768131, -0.0141127078, -0.0254095608, -0.0358661777,
-            -0.0444356705, -0.0501157252, -0.0520448654, -0.0495965416,
-            -0.0424622921, -0.0307153754, -0.0148472270, +0.0042291942,
-            +0.0252127139, +0.0464845605, +0.0662137647, +0.0824916099,
-            +0.0934864451, +0.0976077458, +0.0936666466, +0.0810194757,
-            +0.0596811993, +0.0303971839, -0.0053357703, -0.0453047237,
-            -0.0866737087, -0.1261316811, -0.1600878564, -0.1849028543,
-            -0.1971406561, -0.1938239736, -0.1726744703, -0.1323195052,
-            -0.0724487288, +0.0060931437, +0.1012868940, +0.2099971950,
-            +0.3281078087, +0.4507269541, +0.5724509503, +0.6876697384,
-            +0.7908945043, +0.8770856432, +0.9419588972, +0.9822487143,
-            +0.9959106445, +0.9822487143, +0.9419588972, +0.8770856432,
-            +0.7908945043, +0.6876697384, +0.5724509503, +0.4507269541,
-            +0.3281078087, +0.2099971950, +0.1012868940, +0.0060931437,
-            -0.0724487288, -0.1323195052, -0.1726744703, -0.1938239736,
-            -0.1971406561, -0.1849028543, -0.1600878564, -0.1261316811,
-            -0.0866737087, -0.0453047237, -0.0053357703, +0.0303971839,
-            +0.0596811993, +0.0810194757, +0.0936666466, +0.0976077458,
-            +0.0934864451, +0.0824916099, +0.0662137647, +0.0464845605,
-            +0.0252127139, +0.0042291942, -0.0148472270, -0.0307153754,
-            -0.0424622921, -0.0495965416, -0.0520448654, -0.0501157252,
-            -0.0444356705, -0.0358661777, -0.0254095608, -0.0141127078,
-            -0.0029768131, +0.0071199603, +0.0154816648, +0.0216323992,
-            +0.0253317039, +0.0265684688, +0.0255360681, +0.0225928091,
-            +0.0182126619, +0.0129315999, +0.0072947272, +0.0018087642,
-            -0.0030964983, -0.0070953669, -0.0099809222, -0.0116673677,
-            -0.0121813339, -0.0116443067, -0.0102489292, -0.0082321768,
-            -0.0058483343, -0.0033443515, -0.0009395862, +0.0011887658,
-            +0.0029140060, +0.0041622026, +0.0049091760, +0.0051734225,
-            +0.0050064517, +0.0044820600, +0.0036859262, +0.0027066298,
-            +0.0016288105, +0.0005287637, -0.0005276345, -0.0014851155,
-            -0.0022979864
-        };
-
+        audioOut.setChannels(c);
+        audioOut.addToSampleCount(framesOut * c);
+        double[] out = audioOut.getSamples();
+        double[] buffer = new double[Math.min(framesOut, CHUNK_SIZE)];
         // for each channel (should be mono by this point but just in case)
         for (int i = 0; i < c; i++) {
-            q = p;
-            // clear delay buffer
-            for (int k = 0; k <= filterOrder; k++) {
-                q.n = 0.0;
-                q = q.r;
+            AudioSource channel = downsample(AudioSource.fromAudioData(audioIn, i), factor);
+            int m = 0;
+            int n;
+            while ((n = channel.read(buffer, 0, buffer.length)) > 0) {
+                for (int j = 0; j < n; j++, m++) {
+                    out[m * c + i] = buffer[j];
+                }
+            }
+        }
+        return audioOut;
+    }
+
+    /**
+     * decimates a stream chunk by chunk, only filterOrder + CHUNK_SIZE *
+     * factor input frames are held in memory.
+     *
+     * @return the downsampled stream with (frames + factor - 1) / factor
+     * frames
+     */
+    public AudioSource downsample(AudioSource in, int factor) {
+        if (factor == 1) {
+            return in;
+        }
+        return new DecimatingSource(in, factor);
+    }
+
+    /**
+     * number of output frames computed per chunk of input
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * applies the filter b to x[start ... start + b.length - 1]
+     *
+     * @return one output frame
+     */
+    private static double filter(double[] b, double[] x, int start) {
+        int filterOrder = b.length - 1;
+        // four partial sums, so the additions don't all wait for each other
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int k = 0;
+        for (; k + 3 <= filterOrder; k += 4) {
+            s0 += b[k] * x[start + k];
+            s1 += b[k + 1] * x[start + k + 1];
+            s2 += b[k + 2] * x[start + k + 2];
+            s3 += b[k + 3] * x[start + k + 3];
+        }
+        for (; k <= filterOrder; k++) {
+            s0 += b[k] * x[start + k];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Decimates audio which is passed in block by block as it arrives, e.g.
+     * while it is recorded, instead of being read from an AudioSource. The
+     * output is the same as the one of downsample(AudioSource, int) for the
+     * same input, once finish() has been called. Only the last filterOrder
+     * input frames are kept between blocks.
+     */
+    public static final class Decimator {
+
+        private final int factor;
+        private final double[] b;
+        private final int filterOrder;
+        /**
+         * input frames which are still needed, preceded by filterOrder / 2
+         * zeros at the start of the stream like in DecimatingSource. The
+         * next output frame is the filter applied to x[0 ... filterOrder].
+         */
+        private final double[] x;
+        private int xLength;
+        private long framesIn = 0;
+        private long framesOut = 0;
+
+        /**
+         * @param frameRate the frame rate of the input
+         * @param factor the decimation factor
+         */
+        public Decimator(int frameRate, int factor) {
+            this.factor = factor;
+            b = lowpass(frameRate, factor);
+            filterOrder = b.length - 1;
+            x = new double[filterOrder + factor + CHUNK_SIZE * factor];
+            xLength = filterOrder / 2;
+        }
+
+        /**
+         * decimates the next block of input.
+         *
+         * @param out receives the output frames, needs room for (length +
+         * factor - 1) / factor frames
+         * @return the number of output frames written to out
+         */
+        public int process(double[] in, int offset, int length, double[] out, int outOffset) {
+            int n = 0;
+            while (length > 0) {
+                int chunk = Math.min(length, x.length - xLength);
+                System.arraycopy(in, offset, x, xLength, chunk);
+                xLength += chunk;
+                framesIn += chunk;
+                offset += chunk;
+                length -= chunk;
+                n += decimate(out, outOffset + n, Long.MAX_VALUE);
             }
-            // for each frame (running off the end of the file by filterDelay)
-            for (int j = i; j < audioIn.getSampleCount() + filterDelay; j += c) {
+            return n;
+        }
 
-                // shuffle old samples along delay buffer
-                p = p.r;
+        /**
+         * pads the input with zeros, like at the end of a stream, and
+         * computes the remaining output frames, so that the output has (input
+         * frames + factor - 1) / factor frames. No more input may be passed
+         * in afterwards.
+         *
+         * @return the remaining output frames
+         */
+        public double[] finish() {
+            Arrays.fill(x, xLength, xLength + filterOrder + factor, 0.0);
+            xLength += filterOrder + factor;
+            double[] out = new double[filterOrder / factor + 2];
+            int n = decimate(out, 0, (framesIn + factor - 1) / factor);
+            return Arrays.copyOf(out, n);
+        }
+
+        /**
+         * computes the output frames for which all input is there, up to
+         * output frame limit, and drops the input which isn't needed anymore
+         *
+         * @return the number of output frames
+         */
+        private int decimate(double[] out, int outOffset, long limit) {
+            int n = 0;
+            int start = 0;
+            while (start + filterOrder < xLength && framesOut < limit) {
+                out[outOffset + n] = filter(b, x, start);
+                n++;
+                framesOut++;
+                start += factor;
+            }
+            System.arraycopy(x, start, x, 0, xLength - start);
+            xLength -= start;
+            return n;
+        }
+    }
 
-                // load new sample into delay buffer
-                if (j < audioIn.getSampleCount()) {
-                    p.l.n = audioIn.getSample(j) / gain;
-                } else {
-                    p.l.n = 0.0; // zero pad once we're into the delay at the end of the file
+    private static final class DecimatingSource extends AudioSource {
+
+        private final AudioSource in;
+        private final int factor;
+        private final double[] b;
+        private final int filterOrder;
+        /**
+         * input frames, preceded by filterOrder / 2 zeros, so output frame m
+         * is the filter applied to x[m * factor ... m * factor + filterOrder]
+         * (relative to the start of the padded input)
+         */
+        private final double[] x;
+        /**
+         * index of x[0] in the padded input
+         */
+        private int xStart = 0;
+        /**
+         * number of valid values in x
+         */
+        private int xLength;
+        private int framesIn = 0;
+        private boolean eof = false;
+        private int framesOut = -1;
+        private int position = 0;
+
+        DecimatingSource(AudioSource in, int factor) {
+            this.in = in;
+            this.factor = factor;
+            b = lowpass(in.getFrameRate(), factor);
+            filterOrder = b.length - 1;
+            x = new double[filterOrder + factor + CHUNK_SIZE * factor];
+            xLength = filterOrder / 2; // zeros for the filter warm-up
+            if (in.getFrameCount() >= 0) {
+                framesOut = (in.getFrameCount() + factor - 1) / factor;
+            }
+        }
+
+        @Override
+        public int getFrameRate() {
+            return in.getFrameRate() / factor;
+        }
+
+        @Override
+        public int getFrameCount() {
+            return framesOut;
+        }
+
+        @Override
+        public int getEstimatedFrameCount() {
+            if (framesOut >= 0) {
+                return framesOut;
+            }
+            int estimate = in.getEstimatedFrameCount();
+            return estimate < 0 ? -1 : (estimate + factor - 1) / factor;
+        }
+
+        /**
+         * drops the input frames which are not needed anymore and reads the
+         * next chunk. At the end of the input, the input is zero padded by
+         * filterOrder / 2 frames.
+         *
+         * @return false if there's nothing left to compute
+         */
+        private boolean fill() throws Exception {
+            int keep = position * factor - xStart;
+            System.arraycopy(x, keep, x, 0, xLength - keep);
+            xStart += keep;
+            xLength -= keep;
+            if (!eof) {
+                int n = in.read(x, xLength, x.length - xLength);
+                framesIn += n;
+                xLength += n;
+                if (n > 0) {
+                    return true;
                 }
-                if ((j % (factor * c)) < c) { // only do the maths for the useful samples
-                    double sum = 0.0;
-                    q = p;
-                    for (int k = 0; k <= filterOrder; k++) {
-                        sum += b[k] * q.n;
-                        q = q.r;
-                    }
-                    // don't try and set samples during the warm-up, only once we've passed filterDelay samples
-                    if (j - filterDelay >= 0) {
-                        audioOut.setSample(((j - filterDelay) / factor) + i, sum);
+                eof = true;
+                framesOut = (framesIn + factor - 1) / factor;
+            }
+            // the input is exhausted, pad with zeros
+            int padded = Math.min(x.length, xLength + filterOrder + factor);
+            Arrays.fill(x, xLength, padded, 0.0);
+            boolean progress = padded > xLength;
+            xLength = padded;
+            return progress;
+        }
+
+        @Override
+        public int read(double[] buffer, int offset, int length) throws Exception {
+            int n = 0;
+            while (n < length && (framesOut < 0 || position < framesOut)) {
+                int start = position * factor - xStart;
+                if (start + filterOrder >= xLength) {
+                    if (!fill()) {
+                        break;
                     }
+                    continue;
                 }
+                buffer[offset + n] = filter(b, x, start);
+                n++;
+                position++;
             }
+            return n;
         }
-        // delete delay buffer
-        for (int k = 0; k <= filterOrder; k++) {
-            q = p;
-            p = p.r;
-            q = null;
+
+        /**
+         * skips output frames without filtering them. Input frames which no
+         * output frame needs anymore are skipped in the input, so a source
+         * which can seek doesn't read them.
+         */
+        @Override
+        public int skip(int frames) throws Exception {
+            int target = position + frames;
+            if (framesOut >= 0) {
+                target = Math.min(target, framesOut);
+            }
+            int gap = target * factor - (xStart + xLength);
+            if (gap > 0) {
+                // none of the buffered input is needed anymore
+                xStart += xLength;
+                xLength = 0;
+                if (!eof) {
+                    int n = in.skip(gap);
+                    framesIn += n;
+                    xStart += n;
+                    if (n < gap) {
+                        eof = true;
+                        framesOut = (framesIn + factor - 1) / factor;
+                        target = Math.min(target, framesOut);
+                    }
+                }
+                // past the end of the input there are only zeros
+                if (eof) {
+                    xStart = Math.max(xStart, target * factor);
+                }
+            }
+            int skipped = Math.max(0, target - position);
+            position += skipped;
+            return skipped;
         }
-        return audioOut;
     }
-};
\ No newline at end of file
+}
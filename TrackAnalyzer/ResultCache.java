@@ -0,0 +1,518 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent store of analysis results, so a run skips every track an
+ * earlier run has already analysed with the same settings. Results are keyed
+ * by a fingerprint of the decoded audio (see
+ * PcmDecoder.PcmStream.fingerprint()) and a hash of the settings (see
+ * settingsHash()). The fingerprint is computed while a track is decoded for
+ * the analysis, decoding a file just to compute it would make a cache hit
+ * almost as expensive as the analysis. So the fingerprint of every file is
+ * also remembered together with its length and modification time. As long as
+ * these are unchanged, looking up a result costs two HashMap lookups and a
+ * stat of the file; a renamed, moved or otherwise changed file is analysed
+ * again. Writing tags changes the
+ * file, so the new length and modification time are recorded afterwards.
+ *
+ * The store is an append-only log which is read into memory when it is
+ * opened. Every record is appended with a single write, so a crash leaves at
+ * most one incomplete record at the end, which is cut off on the next open.
+ * Records which have been superseded are dropped by rewriting the log when
+ * there are too many of them. Runs sharing a cache may append concurrently,
+ * but a run doesn't see results another run appended after it opened the
+ * log, and records appended while another run rewrites the log are lost
+ * (the tracks are analysed again next time).
+ *
+ * File format (big endian): MAGIC, VERSION, then records, each consisting of
+ * its length in bytes (not counting the length itself) and a record type
+ * followed by
+ * FILE_RECORD: path, length, modification time, fingerprint, settings hash
+ * the tags were written with (0 if they weren't)
+ * RESULT_RECORD: fingerprint, settings hash, key, key confidence, tuning
+ * offset, bpm, bpm confidence, duration, number of segments, first window,
+ * last window, key, energy and confidence of each segment.
+ * Strings are written with DataOutputStream.writeUTF(), keys as ordinals.
+ */
+public class ResultCache {
+
+	private static final int MAGIC = 0x54414b52; // "TAKR"
+	/**
+	 * increment when the file format or the analysis changes, so old results
+	 * are dropped
+	 */
+	private static final int VERSION = 4;
+	private static final byte FILE_RECORD = 1;
+	private static final byte RESULT_RECORD = 2;
+	/**
+	 * the log is rewritten when it has more than COMPACT_RATIO times as many
+	 * records as are still in use (plus COMPACT_SLACK)
+	 */
+	private static final int COMPACT_RATIO = 2;
+	private static final int COMPACT_SLACK = 1000;
+	/**
+	 * a record can't be longer, a longer length means the log is broken
+	 */
+	private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+	/**
+	 * a cached result
+	 */
+	public static final class Result {
+
+		final String fingerprint;
+		final long settings;
+		public final Parameters.key_t key;
+		public final float confidence;
+		public final float tuningOffset;
+		public final double bpm;
+		public final float bpmConfidence;
+		/**
+		 * duration of the audio in seconds, NaN if it wasn't decoded
+		 */
+		public final float duration;
+		final KeyDetectionSegment[] segments;
+
+		Result(String fingerprint, long settings, Parameters.key_t key, float confidence, float tuningOffset,
+				double bpm, float bpmConfidence, float duration, KeyDetectionSegment[] segments) {
+			this.fingerprint = fingerprint;
+			this.settings = settings;
+			this.key = key;
+			this.confidence = confidence;
+			this.tuningOffset = tuningOffset;
+			this.bpm = bpm;
+			this.bpmConfidence = bpmConfidence;
+			this.duration = duration;
+			this.segments = segments;
+		}
+
+		/**
+		 * @return the key and the segments as a KeyDetectionResult, without
+		 * chromagrams and harmonic change signal
+		 */
+		public KeyDetectionResult toKeyDetectionResult() {
+			KeyDetectionResult r = new KeyDetectionResult();
+			r.globalKeyEstimate = key;
+			r.confidence = confidence;
+			r.tuningOffset = tuningOffset;
+			for (KeyDetectionSegment s : segments) {
+				KeyDetectionSegment copy = new KeyDetectionSegment();
+				copy.firstWindow = s.firstWindow;
+				copy.lastWindow = s.lastWindow;
+				copy.key = s.key;
+				copy.energy = s.energy;
+				copy.confidence = s.confidence;
+				r.segments.add(copy);
+			}
+			return r;
+		}
+	}
+
+	/**
+	 * what is known about a file
+	 */
+	private static final class FileEntry {
+
+		final long length;
+		final long lastModified;
+		final String fingerprint;
+		final long taggedSettings;
+
+		FileEntry(long length, long lastModified, String fingerprint, long taggedSettings) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.fingerprint = fingerprint;
+			this.taggedSettings = taggedSettings;
+		}
+
+		boolean matches(File file) {
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+	private static final Parameters.key_t[] KEYS = Parameters.key_t.values();
+	private final File file;
+	private final HashMap<String, FileEntry> files = new HashMap<String, FileEntry>();
+	private final HashMap<String, Result> results = new HashMap<String, Result>();
+	/**
+	 * number of records in the log, including superseded ones
+	 */
+	private int records = 0;
+	private FileOutputStream out;
+
+	/**
+	 * opens the log, creating it if necessary
+	 *
+	 * @param file the log file
+	 * @throws IOException if the log can't be created or written
+	 */
+	public ResultCache(File file) throws IOException {
+		this.file = file;
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can't create " + dir);
+		}
+		long valid = load();
+		if (valid < 0 || records > COMPACT_RATIO * (files.size() + results.size()) + COMPACT_SLACK) {
+			rewrite();
+		} else if (valid < file.length()) {
+			// incomplete record at the end, left by a crash
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+		out = new FileOutputStream(file, true);
+	}
+
+	/**
+	 * @return the default log file, --cachedir replaces the .trackanalyzer
+	 * part
+	 */
+	public static File getDefaultFile() {
+		return new File(new File(System.getProperty("user.home"), ".trackanalyzer"), "results");
+	}
+
+	/**
+	 * @param settings a description of everything the results depend on
+	 * besides the audio, e.g. Parameters.describe() and the bpm engine
+	 * @return a hash of the settings, never 0
+	 */
+	public static long settingsHash(String settings) {
+		byte[] digest = sha1().digest(settings.getBytes());
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash != 0 ? hash : 1;
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			// every Java platform has to support SHA-1
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * @return the fingerprint of the audio in a file, or null if the file is
+	 * unknown or has changed since the fingerprint was recorded
+	 */
+	public synchronized String getFingerprint(File f) {
+		FileEntry e = files.get(f.getAbsolutePath());
+		return e != null && e.matches(f) ? e.fingerprint : null;
+	}
+
+	/**
+	 * @return true if the tags of a file were written with the result for
+	 * these settings and the file hasn't changed since
+	 */
+	public synchronized boolean isTagged(File f, long settings) {
+		FileEntry e = files.get(f.getAbsolutePath());
+		return e != null && e.taggedSettings == settings && e.matches(f);
+	}
+
+	/**
+	 * @return the result for the audio with this fingerprint and these
+	 * settings, or null if there is none
+	 */
+	public synchronized Result get(String fingerprint, long settings) {
+		return results.get(resultKey(fingerprint, settings));
+	}
+
+	/**
+	 * stores a result, errors are only logged
+	 *
+	 * @param duration duration of the audio in seconds, NaN if unknown
+	 */
+	public synchronized void put(String fingerprint, long settings, KeyDetectionResult keyResult, double bpm,
+			double bpmConfidence, double duration) {
+		KeyDetectionSegment[] segments = keyResult.segments.toArray(new KeyDetectionSegment[keyResult.segments.size()]);
+		Result r = new Result(fingerprint, settings, keyResult.globalKeyEstimate, keyResult.confidence,
+				keyResult.tuningOffset, bpm, (float) bpmConfidence, (float) duration, segments);
+		results.put(resultKey(fingerprint, settings), r);
+		append(resultRecord(r));
+	}
+
+	/**
+	 * records the fingerprint of a file as it is now, i.e. after tags have
+	 * been written. Errors are only logged.
+	 *
+	 * @param taggedSettings the settings hash of the result which was just
+	 * written to the tags, 0 if the tags weren't written. In that case tags
+	 * written by an earlier run are still recorded, if the file hasn't
+	 * changed.
+	 */
+	public synchronized void putFile(File f, String fingerprint, long taggedSettings) {
+		String path = f.getAbsolutePath();
+		FileEntry old = files.get(path);
+		if (taggedSettings == 0 && old != null && old.fingerprint.equals(fingerprint) && old.matches(f)) {
+			return;
+		}
+		FileEntry e = new FileEntry(f.length(), f.lastModified(), fingerprint, taggedSettings);
+		if (old != null && old.fingerprint.equals(fingerprint) && old.taggedSettings == taggedSettings
+				&& old.length == e.length && old.lastModified == e.lastModified) {
+			return;
+		}
+		files.put(path, e);
+		append(fileRecord(path, e));
+	}
+
+	/**
+	 * closes the log, it can't be used afterwards
+	 */
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException ex) {
+			Logger.getLogger(ResultCache.class.getName()).log(Level.FINE, "can't close " + file, ex);
+		}
+	}
+
+	private static String resultKey(String fingerprint, long settings) {
+		return fingerprint + ":" + Long.toHexString(settings);
+	}
+
+	private void append(byte[] record) {
+		try {
+			out.write(record);
+			records++;
+		} catch (IOException ex) {
+			Logger.getLogger(ResultCache.class.getName()).log(Level.FINE, "can't write to " + file, ex);
+		}
+	}
+
+	/**
+	 * reads all records into the maps
+	 *
+	 * @return the length of the complete records including the header, -1 if
+	 * the log doesn't exist or has an unknown format
+	 */
+	private long load() {
+		if (!file.isFile()) {
+			return -1;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return -1;
+				}
+				long valid = 8;
+				byte[] record = new byte[256];
+				while (true) {
+					int length;
+					try {
+						length = in.readInt();
+						if (length <= 0 || length > MAX_RECORD_LENGTH) {
+							throw new IOException("bad record length " + length);
+						}
+						if (length > record.length) {
+							record = new byte[Math.max(length, 2 * record.length)];
+						}
+						in.readFully(record, 0, length);
+					} catch (EOFException ex) {
+						return valid;
+					}
+					readRecord(new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+					records++;
+					valid += 4 + length;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Exception ex) {
+			// broken log (IOException, or e.g. an ArrayIndexOutOfBoundsException for garbage), start over
+			Logger.getLogger(ResultCache.class.getName()).log(Level.FINE, "can't read " + file, ex);
+			files.clear();
+			results.clear();
+			records = 0;
+			return -1;
+		}
+	}
+
+	private void readRecord(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == FILE_RECORD) {
+			String path = in.readUTF();
+			FileEntry e = new FileEntry(in.readLong(), in.readLong(), in.readUTF(), in.readLong());
+			files.put(path, e);
+		} else if (type == RESULT_RECORD) {
+			String fingerprint = in.readUTF();
+			long settings = in.readLong();
+			Parameters.key_t key = readKey(in);
+			float confidence = in.readFloat();
+			float tuningOffset = in.readFloat();
+			double bpm = in.readDouble();
+			float bpmConfidence = in.readFloat();
+			float duration = in.readFloat();
+			int count = in.readInt();
+			if (count < 0 || count > in.available()) {
+				throw new IOException("bad segment count " + count);
+			}
+			KeyDetectionSegment[] segments = new KeyDetectionSegment[count];
+			for (int i = 0; i < segments.length; i++) {
+				KeyDetectionSegment s = new KeyDetectionSegment();
+				s.firstWindow = in.readInt();
+				s.lastWindow = in.readInt();
+				s.key = readKey(in);
+				s.energy = in.readFloat();
+				s.confidence = in.readFloat();
+				segments[i] = s;
+			}
+			results.put(resultKey(fingerprint, settings), new Result(fingerprint, settings, key, confidence, tuningOffset,
+					bpm, bpmConfidence, duration, segments));
+		} else {
+			throw new IOException("unknown record type " + type);
+		}
+	}
+
+	private static Parameters.key_t readKey(DataInputStream in) throws IOException {
+		int key = in.readByte();
+		if (key < 0 || key >= KEYS.length) {
+			throw new IOException("bad key " + key);
+		}
+		return KEYS[key];
+	}
+
+	private static byte[] fileRecord(String path, FileEntry e) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream record = beginRecord(bytes, FILE_RECORD);
+			record.writeUTF(path);
+			record.writeLong(e.length);
+			record.writeLong(e.lastModified);
+			record.writeUTF(e.fingerprint);
+			record.writeLong(e.taggedSettings);
+			return endRecord(bytes);
+		} catch (IOException ex) {
+			// can't happen with a ByteArrayOutputStream
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static byte[] resultRecord(Result r) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream record = beginRecord(bytes, RESULT_RECORD);
+			record.writeUTF(r.fingerprint);
+			record.writeLong(r.settings);
+			record.writeByte(r.key.ordinal());
+			record.writeFloat(r.confidence);
+			record.writeFloat(r.tuningOffset);
+			record.writeDouble(r.bpm);
+			record.writeFloat(r.bpmConfidence);
+			record.writeFloat(r.duration);
+			record.writeInt(r.segments.length);
+			for (KeyDetectionSegment s : r.segments) {
+				record.writeInt(s.firstWindow);
+				record.writeInt(s.lastWindow);
+				record.writeByte(s.key.ordinal());
+				record.writeFloat(s.energy);
+				record.writeFloat(s.confidence);
+			}
+			return endRecord(bytes);
+		} catch (IOException ex) {
+			// can't happen with a ByteArrayOutputStream
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * @return a stream writing the type of a record after space for its
+	 * length, which is filled in by endRecord()
+	 */
+	private static DataOutputStream beginRecord(ByteArrayOutputStream bytes, byte type) throws IOException {
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeInt(0);
+		record.writeByte(type);
+		return record;
+	}
+
+	private static byte[] endRecord(ByteArrayOutputStream bytes) {
+		byte[] record = bytes.toByteArray();
+		int length = record.length - 4;
+		record[0] = (byte) (length >>> 24);
+		record[1] = (byte) (length >>> 16);
+		record[2] = (byte) (length >>> 8);
+		record[3] = (byte) length;
+		return record;
+	}
+
+	/**
+	 * writes the records still in use to a new log, which replaces the old
+	 * one
+	 */
+	private void rewrite() throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			BufferedOutputStream log = new BufferedOutputStream(new FileOutputStream(tmp), 65536);
+			try {
+				DataOutputStream header = new DataOutputStream(log);
+				header.writeInt(MAGIC);
+				header.writeInt(VERSION);
+				for (String path : files.keySet()) {
+					log.write(fileRecord(path, files.get(path)));
+				}
+				for (Result r : results.values()) {
+					log.write(resultRecord(r));
+				}
+			} finally {
+				log.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// the platform can't replace files
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("can't rename " + tmp + " to " + file);
+				}
+			}
+			tmp = null;
+			records = files.size() + results.size();
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+}
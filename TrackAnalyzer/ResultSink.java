@@ -0,0 +1,277 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.DecimalFormat;
+import java.util.List;
+
+/**
+ * Writes the results of the analysed tracks to the result list (-o). The
+ * format is chosen with --format:
+ * FORMAT_TEXT: a line "filename;key;bpm;wroteTags" per track, as before
+ * there were other formats.
+ * FORMAT_JSONL: a JSON object per line with all fields of a TrackResult,
+ * unknown values are null.
+ * FORMAT_CSV: a header line and a line per track, with the segments in one
+ * column as "first-last:key:energy:confidence" separated by spaces. Unknown
+ * values are empty.
+ * FORMAT_BINARY: see BinaryResultSink.
+ * Keys are written in Camelot notation. Results are written in batches
+ * (see ResultWriter), a sink is only used by one thread at a time.
+ */
+public abstract class ResultSink {
+
+	public static final String FORMAT_TEXT = "text";
+	public static final String FORMAT_JSONL = "jsonl";
+	public static final String FORMAT_CSV = "csv";
+	public static final String FORMAT_BINARY = "binary";
+
+	/**
+	 * creates the file, replacing an existing one
+	 *
+	 * @param format one of the FORMAT_ constants
+	 * @throws IllegalArgumentException if the format is unknown
+	 * @throws IOException if the file can't be created
+	 */
+	public static ResultSink open(File file, String format) throws IOException {
+		if (format.equals(FORMAT_TEXT)) {
+			return new Text(file);
+		} else if (format.equals(FORMAT_JSONL)) {
+			return new JsonLines(file);
+		} else if (format.equals(FORMAT_CSV)) {
+			return new Csv(file);
+		} else if (format.equals(FORMAT_BINARY)) {
+			return new BinaryResultSink(file);
+		}
+		throw new IllegalArgumentException("unknown result format: " + format);
+	}
+
+	/**
+	 * writes a batch of results and passes them on to the file, so they are
+	 * on disk even if the process is killed afterwards
+	 */
+	public abstract void write(List<TrackResult> batch) throws IOException;
+
+	public abstract void close() throws IOException;
+
+	/**
+	 * base class of the text formats, which write one line per result
+	 */
+	private static abstract class LineSink extends ResultSink {
+
+		protected final BufferedWriter out;
+		protected final StringBuilder line = new StringBuilder(256);
+
+		LineSink(File file) throws IOException {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 65536);
+		}
+
+		/**
+		 * appends the line for a result to <code>line</code>, without the
+		 * line break
+		 */
+		abstract void format(TrackResult r);
+
+		@Override
+		public void write(List<TrackResult> batch) throws IOException {
+			for (TrackResult r : batch) {
+				line.setLength(0);
+				format(r);
+				out.append(line);
+				out.newLine();
+			}
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	private static final class Text extends LineSink {
+
+		/**
+		 * same format as TrackAnalyzer.formatBpm(), which creates a new
+		 * DecimalFormat for every call
+		 */
+		private final DecimalFormat bpmFormat = new DecimalFormat("#.#");
+
+		Text(File file) throws IOException {
+			super(file);
+		}
+
+		@Override
+		void format(TrackResult r) {
+			line.append(r.filename).append(';');
+			if (r.failed) {
+				line.append("-;-;");
+			} else {
+				line.append(Parameters.camelotKey(r.key)).append(';');
+				line.append(Double.isNaN(r.bpm) ? "0" : bpmFormat.format(r.bpm).replace(',', '.')).append(';');
+			}
+			line.append(r.wroteTags);
+		}
+	}
+
+	private static final class JsonLines extends LineSink {
+
+		JsonLines(File file) throws IOException {
+			super(file);
+		}
+
+		@Override
+		void format(TrackResult r) {
+			line.append("{\"file\":");
+			string(r.filename);
+			line.append(",\"failed\":").append(r.failed);
+			if (!r.failed) {
+				line.append(",\"key\":\"").append(Parameters.camelotKey(r.key)).append('"');
+				line.append(",\"key_confidence\":");
+				number(r.keyConfidence);
+				line.append(",\"tuning_offset\":");
+				number(r.tuningOffset);
+				line.append(",\"bpm\":");
+				number(r.bpm);
+				line.append(",\"bpm_confidence\":");
+				number(r.bpmConfidence);
+			}
+			line.append(",\"wrote_tags\":").append(r.wroteTags);
+			line.append(",\"cached\":").append(r.cached);
+			line.append(",\"duration\":");
+			number(r.duration);
+			line.append(",\"decode_ms\":");
+			number(r.decodeMillis);
+			line.append(",\"analyse_ms\":");
+			number(r.analyseMillis);
+			if (!r.failed) {
+				line.append(",\"segments\":[");
+				for (int i = 0; i < r.segments.length; i++) {
+					KeyDetectionSegment s = r.segments[i];
+					line.append(i == 0 ? "{" : ",{");
+					line.append("\"first\":").append(s.firstWindow);
+					line.append(",\"last\":").append(s.lastWindow);
+					line.append(",\"key\":\"").append(Parameters.camelotKey(s.key)).append('"');
+					line.append(",\"energy\":");
+					number(s.energy);
+					line.append(",\"confidence\":");
+					number(s.confidence);
+					line.append('}');
+				}
+				line.append(']');
+			}
+			line.append('}');
+		}
+
+		private void number(double value) {
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				line.append("null");
+			} else {
+				line.append((float) value);
+			}
+		}
+
+		private void string(String s) {
+			line.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\') {
+					line.append('\\').append(c);
+				} else if (c < 0x20) {
+					line.append(String.format("\\u%04x", (int) c));
+				} else {
+					line.append(c);
+				}
+			}
+			line.append('"');
+		}
+	}
+
+	private static final class Csv extends LineSink {
+
+		Csv(File file) throws IOException {
+			super(file);
+			out.write("file,key,key_confidence,tuning_offset,bpm,bpm_confidence,wrote_tags,cached,failed,"
+					+ "duration,decode_ms,analyse_ms,segments");
+			out.newLine();
+		}
+
+		@Override
+		void format(TrackResult r) {
+			string(r.filename);
+			line.append(',');
+			if (!r.failed) {
+				line.append(Parameters.camelotKey(r.key));
+			}
+			line.append(',');
+			number(r.keyConfidence);
+			line.append(',');
+			number(r.tuningOffset);
+			line.append(',');
+			number(r.bpm);
+			line.append(',');
+			number(r.bpmConfidence);
+			line.append(',').append(r.wroteTags);
+			line.append(',').append(r.cached);
+			line.append(',').append(r.failed);
+			line.append(',');
+			number(r.duration);
+			line.append(',');
+			number(r.decodeMillis);
+			line.append(',');
+			number(r.analyseMillis);
+			line.append(',');
+			for (int i = 0; i < r.segments.length; i++) {
+				KeyDetectionSegment s = r.segments[i];
+				if (i > 0) {
+					line.append(' ');
+				}
+				line.append(s.firstWindow).append('-').append(s.lastWindow).append(':')
+						.append(Parameters.camelotKey(s.key)).append(':');
+				number(s.energy);
+				line.append(':');
+				number(s.confidence);
+			}
+		}
+
+		private void number(double value) {
+			if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+				line.append((float) value);
+			}
+		}
+
+		/**
+		 * quotes a field if it contains a comma, a quote or a line break
+		 */
+		private void string(String s) {
+			if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+				line.append(s);
+			} else {
+				line.append('"').append(s.replace("\"", "\"\"")).append('"');
+			}
+		}
+	}
+}
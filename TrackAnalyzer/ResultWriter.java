@@ -0,0 +1,125 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes results to a ResultSink on a thread of its own. add() only puts a
+ * result into a lock-free queue and wakes the writer thread if it is
+ * waiting, so the threads reporting results never wait for each other or
+ * for the disk. The writer thread takes everything which has been queued
+ * since its last pass and writes it as one batch with a single flush, so
+ * the faster results come in, the larger the batches get.
+ *
+ * If the sink fails, the error is logged once and later results are
+ * dropped.
+ */
+public class ResultWriter {
+
+	/**
+	 * max. number of results written as one batch
+	 */
+	static final int MAX_BATCH = 1024;
+	private final ResultSink sink;
+	private final ConcurrentLinkedQueue<TrackResult> queue = new ConcurrentLinkedQueue<TrackResult>();
+	/**
+	 * set by the writer thread before it parks, add() only unparks it then
+	 */
+	private final AtomicBoolean waiting = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	private final Thread thread;
+
+	public ResultWriter(ResultSink sink) {
+		this.sink = sink;
+		thread = new Thread("result writer") {
+			@Override
+			public void run() {
+				writeAll();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * queues a result, may be called from any thread
+	 */
+	public void add(TrackResult r) {
+		queue.offer(r);
+		if (waiting.get() && waiting.compareAndSet(true, false)) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * writes the results which are still queued and closes the sink. No
+	 * results may be added afterwards.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		LockSupport.unpark(thread);
+		thread.join();
+	}
+
+	private void writeAll() {
+		ArrayList<TrackResult> batch = new ArrayList<TrackResult>(MAX_BATCH);
+		boolean failed = false;
+		while (true) {
+			TrackResult r;
+			while (batch.size() < MAX_BATCH && (r = queue.poll()) != null) {
+				batch.add(r);
+			}
+			if (batch.isEmpty()) {
+				if (closed && queue.isEmpty()) {
+					break;
+				}
+				waiting.set(true);
+				// a result added after the poll above has seen waiting or will unpark us
+				if (queue.isEmpty() && !closed) {
+					LockSupport.park(this);
+				}
+				waiting.set(false);
+				continue;
+			}
+			if (!failed) {
+				try {
+					sink.write(batch);
+				} catch (Exception ex) {
+					// also RuntimeExceptions, the thread would die silently and the rest would be dropped unnoticed
+					Logger.getLogger(ResultWriter.class.getName()).log(Level.SEVERE, "can't write results, dropping the rest.", ex);
+					failed = true;
+				}
+			}
+			batch.clear();
+		}
+		try {
+			sink.close();
+		} catch (Exception ex) {
+			Logger.getLogger(ResultWriter.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+}
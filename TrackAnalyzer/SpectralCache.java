@@ -0,0 +1,187 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk cache for the tables a spectrum analyser needs (temporal window,
+ * spectral kernel), so short runs on a single track don't have to compute
+ * them again. Each entry is a small binary file named after its key, which
+ * has to contain every parameter the tables depend on. An entry consists of
+ * an int array and a number of float arrays and is read with a single read
+ * into a heap buffer; the entries are far too small (< 100 KB) for memory
+ * mapping to pay off in a freshly started JVM. Entries are written to a
+ * temporary file first and then renamed, so concurrent runs never see half
+ * written entries. If anything goes wrong the caller simply computes the
+ * tables.
+ *
+ * File format (big endian): MAGIC, VERSION, number of ints, the ints, number
+ * of float arrays, then length and elements of each float array.
+ */
+public class SpectralCache {
+
+	private static final int MAGIC = 0x54414b43; // "TAKC"
+	/**
+	 * increment when the way the tables are computed changes, so old entries
+	 * are ignored
+	 */
+	private static final int VERSION = 1;
+	/**
+	 * default cache directory, --cachedir replaces the .trackanalyzer part
+	 */
+	private static volatile File directory = new File(new File(System.getProperty("user.home"), ".trackanalyzer"), "spectral");
+
+	/**
+	 * a cached entry
+	 */
+	public static final class Entry {
+
+		public final int[] ints;
+		public final float[][] tables;
+
+		Entry(int[] ints, float[][] tables) {
+			this.ints = ints;
+			this.tables = tables;
+		}
+	}
+
+	/**
+	 * @param dir the cache directory, null disables the cache
+	 */
+	public static void setDirectory(File dir) {
+		directory = dir;
+	}
+
+	public static File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param key the key, must be usable as a filename
+	 * @return the cached entry or null if there is none
+	 */
+	public static Entry load(String key) {
+		File dir = directory;
+		if (dir == null) {
+			return null;
+		}
+		File file = new File(dir, key);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			byte[] bytes;
+			try {
+				bytes = new byte[(int) raf.length()];
+				raf.readFully(bytes);
+			} finally {
+				raf.close();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			int[] ints = new int[buffer.getInt()];
+			buffer.asIntBuffer().get(ints);
+			buffer.position(buffer.position() + ints.length * 4);
+			float[][] tables = new float[buffer.getInt()][];
+			for (int i = 0; i < tables.length; i++) {
+				tables[i] = new float[buffer.getInt()];
+				buffer.asFloatBuffer().get(tables[i]);
+				buffer.position(buffer.position() + tables[i].length * 4);
+			}
+			return new Entry(ints, tables);
+		} catch (Exception ex) {
+			// truncated or otherwise broken entry, it gets replaced on the next store
+			Logger.getLogger(SpectralCache.class.getName()).log(Level.FINE, "can't read cache entry " + file, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * stores an entry, errors are only logged.
+	 *
+	 * @param key the key, must be usable as a filename
+	 */
+	public static void store(String key, int[] ints, float[][] tables) {
+		File dir = directory;
+		if (dir == null) {
+			return;
+		}
+		File tmp = null;
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("can't create " + dir);
+			}
+			tmp = File.createTempFile(key, ".tmp", dir);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(ints.length);
+				for (int i : ints) {
+					out.writeInt(i);
+				}
+				out.writeInt(tables.length);
+				for (float[] table : tables) {
+					out.writeInt(table.length);
+					for (float f : table) {
+						out.writeFloat(f);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			File file = new File(dir, key);
+			if (!tmp.renameTo(file)) {
+				// another process was faster, or the platform can't replace files
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("can't rename " + tmp + " to " + file);
+				}
+			}
+			tmp = null;
+		} catch (IOException ex) {
+			Logger.getLogger(SpectralCache.class.getName()).log(Level.FINE, "can't write cache entry " + key, ex);
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return a part of a key representing a float value exactly
+	 */
+	static String keyPart(float f) {
+		return Integer.toHexString(Float.floatToIntBits(f));
+	}
+}
@@ -24,20 +24,42 @@
 ************************************************************************/ 
 package TrackAnalyzer;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
+/**
+ * Spectrum analysers are shared by all threads (see SpectrumAnalyserFactory),
+ * so chromagram() must be safe to call concurrently.
+ */
 public abstract class SpectrumAnalyser {
-	protected int bins;
-	protected int hopSize;
-	protected int frameRate;
-	protected final Lock analyserMutex;	
+	protected final int bins;
+	protected final int hopSize;
+	protected final int frameRate;
 	public SpectrumAnalyser(int f, Parameters params){
 	    bins = params.getOctaves() * params.getBpo();
     	hopSize = params.getHopSize();
 	    frameRate = f;
-		analyserMutex = new ReentrantLock();
 	} 	
-	abstract public Chromagram chromagram(AudioData data) throws Exception;
+	/**
+	 * @param data mono audio
+	 */
+	public Chromagram chromagram(AudioData data) throws Exception {
+		return chromagram(AudioSource.fromAudioData(data, 0));
+	}
+
+	/**
+	 * analyses a stream hop by hop, without holding more than one FFT frame
+	 * of audio in memory
+	 */
+	abstract public Chromagram chromagram(AudioSource source) throws Exception;
+
+	/**
+	 * computes the chroma vector of a single frame of audio, for callers which
+	 * get the audio block by block instead of from an AudioSource
+	 *
+	 * @param frame one FFT frame of mono audio
+	 * @param valid number of samples in frame, the rest of the frame is
+	 * treated as zeros
+	 * @param chroma receives the chroma vector of bins values
+	 * @param offset index of the first chroma value in chroma
+	 */
+	abstract public void chromaVector(double[] frame, int valid, float[] chroma, int offset);
 	
 }
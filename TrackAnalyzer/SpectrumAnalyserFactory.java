@@ -0,0 +1,72 @@
+/*************************************************************************
+
+  Copyright 2012 Ibrahim Sha'ath
+
+  This file is part of LibKeyFinder.
+
+  LibKeyFinder is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibKeyFinder is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with LibKeyFinder.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+
+/************************************************************************
+ This file was modified/ported to Java in 2012 by Thomas Friedel
+************************************************************************/ 
+package TrackAnalyzer;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide cache of spectrum analysers, so window, spectral kernel and FFT
+ * plan are built once per frame rate and set of spectral parameters, and not
+ * once per track. The analysers themselves are thread-safe, the lock is only
+ * held while looking one up (or building a missing one).
+ */
+class SpectrumAnalyserFactory {
+
+	private static final SpectrumAnalyserFactory instance = new SpectrumAnalyserFactory();
+	private ArrayList<SpectrumAnalyserWrapper> analysers;
+	private Lock factoryMutex;
+
+	public static SpectrumAnalyserFactory getInstance() {
+		return instance;
+	}
+
+	private SpectrumAnalyserFactory() {
+		factoryMutex = new ReentrantLock();
+		analysers = new ArrayList<SpectrumAnalyserWrapper>(0);
+	}
+
+	public SpectrumAnalyser getSpectrumAnalyser(int f, Parameters p) throws Exception {
+		factoryMutex.lock();
+		try {
+			for (int i = 0; i < analysers.size(); i++) {
+				Parameters cached = analysers.get(i).chkParams();
+				// the hop size is not a spectral parameter, but the analyser uses it
+				if (analysers.get(i).chkFrameRate() == f && p.equivalentForSpectralAnalysis(cached)
+						&& p.getHopSize() == cached.getHopSize()) {
+					return analysers.get(i).getSpectrumAnalyser();
+				}
+			}
+			// no match found, build a new spectrum analyser. Keep a copy of the
+			// parameters, the caller might change its own afterwards
+			Parameters copy = p.spectralAnalysisCopy();
+			analysers.add(new SpectrumAnalyserWrapper(f, copy, new FftwAnalyser(f, copy)));
+			return analysers.get(analysers.size() - 1).getSpectrumAnalyser();
+		} finally {
+			factoryMutex.unlock();
+		}
+	}
+}
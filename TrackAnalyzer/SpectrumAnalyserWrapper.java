@@ -24,10 +24,6 @@
 ************************************************************************/ 
 package TrackAnalyzer;
 
-import java.util.ArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
 class SpectrumAnalyserWrapper {
 
 	private int frate;
@@ -52,30 +48,3 @@ class SpectrumAnalyserWrapper {
 		return frate;
 	}
 }
-
-class SpectrumAnalyserFactory {
-
-	private ArrayList<SpectrumAnalyserWrapper> analysers;
-	private Lock factoryMutex;
-
-	public SpectrumAnalyserFactory() {
-		factoryMutex = new ReentrantLock();
-		analysers = new ArrayList<SpectrumAnalyserWrapper>(0);
-	}
-
-	public SpectrumAnalyser getSpectrumAnalyser(int f, Parameters p) throws Exception {
-		factoryMutex.lock();
-		try {
-			for (int i = 0; i < analysers.size(); i++) {
-				if (analysers.get(i).chkFrameRate() == f && p.equivalentForSpectralAnalysis(analysers.get(i).chkParams())) {
-					return analysers.get(i).getSpectrumAnalyser();
-				}
-			}
-			// no match found, build a new spectrum analyser
-			analysers.add(new SpectrumAnalyserWrapper(f, p, new FftwAnalyser(f, p)));
-			return analysers.get(analysers.size() - 1).getSpectrumAnalyser();
-		} finally {
-			factoryMutex.unlock();
-		}
-	}
-}
\ No newline at end of file
@@ -0,0 +1,264 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import TrackAnalyzer.Parameters.key_t;
+import at.ofai.music.beatroot.LiveTempoEstimator;
+import java.util.ArrayList;
+
+/**
+ * Analyses mono audio which is passed in block by block while it arrives,
+ * e.g. a DJ set which is being recorded, and keeps estimates of the current
+ * key and tempo. The memory needed doesn't grow with the length of the input:
+ * the audio is downsampled and analysed hop by hop like in KeyFinder, but only
+ * the chroma vectors of the last keyWindow seconds (or their sum, for the
+ * whole input) are kept, and the tempo is estimated from the onset detection
+ * function of the last tempoWindow seconds (see LiveTempoEstimator).
+ *
+ * The key is the one KeyClassifier finds for the sum of the chroma vectors,
+ * which is what KeyFinder does without segmentation (the default). For the
+ * whole input, after finish(), it is the same key KeyFinder finds for the
+ * complete track.
+ */
+public class StreamingAnalyzer {
+
+	/**
+	 * default length of the input the key estimate is based on, in seconds
+	 */
+	public static final double KEY_WINDOW = 60;
+	/**
+	 * default length of the input the tempo estimate is based on, in seconds
+	 */
+	public static final double TEMPO_WINDOW = 15;
+	private final Parameters params;
+	private final int frameRate;
+	private final int fftFrameSize;
+	private final int hopSize;
+	private final int bins;
+	private final SpectrumAnalyser sa;
+	private final KeyClassifier classifier;
+	/**
+	 * null if the key detector works on the input frame rate
+	 */
+	private final PrimaryDownsampler.Decimator decimator;
+	private final int factor;
+	private double[] downsampled = new double[0];
+	/**
+	 * sliding window over the downsampled input, frame[0] is the first sample
+	 * of the current hop
+	 */
+	private final double[] frame;
+	private int valid = 0;
+	/**
+	 * samples to skip before the next frame, if the hop size is larger than
+	 * the frame
+	 */
+	private int skip = 0;
+	/**
+	 * chroma vectors of the last hops, hop h in rows[h % rows.length], or null
+	 * if the key is estimated from the whole input
+	 */
+	private final float[][] rows;
+	/**
+	 * sum of the chroma vectors of all hops, if rows is null
+	 */
+	private final double[] chromaSum;
+	private final float[] chroma;
+	private int hops = 0;
+	private key_t key = null;
+	private final LiveTempoEstimator tempo;
+	private long framesIn = 0;
+
+	/**
+	 * @param frameRate the frame rate of the input
+	 * @param params the key detection parameters
+	 * @param keyWindow length of the input the key estimate is based on in
+	 * seconds, 0 for the whole input
+	 * @param tempoWindow length of the input the tempo estimate is based on
+	 * in seconds, 0 for no tempo estimation
+	 */
+	public StreamingAnalyzer(int frameRate, Parameters params, double keyWindow, double tempoWindow) throws Exception {
+		this.params = params;
+		this.frameRate = frameRate;
+		factor = PrimaryDownsampler.getKeyDownsampleFactor(frameRate);
+		decimator = factor == 1 ? null : new PrimaryDownsampler.Decimator(frameRate, factor);
+		sa = SpectrumAnalyserFactory.getInstance().getSpectrumAnalyser(frameRate / factor, params);
+		classifier = new KeyClassifier(params);
+		fftFrameSize = params.getFftFrameSize();
+		hopSize = params.getHopSize();
+		bins = params.getOctaves() * params.getBpo();
+		frame = new double[fftFrameSize];
+		chroma = new float[bins];
+		if (keyWindow > 0) {
+			int windowHops = Math.max((int) Math.round(keyWindow * frameRate / factor / hopSize), 1);
+			rows = new float[windowHops][bins];
+			chromaSum = null;
+		} else {
+			rows = null;
+			chromaSum = new double[bins];
+		}
+		tempo = tempoWindow > 0 ? new LiveTempoEstimator(frameRate, tempoWindow) : null;
+	}
+
+	/**
+	 * analyses the next block of input
+	 *
+	 * @param samples mono audio scaled to the range [-1,1]
+	 */
+	public void process(double[] samples, int offset, int length) throws Exception {
+		framesIn += length;
+		if (tempo != null) {
+			tempo.processSamples(samples, offset, length);
+		}
+		if (decimator == null) {
+			addSamples(samples, offset, length);
+			return;
+		}
+		int n = (length + factor - 1) / factor;
+		if (downsampled.length < n) {
+			downsampled = new double[n];
+		}
+		n = decimator.process(samples, offset, length, downsampled, 0);
+		addSamples(downsampled, 0, n);
+	}
+
+	/**
+	 * analyses the rest of the input at the end of the stream, with the last
+	 * frames zero-padded like in FftwAnalyser.chromagram(). No more input may
+	 * be passed in afterwards.
+	 */
+	public void finish() throws Exception {
+		if (decimator != null) {
+			double[] rest = decimator.finish();
+			addSamples(rest, 0, rest.length);
+		}
+		while (valid > 0) {
+			analyseFrame();
+			valid = Math.max(0, valid - hopSize);
+			if (valid > 0) {
+				System.arraycopy(frame, hopSize, frame, 0, valid);
+			}
+		}
+	}
+
+	/**
+	 * adds downsampled audio to the frame, and analyses each complete frame
+	 */
+	private void addSamples(double[] samples, int offset, int length) throws Exception {
+		while (length > 0) {
+			if (skip > 0) {
+				int n = Math.min(skip, length);
+				skip -= n;
+				offset += n;
+				length -= n;
+				continue;
+			}
+			int n = Math.min(length, fftFrameSize - valid);
+			System.arraycopy(samples, offset, frame, valid, n);
+			valid += n;
+			offset += n;
+			length -= n;
+			if (valid == fftFrameSize) {
+				analyseFrame();
+				// move on by one hop
+				if (hopSize < fftFrameSize) {
+					valid -= hopSize;
+					System.arraycopy(frame, hopSize, frame, 0, valid);
+				} else {
+					valid = 0;
+					skip = hopSize - fftFrameSize;
+				}
+			}
+		}
+	}
+
+	private void analyseFrame() throws Exception {
+		if (rows != null) {
+			sa.chromaVector(frame, valid, rows[hops % rows.length], 0);
+		} else {
+			sa.chromaVector(frame, valid, chroma, 0);
+			for (int i = 0; i < bins; i++) {
+				chromaSum[i] += chroma[i];
+			}
+		}
+		hops++;
+		key = null;
+	}
+
+	/**
+	 * @return the number of hops analysed so far, the key estimate changes
+	 * once per hop
+	 */
+	public int getHops() {
+		return hops;
+	}
+
+	/**
+	 * @return the length of the input passed in so far in seconds
+	 */
+	public double getTime() {
+		return framesIn / (double) frameRate;
+	}
+
+	/**
+	 * @return the key of the last keyWindow seconds (or the whole input), or
+	 * SILENCE if no hop has been analysed yet
+	 */
+	public key_t getKey() throws Exception {
+		if (key != null) {
+			return key;
+		}
+		if (hops == 0) {
+			return key_t.SILENCE;
+		}
+		float[] sum = new float[bins];
+		if (rows != null) {
+			for (int h = Math.max(hops - rows.length, 0); h < hops; h++) {
+				float[] row = rows[h % rows.length];
+				for (int i = 0; i < bins; i++) {
+					sum[i] += row[i];
+				}
+			}
+		} else {
+			for (int i = 0; i < bins; i++) {
+				sum[i] = (float) chromaSum[i];
+			}
+		}
+		Chromagram ch = new Chromagram(1, bins);
+		ch.setRow(0, sum);
+		ch.reduceTuningBins(params);
+		ch.reduceToOneOctave(params);
+		ArrayList<Float> c = new ArrayList<Float>(ch.getBins());
+		for (int i = 0; i < ch.getBins(); i++) {
+			c.add(ch.getMagnitude(0, i));
+		}
+		key = classifier.classify(c);
+		return key;
+	}
+
+	/**
+	 * @return the tempo of the last tempoWindow seconds in BPM, NaN if it
+	 * couldn't be estimated (yet) or tempo estimation is off
+	 */
+	public double getBpm() {
+		return tempo == null ? Double.NaN : tempo.getBPM();
+	}
+}
@@ -0,0 +1,295 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.mp4.Mp4Tag;
+
+/**
+ * Writes KEY_START and BPM tags. Each file is read once and committed once,
+ * i.e. rewritten once on disk. Writes are collected in batches, which are
+ * sorted by directory and filename before they are written, so a spinning
+ * disk or a NAS mount doesn't have to seek back and forth between
+ * directories which were analysed at the same time.
+ *
+ * Instead of writing the tags, the writes can be recorded in a journal,
+ * e.g. for a dry run or to apply them later in bulk with applyJournal(), at
+ * a time when the files aren't in use. A journal is a UTF-8 text file with a
+ * line per write: the hash of the settings the result was computed with (as
+ * a signed hex number), key, bpm ("-" if the bpm isn't written) and the
+ * filename, separated by tabs. The filename comes last, so it may contain
+ * anything but a line break.
+ *
+ * A TagWriter isn't thread-safe, TrackAnalyzer only uses it from the writer
+ * stage.
+ */
+public class TagWriter {
+
+	/**
+	 * default number of writes collected before they are sorted and written
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	/**
+	 * a pending write
+	 */
+	public static final class Request {
+
+		public final String filename;
+		public final String key;
+		/**
+		 * the formatted bpm, null if the BPM field isn't written
+		 */
+		public final String bpm;
+		/**
+		 * hash of the settings the result was computed with, see ResultCache
+		 */
+		public final long settings;
+		/**
+		 * anything the caller needs to know when the write is done
+		 */
+		public final Object context;
+
+		public Request(String filename, String key, String bpm, long settings, Object context) {
+			this.filename = filename;
+			this.key = key;
+			this.bpm = bpm;
+			this.settings = settings;
+			this.context = context;
+		}
+	}
+
+	/**
+	 * is told about every write when its batch has been written
+	 */
+	public interface Listener {
+
+		/**
+		 * @param r the write
+		 * @param written true if the tags were written, false if writing
+		 * failed or the write was recorded in the journal
+		 */
+		void done(Request r, boolean written);
+	}
+	/**
+	 * orders writes by directory, then by filename
+	 */
+	private static final Comparator<Request> BY_LOCATION = new Comparator<Request>() {
+		@Override
+		public int compare(Request a, Request b) {
+			File fa = new File(a.filename).getAbsoluteFile();
+			File fb = new File(b.filename).getAbsoluteFile();
+			String da = fa.getParent() == null ? "" : fa.getParent();
+			String db = fb.getParent() == null ? "" : fb.getParent();
+			int c = da.compareTo(db);
+			return c != 0 ? c : fa.getName().compareTo(fb.getName());
+		}
+	};
+	private final int batchSize;
+	private final Listener listener;
+	private final ArrayList<Request> pending = new ArrayList<Request>();
+	private BufferedWriter journal;
+	/**
+	 * set once writing to the journal failed, some writes are missing then
+	 */
+	private boolean journalFailed = false;
+
+	/**
+	 * @param batchSize number of writes collected before they are written,
+	 * 1 writes every request immediately
+	 * @param listener is told about every write, may be null
+	 */
+	public TagWriter(int batchSize, Listener listener) {
+		this.batchSize = Math.max(1, batchSize);
+		this.listener = listener;
+	}
+
+	/**
+	 * records all further writes in a journal instead of writing the tags.
+	 * The journal is appended to if it exists.
+	 */
+	public void setJournal(File file) throws IOException {
+		journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+	}
+
+	/**
+	 * adds a write, the batch is written when it is full
+	 */
+	public void add(Request r) {
+		pending.add(r);
+		if (pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * writes all pending writes, in the order of their location
+	 *
+	 * @return false if a write couldn't be recorded in the journal, now or
+	 * earlier
+	 */
+	public boolean flush() {
+		Collections.sort(pending, BY_LOCATION);
+		for (Request r : pending) {
+			boolean written = false;
+			if (journal != null) {
+				record(r);
+			} else {
+				written = writeTags(r.filename, r.key, r.bpm);
+			}
+			if (listener != null) {
+				listener.done(r, written);
+			}
+		}
+		pending.clear();
+		if (journal != null) {
+			try {
+				journal.flush();
+			} catch (IOException ex) {
+				journalError(ex);
+			}
+		}
+		return !journalFailed;
+	}
+
+	/**
+	 * writes the pending writes and closes the journal
+	 *
+	 * @return false if a write couldn't be recorded in the journal, i.e. the
+	 * journal is incomplete
+	 */
+	public boolean close() {
+		flush();
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException ex) {
+				journalError(ex);
+			}
+			journal = null;
+		}
+		return !journalFailed;
+	}
+
+	private void record(Request r) {
+		try {
+			journal.write(Long.toString(r.settings, 16) + "\t" + r.key + "\t" + (r.bpm == null ? "-" : r.bpm) + "\t" + r.filename);
+			journal.newLine();
+		} catch (IOException ex) {
+			journalError(ex);
+		}
+	}
+
+	private void journalError(IOException ex) {
+		if (!journalFailed) {
+			Logger.getLogger(TagWriter.class.getName()).log(Level.SEVERE, "can't write to the journal, tag writes are missing.", ex);
+		}
+		journalFailed = true;
+	}
+
+	/**
+	 * reads the writes recorded in a journal. If a file was recorded more
+	 * than once, the last write wins.
+	 *
+	 * @return the writes, in no particular order
+	 * @throws IOException if the journal can't be read or has a malformed
+	 * line
+	 */
+	public static ArrayList<Request> readJournal(File file) throws IOException {
+		LinkedHashMap<String, Request> requests = new LinkedHashMap<String, Request>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null) {
+				n++;
+				if (line.length() == 0) {
+					continue;
+				}
+				String[] fields = line.split("\t", 4);
+				if (fields.length != 4) {
+					throw new IOException(file + ":" + n + ": malformed journal line");
+				}
+				try {
+					long settings = Long.parseLong(fields[0], 16);
+					String bpm = fields[2].equals("-") ? null : fields[2];
+					requests.remove(fields[3]);
+					requests.put(fields[3], new Request(fields[3], fields[1], bpm, settings, null));
+				} catch (NumberFormatException ex) {
+					throw new IOException(file + ":" + n + ": malformed journal line");
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return new ArrayList<Request>(requests.values());
+	}
+
+	/**
+	 * writes bpm and key to the KEY_START and BPM fields in the tag and
+	 * commits the file once
+	 *
+	 * @param filename
+	 * @param key
+	 * @param formattedBpm the bpm, null if the BPM field isn't written
+	 * @return true if the tags were written
+	 */
+	public static boolean writeTags(String filename, String key, String formattedBpm) {
+		File file = new File(filename);
+		try {
+			AudioFile f = AudioFileIO.read(file);
+			if (!TrackAnalyzer.setCustomTag(f, "KEY_START", key)) {
+				throw new IOException("Error writing Key Tag");
+			}
+			if (formattedBpm != null) {
+				Tag tag = f.getTag();
+				if (tag instanceof Mp4Tag) {
+					if (!TrackAnalyzer.setCustomTag(f, "BPM", formattedBpm)) {
+						throw new IOException("Error writing BPM Tag");
+					}
+				}
+				tag.setField(FieldKey.BPM, formattedBpm);
+			}
+			f.commit();
+			return true;
+		} catch (Exception e) {
+			System.out.println("problem with tags in file " + filename);
+			return false;
+		}
+	}
+}
@@ -22,30 +22,25 @@
  */
 package TrackAnalyzer;
 
-import at.ofai.music.beatroot.BeatRoot;
-import it.sauronsoftware.jave.*;
+import at.ofai.music.beatroot.AudioProcessor;
+import at.ofai.music.beatroot.BeatTracker;
+import at.ofai.music.beatroot.TempoEstimator;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jaudiotagger.audio.AudioFile;
-import org.jaudiotagger.audio.AudioFileIO;
-import org.jaudiotagger.audio.exceptions.CannotWriteException;
 import org.jaudiotagger.tag.FieldDataInvalidException;
-import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.KeyNotFoundException;
 import org.jaudiotagger.tag.Tag;
 import org.jaudiotagger.tag.TagField;
@@ -63,16 +58,71 @@ import com.beust.jcommander.Parameter;
 public class TrackAnalyzer {
 
 	CommandLineArgs c = new CommandLineArgs();
-	BufferedWriter writeListWriter;
+	/**
+	 * writes the result list (-o), null without -o
+	 */
+	ResultWriter resultWriter;
 	ArrayList<String> filenames = new ArrayList<String>();
 	//public final KeyFinder k;
 	public final Parameters p;
+	/**
+	 * number of worker threads of the key and bpm stages
+	 */
+	final int nThreads;
+	/**
+	 * number of worker threads of the decode stage, which look up cached
+	 * results and start decoding the other tracks
+	 */
+	final int nDecoders;
+	/**
+	 * number of tracks which made it through the pipeline, only touched by
+	 * the writer stage
+	 */
+	private int analyzed = 0;
+	/**
+	 * number of tracks whose result was taken from the result cache, only
+	 * touched by the writer stage
+	 */
+	private int cached = 0;
+	/**
+	 * results of earlier runs, null with --nocache
+	 */
+	ResultCache resultCache;
+	/**
+	 * hash of everything the results depend on besides the audio
+	 */
+	long settings;
+	/**
+	 * features of analysed tracks, null unless --features is given
+	 */
+	FeatureCache featureCache;
+	/**
+	 * hashes of everything the chromagram and the onset detection function
+	 * depend on besides the audio
+	 */
+	long chromagramSettings;
+	long onsetSettings;
+	/**
+	 * writes the tags with -w, only used by the writer stage
+	 */
+	TagWriter tagWriter;
+	/**
+	 * fingerprints of the files in the journal which is being applied, taken
+	 * from the result cache before the files are changed
+	 */
+	private HashMap<String, String> journalFingerprints;
 
 	TrackAnalyzer(String[] args) throws Exception {
 
 		JCommander jcommander = new JCommander(c, args);
 		jcommander.setProgramName("TrackAnalyzer");
-		if ((c.filenames.size() == 0 && Utils.isEmpty(c.filelist)) || c.help) {
+		if ((c.filenames.size() == 0 && Utils.isEmpty(c.filelist) && c.scanDirs.isEmpty() && c.streamRate <= 0
+				&& Utils.isEmpty(c.applyJournal)) || c.help) {
+			jcommander.usage();
+			System.exit(-1);
+		}
+		if (!c.bpmEngine.equals(CommandLineArgs.BPM_ENGINE_BEATROOT) && !c.bpmEngine.equals(CommandLineArgs.BPM_ENGINE_FAST)) {
+			System.err.println("unknown bpm engine: " + c.bpmEngine);
 			jcommander.usage();
 			System.exit(-1);
 		}
@@ -112,13 +162,56 @@ public class TrackAnalyzer {
 
 		if (!Utils.isEmpty(c.writeList)) {
 			try {
-				writeListWriter = new BufferedWriter(new FileWriter(c.writeList));
+				resultWriter = new ResultWriter(ResultSink.open(new File(c.writeList), c.format));
+			} catch (IllegalArgumentException ex) {
+				System.err.println(ex.getMessage());
+				jcommander.usage();
+				System.exit(-1);
 			} catch (IOException ex) {
 				Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, ex);
 			}
 		}
+		if (c.noCache) {
+			SpectralCache.setDirectory(null);
+		} else if (!Utils.isEmpty(c.cacheDir)) {
+			SpectralCache.setDirectory(new File(c.cacheDir, "spectral"));
+		}
+		nThreads = c.threads > 0 ? c.threads : Runtime.getRuntime().availableProcessors();
+		nDecoders = c.decoders > 0 ? c.decoders : nThreads;
 		p = new Parameters();
 		p.setHopSize(8192);
+		settings = ResultCache.settingsHash(p.describe() + ";bpm=" + (c.noBpm ? "none" : c.bpmEngine)
+				+ ";duration=" + c.duration);
+		if (!c.noCache && c.streamRate <= 0) {
+			File file = Utils.isEmpty(c.cacheDir) ? ResultCache.getDefaultFile() : new File(c.cacheDir, "results");
+			try {
+				resultCache = new ResultCache(file);
+			} catch (IOException ex) {
+				Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "can't open result cache " + file + ", analysing all tracks.", ex);
+			}
+		}
+		if (c.features && !c.noCache && c.streamRate <= 0) {
+			featureCache = new FeatureCache(Utils.isEmpty(c.cacheDir) ? FeatureCache.getDefaultDirectory() : new File(c.cacheDir, "features"));
+			chromagramSettings = ResultCache.settingsHash(p.spectralAnalysisCopy().describe() + ";duration=" + c.duration);
+			onsetSettings = ResultCache.settingsHash(new AudioProcessor().describeOnsetDetection());
+		}
+		tagWriter = new TagWriter(c.tagBatch, new TagWriter.Listener() {
+			@Override
+			public void done(TagWriter.Request r, boolean written) {
+				tagsWritten(r, written);
+			}
+		});
+		if (c.writeTags && !Utils.isEmpty(c.journal)) {
+			try {
+				tagWriter.setJournal(new File(c.journal));
+			} catch (IOException ex) {
+				System.err.println("can't open journal " + c.journal + ": " + ex.getMessage());
+				System.exit(-1);
+			}
+		}
+		if (resultCache == null && !c.scanDirs.isEmpty()) {
+			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "no result cache, --scan analyses all files.");
+		}
 		//p.setToneProfile(Parameters.tone_profile_t.TONE_PROFILE_KRUMHANSL);
 		//p.setToneProfile(Parameters.tone_profile_t.);
 		/*
@@ -132,263 +225,654 @@ public class TrackAnalyzer {
 	}
 
 	/**
-	 * Decodes an audio file (mp3, flac, wav, etc. everything which can be
-	 * decoded by ffmpeg) to a downsampled wav file.
+	 * queues the result of the detection process for one file for the
+	 * result list (-o), in the format chosen with --format. May be called
+	 * from any thread, the list is written by the ResultWriter's thread.
 	 *
-	 * @param input an audio file which will be decoded to wav
-	 * @param wavoutput the output wav file
-	 * @throws IllegalArgumentException
-	 * @throws InputFormatException
-	 * @throws EncoderException
-	 */
-	public static void decodeAudioFile(File input, File wavoutput) throws IllegalArgumentException, InputFormatException, EncoderException {
-		decodeAudioFile(input, wavoutput, 4410);
+	 * @param t the track we just processed, failed or not
+	 * @param wroteTags true if tags were written successfully
+	 */
+	public void logDetectionResult(AnalysisPipeline.Track t, boolean wroteTags) {
+		if (resultWriter != null) {
+			resultWriter.add(new TrackResult(t, wroteTags));
+		}
 	}
 
 	/**
-	 * Decodes an audio file (mp3, flac, wav, etc. everything which can be
-	 * decoded by ffmpeg) to a downsampled wav file.
+	 * writes bpm and key to KEY_START and BPM fields in the tag right away,
+	 * see TagWriter.writeTags()
 	 *
-	 * @param input an audio file which will be decoded to wav
-	 * @param wavoutput the output wav file
-	 * @param samplerate the samplerate of the output wav.
-	 * @throws IllegalArgumentException
-	 * @throws InputFormatException
-	 * @throws EncoderException
-	 */
-	public static void decodeAudioFile(File input, File wavoutput, int samplerate) throws IllegalArgumentException, InputFormatException, EncoderException {
-		assert wavoutput.getName().endsWith(".wav");
-		AudioAttributes audio = new AudioAttributes();
-		audio.setCodec("pcm_s16le");
-		audio.setChannels(Integer.valueOf(1));
-		audio.setSamplingRate(new Integer(samplerate));
-		EncodingAttributes attrs = new EncodingAttributes();
-		attrs.setFormat("wav");
-		attrs.setAudioAttributes(audio);
-		Encoder encoder = new Encoder();
-		encoder.encode(input, wavoutput, attrs);
-
+	 * @param filename
+	 * @param formattedBpm
+	 * @param key
+	 */
+	public boolean updateTags(String filename, String formattedBpm, String key) {
+		return TagWriter.writeTags(filename, key, c.noBpm ? null : formattedBpm);
 	}
 
 	/**
-	 * this writes a line to a txt file with the result of the detection process
-	 * for one file.
+	 * starts decoding a track to mono audio with the samplerate of the file,
+	 * unless there is a cached result or there are cached features for it.
+	 * A file which hasn't changed since its fingerprint was recorded isn't
+	 * decoded. The audio is decoded while the analyse stage reads it.
 	 *
-	 * @param filename the filename of the audio file we just processed
-	 * @param key the result of the key detector (or "-")
-	 * @param bpm the result of the bpm detector (or "-")
-	 * @param wroteTags true if tags were written successfully
+	 * @param t
 	 */
-	public void logDetectionResult(String filename, String key, String bpm, boolean wroteTags) {
-		if (!Utils.isEmpty(c.writeList)) {
-			try {
-				writeListWriter.write(filename + ";" + key + ";" + bpm + ";" + wroteTags);
-				writeListWriter.newLine();
-				writeListWriter.flush();
-			} catch (IOException ex) {
-				Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, ex);
+	void decodeTrack(AnalysisPipeline.Track t) {
+		File file = new File(t.filename);
+		if (resultCache != null) {
+			String fingerprint = resultCache.getFingerprint(file);
+			if (useCachedResult(t, fingerprint) || useCachedFeatures(t, fingerprint)) {
+				return;
 			}
 		}
+		long start = System.nanoTime();
+		try {
+			t.pcm = PcmDecoder.open(file, resultCache != null || featureCache != null);
+		} catch (Exception ex) {
+			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "error while decoding " + t.filename + ".", ex);
+			t.failed = true;
+		}
+		t.decodeNanos = System.nanoTime() - start;
 	}
 
 	/**
-	 * one worker thread for analyzing a track
+	 * takes the result for the audio with this fingerprint from the result
+	 * cache, if there is one
+	 *
+	 * @param t
+	 * @param fingerprint the fingerprint of the audio, may be null
+	 * @return true if the track doesn't have to be analysed
 	 */
-	private final class WorkTrack implements Callable<Boolean> {
-
-		String filename;
-
-		WorkTrack(String filename) {
-			this.filename = filename;
+	private boolean useCachedResult(AnalysisPipeline.Track t, String fingerprint) {
+		if (fingerprint == null || resultCache == null) {
+			return false;
 		}
-
-		@Override
-		public Boolean call() {
-			return analyzeTrack(filename, c.writeTags);
+		ResultCache.Result r = resultCache.get(fingerprint, settings);
+		if (r == null) {
+			return false;
+		}
+		t.fingerprint = fingerprint;
+		t.keyResult = r.toKeyDetectionResult();
+		t.bpm = r.bpm;
+		t.bpmConfidence = r.bpmConfidence;
+		if (Double.isNaN(t.duration)) {
+			t.duration = r.duration;
 		}
+		t.cached = true;
+		return true;
 	}
 
 	/**
-	 * writes bpm and key to KEY_START and BPM fields in the tag
+	 * takes the features of the audio with this fingerprint from the feature
+	 * cache, if all the features needed are there
 	 *
-	 * @param filename
-	 * @param formattedBpm
-	 * @param key
+	 * @param t
+	 * @param fingerprint the fingerprint of the audio, may be null
+	 * @return true if the track doesn't have to be analysed from audio
 	 */
-	public boolean updateTags(String filename, String formattedBpm, String key) {
-		File file = new File(filename);
-		try {
-			AudioFile f = AudioFileIO.read(file);
-			if (!setCustomTag(f, "KEY_START", key)) {
-				throw new IOException("Error writing Key Tag");
-			}
-			if (!c.noBpm) {
-				Tag tag = f.getTag();
-				if (tag instanceof Mp4Tag) {
-					if (!setCustomTag(f, "BPM", formattedBpm)) {
-						throw new IOException("Error writing BPM Tag");
-					}
-				}
-				tag.setField(FieldKey.BPM, formattedBpm);
-			}
-			f.commit();
-			return true;
-		} catch (Exception e) {
-			System.out.println("problem with tags in file " + filename);
+	private boolean useCachedFeatures(AnalysisPipeline.Track t, String fingerprint) {
+		if (fingerprint == null || featureCache == null) {
 			return false;
 		}
+		Chromagram ch = featureCache.getChromagram(fingerprint, chromagramSettings);
+		if (ch == null) {
+			return false;
+		}
+		FeatureCache.OnsetFunction onsets = null;
+		if (!c.noBpm) {
+			onsets = featureCache.getOnsetFunction(fingerprint, onsetSettings);
+			if (onsets == null) {
+				return false;
+			}
+		}
+		t.fingerprint = fingerprint;
+		t.chromagram = ch;
+		t.onsetFunction = onsets;
+		return true;
 	}
 
 	/**
-	 * runs key and bpm detector on
+	 * runs the key detector, and the bpm detector unless --nobpm is given,
+	 * on the audio of a track while it is decoded, or on its cached
+	 * features. The time spent waiting for the decoder counts as decoding
+	 * time.
 	 *
-	 * @filename, optionally writes tags
-	 * @param filename
-	 * @return
+	 * @param t
 	 */
-	public boolean analyzeTrack(String filename, boolean writeTags) {
-		KeyFinder k = new KeyFinder();
-		String wavfilename = "";
-		AudioData data = new AudioData();
-		File temp = null;
-		File temp2 = null;
-		synchronized (this) {
+	void analyseTrack(AnalysisPipeline.Track t) {
+		if (t.cached) {
+			return;
+		}
+		long start = System.nanoTime();
+		long readNanos = 0;
+		if (t.chromagram != null) {
+			detectFromFeatures(t);
+		} else {
 			try {
-
-				temp = File.createTempFile("keyfinder", ".wav");
-				temp2 = File.createTempFile("keyfinder2", ".wav");
-				wavfilename = temp.getAbsolutePath();
-				// Delete temp file when program exits.
-				temp.deleteOnExit();
-				temp2.deleteOnExit();
-				if (filename.toLowerCase().endsWith((".wav"))) {
-					decodeAudioFile(new File(filename), temp2);
+				if (c.noBpm) {
+					detectKey(t, t.pcm);
 				} else {
-					decodeAudioFile(new File(filename), temp, 44100);
-					decodeAudioFile(temp, temp2);
+					detectKeyAndBpm(t);
 				}
-			} catch (Exception ex) {
-				Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "error while decoding" + filename + ".");
-				if (temp.length() == 0) {
-					logDetectionResult(filename, "-", "-", false);
-					temp.delete();
-					temp2.delete();
-					return false;
+				if (!t.failed) {
+					identifyTrack(t);
 				}
+			} finally {
+				readNanos = t.pcm.getReadNanos();
+				t.closeAudio();
 			}
 		}
-		KeyDetectionResult r;
+		t.decodeNanos += readNanos;
+		t.analyseNanos = System.nanoTime() - start - readNanos;
+	}
+
+	/**
+	 * takes the duration and, with a cache, the fingerprint of an analysed
+	 * track. The fingerprint is only known once all of the audio has been
+	 * read, so the features of the track are put into the FeatureCache here.
+	 *
+	 * @param t
+	 */
+	void identifyTrack(AnalysisPipeline.Track t) {
 		try {
-			synchronized (this) {
-				data.loadFromAudioFile(temp2.getAbsolutePath());
+			t.fingerprint = t.pcm.fingerprint();
+		} catch (Exception ex) {
+			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, ex);
+			t.failed = true;
+			return;
+		}
+		t.duration = t.pcm.getDuration();
+		if (featureCache != null) {
+			featureCache.putChromagram(t.fingerprint, chromagramSettings, t.chromagram);
+			if (t.onsetFunction != null) {
+				featureCache.putOnsetFunction(t.fingerprint, onsetSettings, t.onsetFunction);
 			}
+		}
+		t.chromagram = null;
+		t.onsetFunction = null;
+	}
+
+	/**
+	 * runs the key detector on the audio of a track
+	 *
+	 * @param t
+	 * @param audio the decoded audio at the samplerate of the file
+	 */
+	void detectKey(AnalysisPipeline.Track t, AudioSource audio) {
+		try {
+			// one decode pass at the samplerate of the file, downsampled in-process to about 4410 Hz for key detection.
+			// The PCM data is converted, downsampled and analysed chunk by chunk.
+			int factor = PrimaryDownsampler.getKeyDownsampleFactor(audio.getFrameRate());
+			AudioSource source = new PrimaryDownsampler().downsample(audio, factor);
 			if (c.duration != -1) {
-				data.cutLength(c.duration);
+				source = source.excerpt(c.duration);
 			}
-			r = k.findKey(data, p);
-			if (r.globalKeyEstimate == Parameters.key_t.SILENCE) {
-				System.out.println("SILENCE");
+			KeyFinder keyFinder = new KeyFinder();
+			Chromagram ch = keyFinder.chromagram(source, p);
+			if (featureCache != null) {
+				// for the FeatureCache, see identifyTrack()
+				t.chromagram = ch;
 			}
+			// a silent track is reported with the key SILENCE in its result line
+			t.keyResult = keyFinder.findKey(ch, p);
 		} catch (Exception ex) {
 			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, ex);
-			logDetectionResult(filename, "-", "-", false);
-			deleteTempFiles(temp, temp2);
-			return false;
+			t.failed = true;
 		}
+	}
 
-		String formattedBpm = "0";
-		if (!c.noBpm) {
-			// get bpm
-			if (c.hiQuality) {
-				try {
-					//decodeAudioFile(new File(filename), temp, 44100);
-					//@todo hiquality stuff
-				} catch (Exception ex) {
-					Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "couldn't decode " + filename + " for hiquality bpm detection.", ex);
-				}
+	/**
+	 * runs the key and the bpm detector on a track in a single pass over its
+	 * audio while it is decoded: every chunk read for the key detector is
+	 * also passed to BeatRoot's onset detection, which works on the full
+	 * samplerate. The tempo is then found by beat tracking or, with
+	 * --bpm-engine fast, estimated from the onset detection function alone.
+	 *
+	 * @param t
+	 */
+	void detectKeyAndBpm(AnalysisPipeline.Track t) {
+		final AudioProcessor onsetDetector = new AudioProcessor();
+		onsetDetector.setHeadless(true);
+		onsetDetector.setInputFormat(t.filename, t.pcm.getFrameRate(), t.pcm.getFrameCount());
+		final AudioSource pcm = t.pcm;
+		AudioSource shared = new AudioSource() {
+			@Override
+			public int getFrameRate() {
+				return pcm.getFrameRate();
 			}
-			double bpm = BeatRoot.getBPM(wavfilename);
-			if (Double.isNaN(bpm) && !c.hiQuality) {
-				try {
-					// bpm couldn't be detected. try again with a higher quality wav.
-					Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "bpm couldn't be detected for " + filename + ". Trying again.");
-					decodeAudioFile(new File(filename), temp, 44100);
-					bpm = BeatRoot.getBPM(wavfilename);
-					if (Double.isNaN(bpm)) {
-						Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "bpm still couldn't be detected for " + filename + ".");
-					} else {
-						Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.INFO, "bpm now detected correctly for " + filename);
-					}
-				} catch (Exception ex) {
-					logDetectionResult(filename, "-", "-", false);
-				}
-			} else if (Double.isNaN(bpm) && c.hiQuality) {
-				Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "bpm couldn't be detected for " + filename + ".");
+
+			@Override
+			public int getFrameCount() {
+				return pcm.getFrameCount();
 			}
-			if (!Double.isNaN(bpm)) {
-				formattedBpm = new DecimalFormat("#.#").format(bpm).replaceAll(",", ".");
+
+			@Override
+			public int getEstimatedFrameCount() {
+				return pcm.getEstimatedFrameCount();
+			}
+
+			@Override
+			public int read(double[] buffer, int offset, int length) throws Exception {
+				int n = pcm.read(buffer, offset, length);
+				onsetDetector.processSamples(buffer, offset, n);
+				return n;
 			}
+		};
+		detectKey(t, shared);
+		if (t.failed) {
+			return;
+		}
+		try {
+			// with --duration the key detector stops early, bpm detection needs the whole track
+			double[] rest = new double[8192];
+			while (shared.read(rest, 0, rest.length) > 0) {
+			}
+		} catch (Exception ex) {
+			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, ex);
+			t.failed = true;
+			return;
+		}
+		detectBpm(t, onsetDetector);
+		if (featureCache != null) {
+			t.onsetFunction = new FeatureCache.OnsetFunction(onsetDetector.getOnsetDetectionFunction(),
+					onsetDetector.getSampleRate(), onsetDetector.getHopSize());
 		}
-		System.out.printf("%s key: %s BPM: %s\n", filename, Parameters.camelotKey(r.globalKeyEstimate), formattedBpm);
+	}
 
-		boolean wroteTags = false;
-		if (c.writeTags) {
-			wroteTags = updateTags(filename, formattedBpm, Parameters.camelotKey(r.globalKeyEstimate));
+	/**
+	 * finds the tempo by beat tracking or, with --bpm-engine fast, estimates
+	 * it from the onset detection function alone
+	 *
+	 * @param t
+	 * @param onsetDetector holds the audio or the onset detection function
+	 * of the track
+	 */
+	void detectBpm(AnalysisPipeline.Track t, AudioProcessor onsetDetector) {
+		if (c.bpmEngine.equals(CommandLineArgs.BPM_ENGINE_FAST)) {
+			t.bpm = TempoEstimator.getBPM(onsetDetector);
+		} else {
+			t.bpm = BeatTracker.getBPM(onsetDetector);
+		}
+		t.bpmConfidence = TempoEstimator.getConfidence(onsetDetector.getOnsetDetectionFunction(),
+				TempoEstimator.getHopTime(onsetDetector), t.bpm);
+		if (Double.isNaN(t.bpm)) {
+			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "bpm couldn't be detected for " + t.filename + ".");
+		}
+	}
+
+	/**
+	 * runs the stages of key and bpm detection which follow the spectral
+	 * analysis and the onset detection on the features of a track taken from
+	 * the FeatureCache. This takes milliseconds instead of the seconds
+	 * decoding and spectral analysis take.
+	 *
+	 * @param t
+	 */
+	void detectFromFeatures(AnalysisPipeline.Track t) {
+		try {
+			t.keyResult = new KeyFinder().findKey(t.chromagram, p);
+		} catch (Exception ex) {
+			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, ex);
+			t.failed = true;
+			return;
+		}
+		t.chromagram = null;
+		if (t.onsetFunction != null) {
+			AudioProcessor onsetDetector = new AudioProcessor();
+			onsetDetector.setHeadless(true);
+			onsetDetector.setOnsetDetectionFunction(t.onsetFunction.values,
+					t.onsetFunction.sampleRate, t.onsetFunction.hopSize);
+			t.onsetFunction = null;
+			detectBpm(t, onsetDetector);
+		}
+	}
+
+	/**
+	 * prints the result of an analyzed track, adds a new result to the
+	 * result cache and, with -w, passes the tags to the TagWriter. Tags which
+	 * an earlier run wrote with the same result aren't written again. The
+	 * result is logged in the txt file once its tags have been written, see
+	 * tagsWritten().
+	 *
+	 * @param t
+	 * @return true if the track was analyzed successfully
+	 */
+	boolean writeResult(AnalysisPipeline.Track t) {
+		if (t.failed) {
+			logDetectionResult(t, false);
+			return false;
+		}
+		String formattedBpm = formatBpm(t.bpm);
+		String key = Parameters.camelotKey(t.keyResult.globalKeyEstimate);
+		System.out.printf("%s key: %s BPM: %s\n", t.filename, key, formattedBpm);
+
+		if (resultCache != null && !t.cached) {
+			resultCache.put(t.fingerprint, settings, t.keyResult, t.bpm, t.bpmConfidence, t.duration);
+		}
+		if (c.writeTags && !(t.cached && resultCache.isTagged(new File(t.filename), settings))) {
+			tagWriter.add(new TagWriter.Request(t.filename, key, c.noBpm ? null : formattedBpm, settings, t));
+		} else {
+			logDetectionResult(t, c.writeTags);
+			if (resultCache != null) {
+				resultCache.putFile(new File(t.filename), t.fingerprint, c.writeTags ? settings : 0);
+			}
 		}
-		logDetectionResult(filename, Parameters.camelotKey(r.globalKeyEstimate), formattedBpm, wroteTags);
-		deleteTempFiles(temp, temp2);
 		return true;
 	}
 
-	private void deleteTempFiles(File temp, File temp2) {
-		if (temp != null) {
-			temp.delete();
+	/**
+	 * called by the TagWriter when the tags of a track have been written (or
+	 * recorded in the journal), logs the result in the txt file and records
+	 * the file as it is now in the result cache
+	 *
+	 * @param r the write, its context is the track, or null for writes from
+	 * a journal
+	 * @param written true if the tags were written
+	 */
+	void tagsWritten(TagWriter.Request r, boolean written) {
+		File file = new File(r.filename);
+		AnalysisPipeline.Track t = (AnalysisPipeline.Track) r.context;
+		if (t != null) {
+			logDetectionResult(t, written);
+			if (resultCache != null) {
+				resultCache.putFile(file, t.fingerprint, written ? r.settings : 0);
+			}
+		} else if (written && resultCache != null && journalFingerprints != null) {
+			String fingerprint = journalFingerprints.get(r.filename);
+			if (fingerprint != null) {
+				resultCache.putFile(file, fingerprint, r.settings);
+			}
+		}
+	}
+
+	/**
+	 * writes the tags recorded in the --apply-journal file, sorted by
+	 * directory and filename, and keeps the result cache up to date, so the
+	 * changed files are still known to be analysed and tagged
+	 */
+	public void applyJournal() throws IOException, InterruptedException {
+		ArrayList<TagWriter.Request> requests = TagWriter.readJournal(new File(c.applyJournal));
+		journalFingerprints = new HashMap<String, String>();
+		if (resultCache != null) {
+			for (TagWriter.Request r : requests) {
+				String fingerprint = resultCache.getFingerprint(new File(r.filename));
+				if (fingerprint != null) {
+					journalFingerprints.put(r.filename, fingerprint);
+				}
+			}
+		}
+		long startTime = System.nanoTime();
+		final int[] applied = {0};
+		TagWriter writer = new TagWriter(requests.size(), new TagWriter.Listener() {
+			@Override
+			public void done(TagWriter.Request r, boolean written) {
+				tagsWritten(r, written);
+				if (written) {
+					applied[0]++;
+				}
+				System.out.printf("%s key: %s BPM: %s %s\n", r.filename, r.key, r.bpm == null ? "-" : r.bpm,
+						written ? "written" : "failed");
+			}
+		});
+		for (TagWriter.Request r : requests) {
+			writer.add(r);
+		}
+		writer.close();
+		System.out.printf("applied %d of %d tag writes in %.1f s\n", applied[0], requests.size(), (System.nanoTime() - startTime) / 1e9);
+		if (resultCache != null) {
+			resultCache.close();
 		}
-		if (temp2 != null) {
-			temp2.delete();
+		if (resultWriter != null) {
+			resultWriter.close();
 		}
 	}
 
+	/**
+	 * @return the bpm with one decimal, "0" if it is NaN
+	 */
+	static String formatBpm(double bpm) {
+		if (Double.isNaN(bpm)) {
+			return "0";
+		}
+		return new DecimalFormat("#.#").format(bpm).replaceAll(",", ".");
+	}
+
+	/**
+	 * runs key and bpm detector on
+	 *
+	 * @filename, optionally writes tags
+	 * @param filename
+	 * @return
+	 */
+	public boolean analyzeTrack(String filename, boolean writeTags) {
+		AnalysisPipeline.Track t = new AnalysisPipeline.Track(filename);
+		decodeTrack(t);
+		if (!t.failed) {
+			analyseTrack(t);
+		}
+		t.closeAudio();
+		boolean ok = writeResult(t);
+		tagWriter.flush();
+		return ok;
+	}
+
 	/**
 	 * This is the main loop of the program. For every file in the filenames
-	 * list, the file gets decoded and downsampled to a 4410 hz mono wav file.
-	 * Then key and bpm detectors are run, the result is logged in a txt file
-	 * and written to the tag if possible.
+	 * list, the file gets decoded to mono audio (keeping the samplerate of the
+	 * file), which is downsampled to about 4410 hz for key detection. The key
+	 * and bpm detectors read the audio chunk by chunk while it is decoded, the
+	 * result is logged in a txt file and written to the tag if possible.
+	 * Tracks whose result is in the ResultCache skip decoding (if the file
+	 * hasn't changed) and analysis. Each of these steps is a stage of an
+	 * AnalysisPipeline with its own worker threads: nDecoders threads look up
+	 * the caches and start decoding (e.g. start ffmpeg), nThreads threads run
+	 * the key and the bpm detector in one pass over the audio, and a single
+	 * thread writes the results, so
+	 * tags and the result list are never written concurrently. The queues
+	 * between the stages are bounded, so a slow stage holds back decoding
+	 * instead of piling up tracks whose decoding has been started.
 	 */
-	public void run() throws ExecutionException {
-		int nThreads = Runtime.getRuntime().availableProcessors();
-		ExecutorService threadPool = Executors.newFixedThreadPool(nThreads);
-		CompletionService<Boolean> pool;
-		pool = new ExecutorCompletionService<Boolean>(threadPool);
+	public void run() throws InterruptedException {
+		long startTime = System.nanoTime();
+		AnalysisPipeline pipeline = new AnalysisPipeline(nThreads);
+		pipeline.addStage(new AnalysisPipeline.Stage("decode", nDecoders) {
+			@Override
+			public void process(AnalysisPipeline.Track t) {
+				decodeTrack(t);
+			}
+		});
+		pipeline.addStage(new AnalysisPipeline.Stage("analyse", nThreads) {
+			@Override
+			public void process(AnalysisPipeline.Track t) {
+				analyseTrack(t);
+			}
+		});
+		pipeline.addStage(new AnalysisPipeline.Stage("write", 1) {
+			@Override
+			public void process(AnalysisPipeline.Track t) {
+				t.closeAudio();
+				if (writeResult(t)) {
+					analyzed++;
+					if (t.cached) {
+						cached++;
+					}
+				}
+			}
 
-		nextFile:
+			@Override
+			public void finish() {
+				// writes the last batch of tags
+				if (!tagWriter.close()) {
+					System.err.println("the journal " + c.journal + " is incomplete, not all tag writes were recorded");
+				}
+			}
+		});
+		pipeline.start();
+		int queued = 0;
+		// files given more than once, or also found by --scan, are analysed once
+		Set<String> listed = new HashSet<String>();
 		for (String filename : filenames) {
-			//new worker thread
-			pool.submit(new WorkTrack(filename));
+			if (!listed.add(canonicalPath(new File(filename)))) {
+				continue;
+			}
+			queued++;
+			// blocks while the decode stage is busy
+			pipeline.put(new AnalysisPipeline.Track(filename));
 		}
-		for (int i = 0; i < filenames.size(); i++) {
-			Boolean result;
-			//Compute the result
-			try {
-				result = pool.take().get();
-			} catch (InterruptedException e) {
-				Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, e);
+		if (!c.scanDirs.isEmpty()) {
+			queued += scan(pipeline, listed);
+		}
+		pipeline.finish();
+		// throughput report, run with different --threads/--decoders values to see how it scales
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.printf("analyzed %d of %d tracks (%d from cache) in %.1f s (%.2f tracks/s, %d threads, %d decoders)\n",
+				analyzed, queued, cached, seconds, analyzed / seconds,
+				nThreads, nDecoders);
+		if (resultCache != null) {
+			resultCache.close();
+		}
+		if (resultWriter != null) {
+			resultWriter.close();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * min. number of threads listing directories for --scan, listing is
+	 * mostly waiting for the file system
+	 */
+	static final int SCAN_THREADS = 8;
+
+	/**
+	 * Walks the --scan directories and puts every audio file into the
+	 * pipeline, unless it is up to date (see isUpToDate()). Only new and
+	 * changed files are decoded and analysed, the others aren't even
+	 * printed or written to the result list. The scan runs while the
+	 * pipeline works on the files found so far.
+	 *
+	 * @param pipeline the started pipeline
+	 * @param listed canonical paths of the files which are already in the
+	 * pipeline, they are skipped
+	 * @return number of files put into the pipeline
+	 */
+	int scan(final AnalysisPipeline pipeline, final Set<String> listed) throws InterruptedException {
+		long startTime = System.nanoTime();
+		ArrayList<File> roots = new ArrayList<File>();
+		for (String dir : c.scanDirs) {
+			roots.add(new File(dir));
+		}
+		final AtomicInteger queued = new AtomicInteger();
+		LibraryScanner scanner = new LibraryScanner(Math.max(nDecoders, SCAN_THREADS));
+		scanner.scan(roots, new LibraryScanner.Listener() {
+			@Override
+			public void found(File file) throws InterruptedException {
+				if (!listed.isEmpty() && listed.contains(canonicalPath(file))) {
+					return;
+				}
+				if (isUpToDate(file)) {
+					return;
+				}
+				queued.incrementAndGet();
+				// blocks while the decode stage is busy
+				pipeline.put(new AnalysisPipeline.Track(file.getPath()));
 			}
+		});
+		System.out.printf("scanned %d audio files in %d directories in %.1f s, %d new or changed\n",
+				scanner.getFiles(), scanner.getDirectories(), (System.nanoTime() - startTime) / 1e9, queued.get());
+		return queued.get();
+	}
+
+	/**
+	 * @return the canonical path of the file, or its absolute path if it
+	 * can't be resolved
+	 */
+	static String canonicalPath(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException ex) {
+			return file.getAbsolutePath();
 		}
-		threadPool.shutdown();
-		if (!Utils.isEmpty(c.writeList)) {
-			try {
-				writeListWriter.close();
-			} catch (IOException ex) {
-				Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.SEVERE, null, ex);
+	}
+
+	/**
+	 * @return true if the result cache has a result for the file as it is
+	 * now (same length and modification time as when it was recorded) and,
+	 * with -w, the tags hold this result
+	 */
+	boolean isUpToDate(File file) {
+		if (resultCache == null) {
+			return false;
+		}
+		String fingerprint = resultCache.getFingerprint(file);
+		return fingerprint != null && resultCache.get(fingerprint, settings) != null
+				&& (!c.writeTags || resultCache.isTagged(file, settings));
+	}
+
+	/**
+	 * number of frames read from the input stream at a time in stream mode,
+	 * about 0.1 s at 44.1 kHz
+	 */
+	static final int STREAM_BLOCK_SIZE = 4096;
+
+	/**
+	 * Analyses 16 bit signed little endian mono PCM with the samplerate given
+	 * by --stream while it arrives, e.g. a DJ set which is being recorded.
+	 * Each time the key estimate is updated (every hop of the key detector,
+	 * about 2 s), the key of the last StreamingAnalyzer.KEY_WINDOW seconds and
+	 * the bpm of the last StreamingAnalyzer.TEMPO_WINDOW seconds are printed.
+	 * Nothing is written to tags or the result list.
+	 *
+	 * @param in the PCM data
+	 */
+	public void runStream(InputStream in) throws Exception {
+		StreamingAnalyzer analyzer = new StreamingAnalyzer(c.streamRate, p, StreamingAnalyzer.KEY_WINDOW,
+				c.noBpm ? 0 : StreamingAnalyzer.TEMPO_WINDOW);
+		byte[] bytes = new byte[STREAM_BLOCK_SIZE * 2];
+		double[] samples = new double[STREAM_BLOCK_SIZE];
+		int carry = 0; // odd byte of an incomplete sample
+		int hops = 0;
+		long maxLatency = 0;
+		int n;
+		while ((n = in.read(bytes, carry, bytes.length - carry)) != -1) {
+			long start = System.nanoTime();
+			n += carry;
+			int frames = n / 2;
+			for (int i = 0; i < frames; i++) {
+				samples[i] = ((bytes[2 * i + 1] << 8) | (bytes[2 * i] & 0xff)) / 32768.0;
 			}
+			carry = n - 2 * frames;
+			if (carry > 0) {
+				bytes[0] = bytes[n - 1];
+			}
+			analyzer.process(samples, 0, frames);
+			if (analyzer.getHops() != hops) {
+				hops = analyzer.getHops();
+				printStreamResult(analyzer);
+			}
+			maxLatency = Math.max(maxLatency, System.nanoTime() - start);
 		}
-		System.exit(0);
+		analyzer.finish();
+		printStreamResult(analyzer);
+		Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.INFO,
+				String.format("max. latency per block of %d frames: %.1f ms", STREAM_BLOCK_SIZE, maxLatency / 1e6));
+	}
+
+	void printStreamResult(StreamingAnalyzer analyzer) throws Exception {
+		int seconds = (int) analyzer.getTime();
+		System.out.printf("%d:%02d:%02d key: %s BPM: %s\n", seconds / 3600, seconds / 60 % 60, seconds % 60,
+				Parameters.camelotKey(analyzer.getKey()), formatBpm(analyzer.getBpm()));
 	}
 
 	public static void main(String[] args) throws Exception {
 		TrackAnalyzer ta = new TrackAnalyzer(args);
-		ta.run();
+		if (ta.c.streamRate > 0) {
+			ta.runStream(System.in);
+		} else if (!Utils.isEmpty(ta.c.applyJournal)) {
+			ta.applyJournal();
+		} else {
+			ta.run();
+		}
 	}
 
 	/**
@@ -399,7 +883,9 @@ public class TrackAnalyzer {
 	 * There can only be one custom TXXX tag with that description in one MP3
 	 * file
 	 * @param text The actual text to be written into the new tag field
-	 * @return True if the tag has been properly written, false otherwise
+	 * @return True if the tag has been properly set, false otherwise. The
+	 * tag is only changed in memory, the caller commits the file once all
+	 * fields are set.
 	 */
 	public static boolean setCustomTag(AudioFile audioFile, String description, String text) throws IOException {
 		FrameBodyTXXX txxxBody = new FrameBodyTXXX();
@@ -481,14 +967,6 @@ public class TrackAnalyzer {
 			Logger.getLogger(TrackAnalyzer.class.getName()).log(Level.WARNING, "couldn't write key information for " + audioFile.getFile().getName() + " to tag, because this format is not supported.");
 			return false;
 		}
-
-		// write changes in tag to file
-		try {
-			audioFile.commit();
-		} catch (CannotWriteException e) {
-			e.printStackTrace();
-			return false;
-		}
 		return true;
 	}
 }
@@ -200,21 +200,22 @@ public class TrackAnalyzerBenchmark {
 	 */
 	public boolean analyzeTrack(String filename) {
 		KeyFinder k = new KeyFinder();
-		String wavfilename = "";
-		AudioData data = new AudioData();
 		assert(filename.toLowerCase().endsWith(".wav"));
 		File temp2 = new File(filename);
-		wavfilename = temp2.getAbsolutePath();
-		//decodeAudioFile(new File(filename), temp2);
 		KeyDetectionResult r;
 		try {
-			synchronized (this) {
-				data.loadFromAudioFile(temp2.getAbsolutePath());
-			}
-			if (c.duration != -1) {
-				data.cutLength(c.duration);
+			// read like TrackAnalyzer reads wav files: mixed to mono while
+			// the key detector runs, with --duration only the excerpt
+			PcmDecoder.PcmStream pcm = PcmDecoder.open(temp2, false);
+			try {
+				AudioSource audio = pcm;
+				if (c.duration != -1) {
+					audio = audio.excerpt(c.duration);
+				}
+				r = k.findKey(audio, p);
+			} finally {
+				pcm.close();
 			}
-			r = k.findKey(data, p);
 		} catch (Exception ex) {
 			Logger.getLogger(TrackAnalyzerBenchmark.class.getName()).log(Level.SEVERE, null, ex);
 			logDetectionResult(filename, "-", "-", false);
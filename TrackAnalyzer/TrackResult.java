@@ -0,0 +1,100 @@
+/*************************************************************************
+
+  Copyright 2012 Thomas Friedel
+
+  This file is part of TrackAnalyzer.
+
+  TrackAnalyzer is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  TrackAnalyzer is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with TrackAnalyzer.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************/
+package TrackAnalyzer;
+
+/**
+ * The result of one track as it is written to the result list (-o), see
+ * ResultSink. Values which aren't known are NaN, e.g. the bpm with --nobpm
+ * or the duration of a track which was taken from the result cache without
+ * decoding it.
+ */
+public class TrackResult {
+
+	private static final KeyDetectionSegment[] NO_SEGMENTS = new KeyDetectionSegment[0];
+	public String filename;
+	/**
+	 * set if the track couldn't be decoded or analysed, only the filename is
+	 * known then
+	 */
+	public boolean failed;
+	/**
+	 * the global key, null if the track failed
+	 */
+	public Parameters.key_t key;
+	/**
+	 * see KeyDetectionResult.confidence
+	 */
+	public float keyConfidence = Float.NaN;
+	/**
+	 * deviation from concert pitch in cents
+	 */
+	public float tuningOffset = Float.NaN;
+	public double bpm = Double.NaN;
+	/**
+	 * see TempoEstimator.getConfidence()
+	 */
+	public float bpmConfidence = Float.NaN;
+	public boolean wroteTags;
+	/**
+	 * set if the result was taken from the result cache
+	 */
+	public boolean cached;
+	/**
+	 * duration of the audio in seconds
+	 */
+	public float duration = Float.NaN;
+	/**
+	 * time spent decoding and analysing the track in ms, 0 for a step
+	 * which was skipped
+	 */
+	public float decodeMillis;
+	public float analyseMillis;
+	/**
+	 * the segments the key was detected in, their first and last windows
+	 * are hops of the chromagram
+	 */
+	public KeyDetectionSegment[] segments = NO_SEGMENTS;
+
+	public TrackResult() {
+	}
+
+	/**
+	 * @param t a track which made it through the pipeline
+	 * @param wroteTags true if the tags of the track were written
+	 */
+	public TrackResult(AnalysisPipeline.Track t, boolean wroteTags) {
+		filename = t.filename;
+		failed = t.failed;
+		this.wroteTags = wroteTags;
+		cached = t.cached;
+		duration = (float) t.duration;
+		decodeMillis = t.decodeNanos / 1e6f;
+		analyseMillis = t.analyseNanos / 1e6f;
+		if (!t.failed) {
+			key = t.keyResult.globalKeyEstimate;
+			keyConfidence = t.keyResult.confidence;
+			tuningOffset = t.keyResult.tuningOffset;
+			bpm = t.bpm;
+			bpmConfidence = (float) t.bpmConfidence;
+			segments = t.keyResult.segments.toArray(new KeyDetectionSegment[t.keyResult.segments.size()]);
+		}
+	}
+}
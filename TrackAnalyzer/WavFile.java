@@ -45,6 +45,9 @@ public class WavFile
 	private int bytesRead;					// Bytes read after last read into local buffer
 	private long frameCounter;				// Current number of frames read or written
 
+	// Seeking
+	private long dataOffset;				// File position of the first frame
+
 	// Cannot instantiate WavFile directly, must either use newWavFile() or openWavFile()
 	private WavFile()
 	{
@@ -264,6 +267,7 @@ public class WavFile
 
 				// Calculate the number of frames
 				wavFile.numFrames = chunkSize / wavFile.blockAlign;
+				wavFile.dataOffset = wavFile.iStream.getChannel().position();
 				
 				// Flag that we've found the wave data chunk
 				foundData = true;
@@ -304,6 +308,23 @@ public class WavFile
 		return wavFile;
 	}
 
+	// Seek to a frame, without reading the frames before it
+	public void seek(long frame) throws IOException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot seek in WavFile instance");
+		if (frame < 0 || frame > numFrames) throw new IOException("Cannot seek to frame " + frame + " of " + numFrames);
+		frameCounter = frame;
+		syncStream();
+	}
+
+	// Position the input stream at frameCounter and discard the local buffer
+	private void syncStream() throws IOException
+	{
+		iStream.getChannel().position(dataOffset + frameCounter * blockAlign);
+		bufferPointer = 0;
+		bytesRead = 0;
+	}
+
 	// Get and Put little endian data from local buffer
 	// ------------------------------------------------
 	private static long getLE(byte[] buffer, int pos, int numBytes)
@@ -572,6 +593,35 @@ public class WavFile
 	{
 		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
 
+		if (bytesPerSample == 2)
+		{
+			// 16 bit: convert whole blocks of samples from the local buffer
+			int frames = (int) Math.min(numFramesToRead, numFrames - frameCounter);
+			int numSamples = frames * numChannels;
+			int i = 0;
+			while (i < numSamples)
+			{
+				if (bytesRead - bufferPointer < 2)
+				{
+					// Refill the buffer, the sample may be split across two reads
+					sampleBuffer[offset + i] = floatOffset + (double) readSample() / floatScale;
+					i ++;
+					continue;
+				}
+
+				int n = Math.min(numSamples - i, (bytesRead - bufferPointer) / 2);
+				for (int j=0 ; j<n ; j++)
+				{
+					int v = (buffer[bufferPointer] & 0xFF) | (buffer[bufferPointer + 1] << 8);
+					sampleBuffer[offset + i + j] = floatOffset + (double) v / floatScale;
+					bufferPointer += 2;
+				}
+				i += n;
+			}
+			frameCounter += frames;
+			return frames;
+		}
+
 		for (int f=0 ; f<numFramesToRead ; f++)
 		{
 			if (frameCounter == numFrames) return f;
@@ -21,7 +21,6 @@
 /* This file was modified in 2012 by Thomas Friedel */
 package at.ofai.music.audio;
 
-import TrackAnalyzer.FftPostProcessor;
 import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
 import java.util.Arrays;
 
@@ -0,0 +1,105 @@
+/*
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the
+	Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+package at.ofai.music.audio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Compares the spectrum computations of the beat tracking front end:
+ *  the static methods of {@link FFT} (a new plan for each frame for the
+ *  magnitude, the complex radix-2 FFT for magnitude and phase) against
+ *  {@link RealFFT} with its reusable plan, on frames of random noise, e.g.<br>
+ *  <code>java at.ofai.music.audio.FFTBenchmark -n 20000 2048 4096</code><br>
+ *  Each line shows the mean time per frame after a warm-up of the same
+ *  number of frames.
+ */
+public class FFTBenchmark {
+
+	public static void main(String[] args) {
+		int frames = 20000;
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n"))
+				frames = Integer.parseInt(args[++i]);
+			else
+				sizes.add(Integer.parseInt(args[i]));
+		}
+		if (sizes.isEmpty()) {
+			sizes.add(2048);
+			sizes.add(4096);
+		}
+		for (int size : sizes) {
+			double[][] input = new double[16][size];
+			Random random = new Random(size);
+			for (double[] frame : input)
+				for (int i = 0; i < size; i++)
+					frame[i] = random.nextGaussian();
+			for (int mode = 0; mode < 4; mode++) {
+				run(mode, input, frames);				// warm-up
+				long t0 = System.nanoTime();
+				double check = run(mode, input, frames);
+				long t1 = System.nanoTime();
+				System.out.printf("%5d %-28s %8.2f us/frame (%g)\n", size,
+						NAMES[mode], (t1 - t0) / 1e3 / frames, check);
+			}
+		}
+	} // main()
+
+	static final String[] NAMES = {"FFT.magnitudeRealPhaseFFT", "RealFFT.magnitude",
+								"FFT.magnitudePhaseFFT", "RealFFT.magnitudePhase"};
+
+	/** Computes the spectrum of <code>frames</code> frames, cycling through
+	 *  the input frames.
+	 *  @return The sum of the first magnitude bin, so that the work can't be
+	 *  optimised away
+	 */
+	static double run(int mode, double[][] input, int frames) {
+		int size = input[0].length;
+		double[] re = new double[size];
+		double[] im = new double[size];
+		RealFFT fft = new RealFFT(size);
+		double check = 0;
+		for (int f = 0; f < frames; f++) {
+			double[] frame = input[f % input.length];
+			switch (mode) {
+				case 0:
+					System.arraycopy(frame, 0, re, 0, size);
+					FFT.magnitudeRealPhaseFFT(re, im);
+					break;
+				case 1:
+					fft.magnitude(frame, re);
+					break;
+				case 2:
+					System.arraycopy(frame, 0, re, 0, size);
+					Arrays.fill(im, 0);
+					FFT.magnitudePhaseFFT(re, im);
+					break;
+				default:
+					fft.magnitudePhase(frame, re, im);
+			}
+			check += re[1];
+		}
+		return check;
+	} // run()
+
+} // class FFTBenchmark
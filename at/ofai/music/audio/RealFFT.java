@@ -0,0 +1,115 @@
+/*
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the
+	Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+package at.ofai.music.audio;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+
+/** Class for computing the spectrum of successive frames of real data of
+ *  the same size. Unlike the static methods of {@link FFT}, the JTransforms
+ *  plan (with its precomputed twiddle factors) and the work buffer are
+ *  created once, in the constructor, and the transform only computes the
+ *  n/2+1 non-redundant bins of the real input. The phase is only computed
+ *  if it is asked for.
+ */
+public class RealFFT {
+
+	/** The number of input samples per frame */
+	protected int size;
+
+	/** The JTransforms plan for frames of <code>size</code> samples */
+	protected DoubleFFT_1D plan;
+
+	/** The work buffer for the in-place transform */
+	protected double[] buffer;
+
+	/** Constructor.
+	 *  @param size The number of input samples per frame, a power of 2
+	 *  @throws IllegalArgumentException if size is not a power of 2
+	 */
+	public RealFFT(int size) {
+		if ((size < 2) || ((size & (size - 1)) != 0))
+			throw new IllegalArgumentException("FFT data must be power of 2");
+		this.size = size;
+		plan = new DoubleFFT_1D(size);
+		buffer = new double[size];
+	} // constructor
+
+	/** @return The number of input samples per frame */
+	public int getSize() {
+		return size;
+	} // getSize()
+
+	/** Computes the magnitude spectrum of a real frame.
+	 *  The input may be the same array as the output.
+	 *  @param input The real input data, at least <code>size</code> values
+	 *  @param magnitude The magnitude of bins 0 to size/2 (inclusive) of the
+	 *  output data; the values above size/2 are not changed
+	 */
+	public void magnitude(double[] input, double[] magnitude) {
+		transform(input);
+		int half = size / 2;
+		magnitude[0] = Math.abs(buffer[0]);
+		magnitude[half] = Math.abs(buffer[1]);
+		for (int i = 1; i < half; i++) {
+			double re = buffer[2*i];
+			double im = buffer[2*i+1];
+			magnitude[i] = Math.sqrt(re * re + im * im);
+		}
+	} // magnitude()
+
+	/** Computes the magnitude and phase spectrum of a real frame, with the
+	 *  phase approximated by {@link FastTrig#aTan2(double, double)} like
+	 *  {@link FFT#magnitudePhaseFFT(double[], double[])}.
+	 *  The input may be the same array as one of the outputs.
+	 *  @param input The real input data, at least <code>size</code> values
+	 *  @param magnitude The magnitude of bins 0 to size/2 (inclusive) of the
+	 *  output data; the values above size/2 are not changed
+	 *  @param phase The phase of bins 0 to size/2 (inclusive) of the output
+	 *  data; the values above size/2 are not changed
+	 */
+	public void magnitudePhase(double[] input, double[] magnitude,
+								double[] phase) {
+		transform(input);
+		int half = size / 2;
+		magnitude[0] = Math.abs(buffer[0]);
+		phase[0] = FastTrig.aTan2(0, buffer[0]);
+		magnitude[half] = Math.abs(buffer[1]);
+		phase[half] = FastTrig.aTan2(0, buffer[1]);
+		for (int i = 1; i < half; i++) {
+			double re = buffer[2*i];
+			double im = buffer[2*i+1];
+			magnitude[i] = Math.sqrt(re * re + im * im);
+			phase[i] = FastTrig.aTan2(im, re);
+		}
+	} // magnitudePhase()
+
+	/** Copies the input to the work buffer and transforms it. The result is
+	 *  in the packed format of DoubleFFT_1D.realForward(): the real parts of
+	 *  bins 0 and size/2 in buffer[0] and buffer[1], the real and imaginary
+	 *  parts of bin i (0 &lt; i &lt; size/2) in buffer[2i] and buffer[2i+1].
+	 */
+	protected void transform(double[] input) {
+		System.arraycopy(input, 0, buffer, 0, size);
+		plan.realForward(buffer);
+	} // transform()
+
+} // class RealFFT
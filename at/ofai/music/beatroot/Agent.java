@@ -112,8 +112,12 @@ public class Agent {
 	/** The time of the most recent beat accepted by this Agent. */
 	public double beatTime;
 	
-	/** The list of Events (onsets) accepted by this Agent as beats, plus interpolated beats. */
-	public EventList events;
+	/** The onsets accepted by this Agent as beats, plus interpolated beats. */
+	public EventSequence events;
+
+	/** The new Agent created by the last call of considerAsBeat(double, double),
+	 *  which does not accept the onset as a beat, or null if none was created. */
+	protected Agent fork;
 
 	/** Constructor: the work is performed by init()
 	 *  @param ibi The beat period (inter-beat interval) of the Agent's tempo hypothesis.
@@ -133,7 +137,7 @@ public class Agent {
 		beatInterval = clone.beatInterval;
 		initialBeatInterval = clone.initialBeatInterval;
 		beatTime = clone.beatTime;
-		events = new EventList(clone.events);
+		events = new EventSequence(clone.events);
 		postMargin = clone.postMargin;
 		preMargin = clone.preMargin;
 	} // copy constructor
@@ -156,7 +160,7 @@ public class Agent {
 		topScoreTime = 0.0;
 		beatCount = 0;
 		beatTime = -1.0;
-		events = new EventList();
+		events = new EventSequence();
 	} // init()
 
 	/** Output debugging information about this Agent, at the default (highest) level of detail.	 */
@@ -181,14 +185,15 @@ public class Agent {
 			events.print();
 	} // print()
 
-	/** Accept a new Event as a beat time, and update the state of the Agent accordingly.
-	 *  @param e The Event which is accepted as being on the beat.
+	/** Accept a new onset as a beat time, and update the state of the Agent accordingly.
+	 *  @param time The time of the onset which is accepted as being on the beat.
+	 *  @param salience The salience of the onset.
 	 *  @param err The difference between the predicted and actual beat times.
-	 *  @param beats The number of beats since the last beat that matched an Event.
+	 *  @param beats The number of beats since the last beat that matched an onset.
 	 */
-	protected void accept(Event e, double err, int beats) {
-		beatTime = e.keyDown;
-		events.add(e);
+	protected void accept(double time, double salience, double err, int beats) {
+		beatTime = time;
+		events.add(time, salience);
 		if (Math.abs(initialBeatInterval - beatInterval -
 				err / correctionFactor) < MAX_CHANGE * initialBeatInterval)
 			beatInterval += err / correctionFactor;// Adjust tempo
@@ -198,9 +203,9 @@ public class Agent {
 		if (decayFactor > 0) {
 			double memFactor = 1. - 1. / Util.threshold((double)beatCount,1,decayFactor);
 			phaseScore = memFactor * phaseScore +
-						 (1.0 - memFactor) * conFactor * e.salience;
+						 (1.0 - memFactor) * conFactor * salience;
 		} else
-			phaseScore += conFactor * e.salience;
+			phaseScore += conFactor * salience;
 		if (debug) {
 			print(1);
 			System.out.printf("  Err=" + (err<0?"":"+") + "%5.3f" +
@@ -209,39 +214,68 @@ public class Agent {
 		}
 	} // accept()
 
-	/** The given Event is tested for a possible beat time. The following situations can occur:
+	/** The given onset is tested for a possible beat time. The following situations can occur:
 	 *  1) The Agent has no beats yet; the Event is accepted as the first beat.
 	 *  2) The Event is beyond expiryTime seconds after the Agent's last 'confirming' beat; the Agent is terminated.
 	 *  3) The Event is within the innerMargin of the beat prediction; it is accepted as a beat.
 	 *  4) The Event is within the outerMargin's of the beat prediction; it is accepted as a beat by this Agent,
 	 *     and a new Agent is created which doesn't accept it as a beat.
 	 *  5) The Event is ignored because it is outside the windows around the Agent's predicted beat time.
-	 * @param e The Event to be tested
+	 * @param time The time of the onset to be tested
+	 * @param salience The salience of the onset
 	 * @param a The list of all agents, which is updated if a new agent is created.
-	 * @return Indicate whether the given Event was accepted as a beat by this Agent.
+	 * @return Indicate whether the given onset was accepted as a beat by this Agent.
 	 */
-	public boolean considerAsBeat(Event e, AgentList a) {
+	public boolean considerAsBeat(double time, double salience, AgentList a) {
+		boolean accepted = considerAsBeat(time, salience);
+		if (fork != null) {
+			a.add(fork);
+			fork = null;
+		}
+		return accepted;
+	} // considerAsBeat()/list
+
+	/** The given onset is tested for a possible beat time, see
+	 *  considerAsBeat(double, double, AgentList). Instead of being added to a
+	 *  list, a new Agent (case 4) is left in <code>fork</code>, so that the
+	 *  Agents can be tested independently of each other.
+	 * @param time The time of the onset to be tested
+	 * @param salience The salience of the onset
+	 * @return Indicate whether the given onset was accepted as a beat by this Agent.
+	 */
+	protected boolean considerAsBeat(double time, double salience) {
 		double err;
+		fork = null;
 		if (beatTime < 0) {	// first event
-			accept(e, 0, 1);
+			accept(time, salience, 0, 1);
 			return true;
 		} else {			// subsequent events
-			if (e.keyDown - events.l.getLast().keyDown > expiryTime) {
+			if (time - events.lastTime() > expiryTime) {
 				phaseScore = -1.0;	// flag agent to be deleted
 				return false;
 			}
-			double beats = Math.round((e.keyDown - beatTime) / beatInterval);
-			err = e.keyDown - beatTime - beats * beatInterval;
+			double beats = Math.round((time - beatTime) / beatInterval);
+			err = time - beatTime - beats * beatInterval;
 			if ((beats > 0) && (-preMargin <= err) && (err <= postMargin)) {
 				if (Math.abs(err) > innerMargin)	// Create new agent that skips this
-					a.add(new Agent(this));	//  event (avoids large phase jump)
-				accept(e, err, (int)beats);
+					fork = new Agent(this);	//  event (avoids large phase jump)
+				accept(time, salience, err, (int)beats);
 				return true;
 			}
 		}
 		return false;
 	} // considerAsBeat()
 
+	/** The given Event is tested for a possible beat time, see
+	 *  considerAsBeat(double, double, AgentList).
+	 * @param e The Event to be tested
+	 * @param a The list of all agents, which is updated if a new agent is created.
+	 * @return Indicate whether the given Event was accepted as a beat by this Agent.
+	 */
+	public boolean considerAsBeat(Event e, AgentList a) {
+		return considerAsBeat(e.keyDown, e.salience, a);
+	} // considerAsBeat()/Event
+
 	/** Interpolates missing beats in the Agent's beat track, starting from the beginning of the piece. */
 	protected void fillBeats() {
 		fillBeats(-1.0);
@@ -252,16 +286,13 @@ public class Agent {
 	 */
 	protected void fillBeats(double start) {
 		double prevBeat = 0, nextBeat, currentInterval, beats;
-		ListIterator<Event> list = events.listIterator();
-		if (list.hasNext()) {
-			prevBeat = list.next().keyDown;
-			// alt. to fill from 0:
-			// prevBeat = Math.mod(list.next().keyDown, beatInterval);
-			list.previous();
-		}
-		for ( ; list.hasNext(); list.next()) {
-			nextBeat = list.next().keyDown;
-			list.previous();
+		EventSequence filled = new EventSequence(events.size() * 2);
+		// alt. to fill from 0:
+		// prevBeat = Math.mod(events.time(0), beatInterval);
+		if (events.size() > 0)
+			prevBeat = events.time(0);
+		for (int i = 0; i < events.size(); i++) {
+			nextBeat = events.time(i);
 			beats = Math.round((nextBeat - prevBeat) / beatInterval - 0.01); //prefer slow
 			currentInterval = (nextBeat - prevBeat) / beats;
 			for ( ; (nextBeat > start) && (beats > 1.5); beats--) {
@@ -269,10 +300,12 @@ public class Agent {
 				if (debug)
 					System.out.printf("Insert beat at: %8.3f (n=%1.0f)\n",
 										prevBeat, beats - 1.0);
-				list.add(BeatTrackDisplay.newBeat(prevBeat, 0));	// more than once OK??
+				filled.add(prevBeat, 0);	// more than once OK??
 			}
+			filled.add(nextBeat, events.salience(i));
 			prevBeat = nextBeat;
 		}
+		events = filled;
 	} // fillBeats()
 
 	/** Show detailed debugging output describing the beat tracking behaviour of this agent.
@@ -290,24 +323,24 @@ public class Agent {
 	public void showTracking(EventList allEvents, double level) {
 		int count = 1, gapCount;
 		double prevBeat, nextBeat, gap;
-		ListIterator<Event> beats = events.listIterator();	// point to 1st beat
+		int beatIndex = 0;										// point to 1st beat
 		ListIterator<Event> all = allEvents.listIterator();	// point to 1st event 
-		if (!beats.hasNext()) {
+		if (events.size() == 0) {
 			System.err.println("No beats found");
 			return;
 		}
-		prevBeat = events.l.getFirst().keyDown;
+		prevBeat = events.time(0);
 		// prevBeat = fmod(beats.next().keyDown, beatInterval);
 		System.out.print("Beat  (IBI)   BeatTime   Other Events");
 		boolean first = true;
 		while (all.hasNext()) {	// print each real event
 			Event currentEvent = all.next();
-			Event currentBeat = null;
-			while (beats.hasNext()) {	// if event was chosen as beat
-				currentBeat = beats.next();
-				if (currentBeat.keyDown > currentEvent.keyDown + Induction.clusterWidth)
+			double currentBeat = -1;
+			while (beatIndex < events.size()) {	// if event was chosen as beat
+				currentBeat = events.time(beatIndex++);
+				if (currentBeat > currentEvent.keyDown + Induction.clusterWidth)
 					break;
-				gap = currentBeat.keyDown - prevBeat;
+				gap = currentBeat - prevBeat;
 				gapCount = (int) Math.round(gap / beatInterval);
 				for (int j = 1; j < gapCount; j++) {	//empty beat(s) before event
 					nextBeat = prevBeat + gap / gapCount;
@@ -317,12 +350,12 @@ public class Agent {
 				}
 				System.out.printf("\n%4d (%5.3f) ",
 						count++, currentEvent.keyDown - prevBeat);
-				prevBeat = currentBeat.keyDown;
-				currentBeat = null;
+				prevBeat = currentBeat;
+				currentBeat = -1;
 				first = false;
 			}
-			if ((currentBeat != null) && (currentBeat.keyDown > currentEvent.keyDown)) {
-				gap = currentBeat.keyDown - prevBeat;
+			if ((currentBeat >= 0) && (currentBeat > currentEvent.keyDown)) {
+				gap = currentBeat - prevBeat;
 				gapCount = (int) Math.round(gap / beatInterval);
 				for (int j = 1; j < gapCount; j++) {	//empty beat(s) before event
 					nextBeat = prevBeat + gap / gapCount;
@@ -19,13 +19,14 @@
 
 package at.ofai.music.beatroot;
 
-import java.util.ListIterator;
+import java.util.Arrays;
 
-import at.ofai.music.util.Event;
 import at.ofai.music.util.EventList;
 
 /** Class for maintaining the set of all Agents involved in beat tracking a piece of music.
  *  Implements a simple linked list terminated by an AgentList with a null Agent (ag).
+ *  While beat tracking, the Agents are held in an array sorted by beatInterval,
+ *  see beatTrack(EventSequence, double).
  */
 public class AgentList {
 
@@ -133,6 +134,22 @@ public class AgentList {
 		} // while
 	} // sort()
 
+	/** Sorts an array of Agents by increasing beatInterval, using an insertion
+	 *  sort since it is assumed that the array is almost sorted. Like sort(),
+	 *  it keeps the order of Agents with the same beatInterval.
+	 *  @param agents The Agents to sort
+	 *  @param n The number of Agents in the array
+	 */
+	protected static void sort(Agent[] agents, int n) {
+		for (int i = 1; i < n; i++) {
+			Agent a = agents[i];
+			int j = i - 1;
+			for ( ; (j >= 0) && (agents[j].beatInterval > a.beatInterval); j--)
+				agents[j + 1] = agents[j];
+			agents[j + 1] = a;
+		}
+	} // sort()/array
+
 	/** Removes the current item from the list.
 	 *  The current item does not need to be the head of the whole list.
 	 *  @param ptr Points to the Agent which is removed from the list
@@ -148,34 +165,77 @@ public class AgentList {
 	 *  thresholdBI and thresholdBT respectively.
 	 */
 	protected void removeDuplicates() {
-		sort();
-		for (AgentList ptr = this; ptr.ag != null; ptr = ptr.next) {
-			if (ptr.ag.phaseScore < 0.0)		// already flagged for deletion
+		Agent[] agents = toArray();
+		sort(agents, agents.length);
+		setAgents(agents, removeDuplicates(agents, agents.length));
+	} // removeDuplicates()
+
+	/** Removes duplicates from an array of Agents sorted by beatInterval, see
+	 *  removeDuplicates(). Since the array is sorted, each Agent is only
+	 *  compared with the following Agents within thresholdBI.
+	 *  @param agents The Agents, sorted by increasing beatInterval
+	 *  @param n The number of Agents in the array
+	 *  @return The number of remaining Agents, which are moved to the front of the array
+	 */
+	protected static int removeDuplicates(Agent[] agents, int n) {
+		for (int i = 0; i < n; i++) {
+			Agent a1 = agents[i];
+			if (a1.phaseScore < 0.0)		// already flagged for deletion
 				continue;
-			for (AgentList ptr2 = ptr.next; ptr2.ag != null; ptr2 = ptr2.next) {
-				if (ptr2.ag.beatInterval - ptr.ag.beatInterval > thresholdBI)
+			for (int j = i + 1; j < n; j++) {
+				Agent a2 = agents[j];
+				if (a2.beatInterval - a1.beatInterval > thresholdBI)
 					break;
-				if (Math.abs(ptr.ag.beatTime - ptr2.ag.beatTime) > thresholdBT)
+				if (Math.abs(a1.beatTime - a2.beatTime) > thresholdBT)
 					continue;
-				if (ptr.ag.phaseScore < ptr2.ag.phaseScore) {
-					ptr.ag.phaseScore = -1.0;	// flag for deletion
-					if (ptr2.ag.topScoreTime < ptr.ag.topScoreTime)
-						ptr2.ag.topScoreTime = ptr.ag.topScoreTime;
+				if (a1.phaseScore < a2.phaseScore) {
+					a1.phaseScore = -1.0;	// flag for deletion
+					if (a2.topScoreTime < a1.topScoreTime)
+						a2.topScoreTime = a1.topScoreTime;
 					break;
 				} else {
-					ptr2.ag.phaseScore = -1.0;	// flag for deletion
-					if (ptr.ag.topScoreTime < ptr2.ag.topScoreTime)
-						ptr.ag.topScoreTime = ptr2.ag.topScoreTime;
+					a2.phaseScore = -1.0;	// flag for deletion
+					if (a1.topScoreTime < a2.topScoreTime)
+						a1.topScoreTime = a2.topScoreTime;
 				}
 			}
 		}
-		for (AgentList ptr = this; ptr.ag != null; ) {
-			if (ptr.ag.phaseScore < 0.0) {
-				remove(ptr);
-			} else
-				ptr = ptr.next;
+		int remaining = 0;
+		for (int i = 0; i < n; i++)
+			if (agents[i].phaseScore >= 0.0)
+				agents[remaining++] = agents[i];
+		Arrays.fill(agents, remaining, n, null);
+		return remaining;
+	} // removeDuplicates()/array
+
+	/** @return The Agents of the list, in list order */
+	protected Agent[] toArray() {
+		int n = 0;
+		for (AgentList ptr = this; ptr.ag != null; ptr = ptr.next)
+			n++;
+		Agent[] agents = new Agent[n];
+		n = 0;
+		for (AgentList ptr = this; ptr.ag != null; ptr = ptr.next)
+			agents[n++] = ptr.ag;
+		return agents;
+	} // toArray()
+
+	/** Replaces the contents of the list.
+	 *  @param agents The new Agents, in list order
+	 *  @param n The number of Agents in the array
+	 */
+	protected void setAgents(Agent[] agents, int n) {
+		AgentList ptr = this;
+		for (int i = 0; i < n; i++) {
+			ptr.ag = agents[i];
+			if (ptr.next == null)
+				ptr.next = new AgentList();
+			ptr = ptr.next;
 		}
-	} // removeDuplicates()
+		ptr.ag = null;
+		ptr.next = null;
+		count = n;
+	} // setAgents()
 
 	/** Perform beat tracking on a list of events (onsets).
 	 *  @param el The list of onsets (or events or peaks) to beat track
@@ -189,36 +249,119 @@ public class AgentList {
 	 *  @param stop Do not find beats after <code>stop</code> seconds.
 	 */
 	public void beatTrack(EventList el, double stop) {
-		ListIterator<Event> ptr = el.listIterator();
-		boolean phaseGiven = (ag != null) &&
-							 (ag.beatTime >= 0); // if given for one, assume given for others
-		while (ptr.hasNext()) {
-			Event ev = ptr.next();
-			if ((stop > 0) && (ev.keyDown > stop))
+		beatTrack(EventSequence.fromEventList(el), stop);
+	} // beatTrack()/2
+
+	/** Perform beat tracking on a sequence of onsets.
+	 *  The Agents are held in an array sorted by beatInterval. For each onset,
+	 *  all Agents first consider the onset independently of each other (see
+	 *  Agent.considerAsBeat(double, double)). The new Agents are then merged
+	 *  into the array where the linked list version of this loop (one Agent
+	 *  after the other, add() as soon as an Agent is created) would have
+	 *  inserted them, so that the result does not change.
+	 *  @param onsets The onsets (or events or peaks) to beat track.
+	 *  @param stop Do not find beats after <code>stop</code> seconds.
+	 */
+	public void beatTrack(EventSequence onsets, double stop) {
+		if (ag == null)
+			return;
+		boolean phaseGiven = (ag.beatTime >= 0); // if given for one, assume given for others
+		Agent[] agents = toArray();
+		int n = agents.length;
+		Agent[] merged = new Agent[3 * n];
+		double[] maxBI = new double[merged.length];	// maxBI[k]: max beatInterval of merged[0..k]
+		double[] initialBI = new double[n];
+		boolean[] accepted = new boolean[n];
+		for (int i = 0; i < onsets.size(); i++) {
+			double time = onsets.time(i);
+			double salience = onsets.salience(i);
+			if ((stop > 0) && (time > stop))
 				break;
+			if (initialBI.length < n) {
+				initialBI = new double[2 * n];
+				accepted = new boolean[2 * n];
+			}
+			if (merged.length < 3 * n) {
+				merged = new Agent[6 * n];
+				maxBI = new double[merged.length];
+			}
+			for (int j = 0; j < n; j++) {	// loop for each agent
+				initialBI[j] = agents[j].beatInterval;
+				accepted[j] = agents[j].considerAsBeat(time, salience);
+			}
 			boolean created = phaseGiven;
 			double prevBeatInterval = -1.0;
-			for (AgentList ap = this; ap.ag != null; ap = ap.next) {
-				Agent currentAgent = ap.ag;
-				if (currentAgent.beatInterval != prevBeatInterval) {
-					if ((prevBeatInterval>=0) && !created && (ev.keyDown<5.0)) {
+			int m = 0;
+			for (int j = 0; j < n; j++) {
+				Agent currentAgent = agents[j];
+				boolean newAgentHere = false;
+				if (initialBI[j] != prevBeatInterval) {
+					if ((prevBeatInterval>=0) && !created && (time<5.0)) {
 						// Create new agent with different phase
 						Agent newAgent = new Agent(prevBeatInterval);
-						newAgent.considerAsBeat(ev, this);
-						add(newAgent);
+						newAgent.considerAsBeat(time, salience);
+						newAgentHere = (insert(merged, maxBI, m, newAgent) == m);
+						m++;
 					}
-					prevBeatInterval = currentAgent.beatInterval;
+					prevBeatInterval = initialBI[j];
 					created = phaseGiven;
 				}
-				if (currentAgent.considerAsBeat(ev, this))
+				boolean forkHere = false;
+				if (currentAgent.fork != null) {
+					forkHere = (insert(merged, maxBI, m, currentAgent.fork) == m);
+					m++;
+					currentAgent.fork = null;
+				}
+				if (accepted[j])
 					created = true;
-				if (currentAgent != ap.ag)	// new one been inserted, skip it
-					ap = ap.next;
+				merged[m] = currentAgent;
+				maxBI[m] = (m == 0)? currentAgent.beatInterval:
+									 Math.max(maxBI[m-1], currentAgent.beatInterval);
+				m++;
+				if (newAgentHere && forkHere &&
+						(currentAgent.beatInterval != prevBeatInterval)) {
+					// the linked list visits currentAgent again, which only
+					// affects the creation of agents with different phase
+					prevBeatInterval = currentAgent.beatInterval;
+					created = phaseGiven;
+				}
 			} // loop for each agent
-			removeDuplicates();
+			Agent[] tmp = agents;
+			agents = merged;
+			merged = tmp;
+			n = m;
+			sort(agents, n);
+			n = removeDuplicates(agents, n);
 		} // loop for each event
+		setAgents(agents, n);
 	} // beatTrack()
 
+	/** Inserts an Agent into an array before the first Agent whose beatInterval
+	 *  is greater than or equal to its own, or at the end, as add() does.
+	 *  @param agents The array
+	 *  @param maxBI The running maximum of the beatIntervals in the array,
+	 *  used for a binary search of the position, and updated
+	 *  @param n The number of Agents in the array before the insertion
+	 *  @param a The Agent to insert
+	 *  @return The index of the inserted Agent
+	 */
+	protected static int insert(Agent[] agents, double[] maxBI, int n, Agent a) {
+		int lo = 0;
+		int hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (maxBI[mid] >= a.beatInterval)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		System.arraycopy(agents, lo, agents, lo + 1, n - lo);
+		System.arraycopy(maxBI, lo, maxBI, lo + 1, n - lo);
+		agents[lo] = a;
+		maxBI[lo] = a.beatInterval;	// all Agents before it have a smaller one
+		return lo;
+	} // insert()
+
 	/** Finds the Agent with the highest score in the list.
 	 *  @return The Agent with the highest score
 	 */
@@ -226,7 +369,7 @@ public class AgentList {
 		double best = -1.0;
 		Agent bestAg = null;
 		for (AgentList ap = this; ap.ag != null; ap = ap.next) {
-			double startTime = ap.ag.events.l.getFirst().keyDown;
+			double startTime = ap.ag.events.time(0);
 			double conf = (ap.ag.phaseScore + ap.ag.tempoScore) /
 					(useAverageSalience? (double)ap.ag.beatCount: 1.0);
 			if (conf > best) {
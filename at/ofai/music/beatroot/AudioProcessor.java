@@ -37,6 +37,7 @@ import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.TargetDataLine;
 
 import at.ofai.music.audio.FFT;
+import at.ofai.music.audio.RealFFT;
 //import at.ofai.music.util.Event;
 //import at.ofai.music.util.EventList;
 import at.ofai.music.util.Event;
@@ -107,30 +108,37 @@ public class AudioProcessor {
 	/** The index of the next position to write in the circular buffer. */
 	protected int cbIndex;
 
+	/** Number of samples of the current hop passed to
+	 *  <code>processSamples()</code> so far. */
+	protected int hopFill;
+
+	/** Sum of squares of the samples of the current hop passed to
+	 *  <code>processSamples()</code> so far. */
+	protected double hopEnergy;
+
 	/** The window function for the STFT, currently a Hamming window. */
 	protected double[] window;
 
-	/** The real part of the data for the in-place FFT computation.
-	 *  Since input data is real, this initially contains the input data. */
+	/** The windowed input data of the current frame, which the FFT
+	 *  replaces by the magnitude spectrum (bins 0 to fftSize/2). */
 	protected double[] reBuffer;
 
-	/** The imaginary part of the data for the in-place FFT computation.
-	 *  Since input data is real, this initially contains zeros. */
+	/** The phase spectrum of the current frame (bins 0 to fftSize/2), if
+	 *  the onset detector needs it. */
 	protected double[] imBuffer;
 
-	/** Phase of the previous frame, for calculating an onset function
-	 *  based on spectral phase deviation. */
-	protected double[] prevPhase;
-	
-	/** Phase of the frame before the previous frame, for calculating an
-	 *  onset function based on spectral phase deviation. */
-	protected double[] prevPrevPhase;
-	
-	/** Phase deviation onset detection function, indexed by frame. */
-	protected double[] phaseDeviation;
+	/** The real FFT for frames of fftSize samples, created in init(). */
+	protected RealFFT fft;
+
+	/** The onset detection function, spectral flux by default. */
+	protected OnsetDetector onsetDetector = new SpectralFluxDetector();
 
-	/** Spectral flux onset detection function, indexed by frame. */
+	/** Onset detection function (see <code>onsetDetector</code>), indexed by frame. */
 	protected double[] spectralFlux;
+
+	/** True once <code>spectralFlux</code> has been normalised by
+	 *  <code>processFile()</code>, so calling it again doesn't normalise twice. */
+	protected boolean fluxNormalised;
 	
 	/** A mapping function for mapping FFT bins to final frequency bins.
 	 *  The mapping is linear (1-1) until the resolution reaches 2 points per
@@ -145,33 +153,55 @@ public class AudioProcessor {
 	 *  the array is greater, because its size is not known at creation time. */
 	protected int freqMapSize;
 
-	/** The magnitude spectrum of the most recent frame.
-	 *  Used for calculating the spectral flux. */
-	protected double[] prevFrame;
-	
 	/** The magnitude spectrum of the current frame. */
 	protected double[] newFrame;
 
-	/** The magnitude spectra of all frames, used for plotting the spectrogram. */
+	/** The magnitude spectra of all frames, used for plotting the spectrogram.
+	 *  Not stored in headless mode. */
 	protected double[][] frames;
 	
-	/** The RMS energy of all frames. */
+	/** The RMS energy of all frames. Not stored in headless mode. */
 	protected double[] energy;
 	
 	/** The estimated onset times from peak-picking the onset detection function(s). */
 	protected double[] onsets;
 	
-	/** The estimated onset times and their saliences. */	
+	/** The estimated onset times and their saliences. Not created in
+	 *  headless mode, which only uses <code>onsetSequence</code>. */	
 	protected EventList onsetList;
 
+	/** The estimated onset times and their saliences, as used for beat tracking. */
+	protected EventSequence onsetSequence;
+
+	/** Peak candidates of the spectral flux (see Peaks.findPeakCandidates()),
+	 *  shared by all calls of <code>findOnsets()</code> with the same decay
+	 *  rate, so trying several thresholds doesn't search the flux again. */
+	protected int[] peakCandidates;
+
+	/** Threshold base of each entry of <code>peakCandidates</code>. */
+	protected double[] peakBase;
+
+	/** Number of entries in <code>peakCandidates</code>, or -1 if they have
+	 *  to be recomputed. */
+	protected int peakCandidateCount = -1;
+
+	/** The decay rate <code>peakCandidates</code> were computed for. */
+	protected double peakDecayRate;
+
 	/** The y-coordinates of the onsets for plotting. Only used if doOnsetPlot is true */
 	protected double[] y2Onsets;
 	
 	/** GUI component which shows progress of audio processing. */
 	protected ProgressIndicator progressCallback;
 
-	/** Total number of audio frames if known, or -1 for live or compressed input. */
+	/** Total number of audio frames if known, or -1 for live or compressed input.
+	 *  After processing, the number of frames which have actually been read. */
 	protected int totalFrames;
+
+	/** Flag for headless (batch) processing: only the data needed for finding
+	 *  onsets is kept, not the spectrogram, the amplitude envelope and the
+	 *  onset Events which are displayed by the GUI (see <code>setDisplay()</code>). */
+	protected boolean headless;
 	
 	/** Standard input for interactive prompts (for debugging). */
 	BufferedReader stdIn;
@@ -214,8 +244,9 @@ public class AudioProcessor {
 	/** Audio buffer for live input. (Not used yet) */
 	public static final int liveInputBufferSize = 32768; /* ~195ms buffer @CD */
 	
-	/** Maximum file length in seconds. Used for static allocation of arrays. */
-	public static final int MAX_LENGTH = 3600;	// i.e. 1 hour
+	/** Initial size of the feature arrays in seconds, if the length of the
+	 *  input is not known. The arrays grow as needed. */
+	public static final int INITIAL_LENGTH = 300;	// i.e. 5 minutes
 
 
 	/** Constructor: note that streams are not opened until the input file is set
@@ -256,6 +287,65 @@ public class AudioProcessor {
 						hopTime, hopTime * fftSize / hopSize);
 	} // toString()
 
+	/** Switches headless (batch) processing on or off, see <code>headless</code>.
+	 *  @param headless true if the results are not displayed
+	 */
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	} // setHeadless()
+
+	/** Sets the onset detection function, which is used from the next call
+	 *  of <code>setInputFile()</code>, <code>setInputStream()</code> or
+	 *  <code>setInputFormat()</code> on.
+	 *  @param detector The onset detection function
+	 */
+	public void setOnsetDetector(OnsetDetector detector) {
+		onsetDetector = detector;
+	} // setOnsetDetector()
+
+	/** @return A description of everything the onset detection function
+	 *  depends on besides the audio, e.g. to tell whether a cached function
+	 *  can be used with <code>setOnsetDetectionFunction()</code>. */
+	public String describeOnsetDetection() {
+		return "detector=" + onsetDetector.getClass().getName() +
+				";hopTime=" + hopTime + ";fftTime=" + fftTime;
+	} // describeOnsetDetection()
+
+	/** @return The normalised onset detection function after
+	 *  <code>processFile()</code>, one value per frame */
+	public double[] getOnsetDetectionFunction() {
+		return spectralFlux;
+	} // getOnsetDetectionFunction()
+
+	/** @return The sample rate of the input */
+	public float getSampleRate() {
+		return sampleRate;
+	} // getSampleRate()
+
+	/** @return The spacing of the frames in samples */
+	public int getHopSize() {
+		return hopSize;
+	} // getHopSize()
+
+	/** Sets the onset detection function instead of calculating it from
+	 *  audio data, e.g. one which was computed and saved earlier with the
+	 *  same settings (see <code>describeOnsetDetection()</code>). Only the
+	 *  onsets are picked by <code>processFile()</code> then.
+	 *  @param odf The normalised onset detection function, as returned by
+	 *  <code>getOnsetDetectionFunction()</code>
+	 *  @param sampleRate The sample rate of the audio data
+	 *  @param hopSize The spacing of the frames in samples
+	 */
+	public void setOnsetDetectionFunction(double[] odf, float sampleRate, int hopSize) {
+		closeStreams();
+		this.sampleRate = sampleRate;
+		this.hopSize = hopSize;
+		spectralFlux = odf;
+		frameCount = odf.length;
+		fluxNormalised = true;
+		peakCandidateCount = -1;
+	} // setOnsetDetectionFunction()
+
 	/** Adds a link to the GUI component which shows the progress of matching.
 	 *  @param c the AudioProcessor representing the other performance 
 	 */
@@ -305,30 +395,83 @@ public class AudioProcessor {
 			if (!audioFile.isFile())
 				throw new FileNotFoundException(
 							"Requested file does not exist: " + audioFileName);
-			rawInputStream = AudioSystem.getAudioInputStream(audioFile);
-			audioFormat = rawInputStream.getFormat();
-			channels = audioFormat.getChannels();
-			sampleRate = audioFormat.getSampleRate();
-			pcmInputStream = rawInputStream;
-			if ((audioFormat.getEncoding()!=AudioFormat.Encoding.PCM_SIGNED) ||
-					(audioFormat.getFrameSize() != channels * 2) ||
-					audioFormat.isBigEndian()) {
-				AudioFormat desiredFormat = new AudioFormat(
-						AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16,
-						channels, channels * 2, sampleRate, false);
-				pcmInputStream = AudioSystem.getAudioInputStream(desiredFormat,
-																rawInputStream);
-				audioFormat = desiredFormat;
-			}
-			init();
+			openStream(AudioSystem.getAudioInputStream(audioFile));
 		} catch (Exception e) {
 			e.printStackTrace();
 			closeStreams();	// make sure it exits in a consistent state
 		}
 	} // setInputFile()
 
+	/** Sets up the streams and buffers for input from an already opened
+	 *  audio stream, e.g. PCM data which has been decoded into memory.
+	 *  If any Exception is thrown within this method, it is caught, and any
+	 *  opened streams are closed, and <code>pcmInputStream</code> is set to
+	 *  <code>null</code>, indicating that the method did not complete
+	 *  successfully.
+	 *  @param name A name for the input, used in messages only.
+	 *  @param stream The input audio stream.
+	 */
+	public void setInputStream(String name, AudioInputStream stream) {
+		closeStreams();		// release previously allocated resources
+		audioFileName = name;
+		try {
+			openStream(stream);
+		} catch (Exception e) {
+			e.printStackTrace();
+			closeStreams();	// make sure it exits in a consistent state
+		}
+	} // setInputStream()
+
+	/** Sets up the buffers for audio data which is passed in by the caller
+	 *  (see <code>processSamples()</code>) instead of being read from a
+	 *  stream, so the same decoded audio can feed other analyses in the same
+	 *  pass.
+	 *  @param name A name for the input, used in messages only.
+	 *  @param sampleRate The sample rate of the audio data.
+	 *  @param frameLength The number of samples which will be passed in, or
+	 *  -1 if it is not known.
+	 */
+	public void setInputFormat(String name, float sampleRate, long frameLength) {
+		closeStreams();		// release previously allocated resources
+		audioFileName = name;
+		channels = 1;
+		this.sampleRate = sampleRate;
+		audioFormat = new AudioFormat(sampleRate, 16, 1, true, false);
+		init(frameLength);
+	} // setInputFormat()
+
+	/** Converts the input stream to 16 bit little endian PCM if necessary
+	 *  and allocates the buffers for processing it.
+	 *  @param stream The input audio stream.
+	 */
+	protected void openStream(AudioInputStream stream) throws Exception {
+		rawInputStream = stream;
+		audioFormat = rawInputStream.getFormat();
+		channels = audioFormat.getChannels();
+		sampleRate = audioFormat.getSampleRate();
+		pcmInputStream = rawInputStream;
+		if ((audioFormat.getEncoding()!=AudioFormat.Encoding.PCM_SIGNED) ||
+				(audioFormat.getFrameSize() != channels * 2) ||
+				audioFormat.isBigEndian()) {
+			AudioFormat desiredFormat = new AudioFormat(
+					AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16,
+					channels, channels * 2, sampleRate, false);
+			pcmInputStream = AudioSystem.getAudioInputStream(desiredFormat,
+															rawInputStream);
+			audioFormat = desiredFormat;
+		}
+		init();
+	} // openStream()
+
 	/** Allocates memory for arrays, based on parameter settings */
 	protected void init() {
+		init(pcmInputStream == rawInputStream ? pcmInputStream.getFrameLength() : -1);
+	} // init()
+
+	/** Allocates memory for arrays, based on parameter settings
+	 *  @param frameLength The length of the input in samples, or -1 if it is
+	 *  not known. */
+	protected void init(long frameLength) {
 		hopSize = (int) Math.round(sampleRate * hopTime);
 		fftSize = (int) Math.round(Math.pow(2,
 				Math.round( Math.log(fftTime * sampleRate) / Math.log(2))));
@@ -340,31 +483,58 @@ public class AudioProcessor {
 			circBuffer = new double[fftSize];
 			reBuffer = new double[fftSize];
 			imBuffer = new double[fftSize];
-			prevPhase = new double[fftSize];
-			prevPrevPhase = new double[fftSize];
-			prevFrame = new double[fftSize];
 			window = FFT.makeWindow(FFT.HAMMING, fftSize, fftSize);
 			for (int i=0; i < fftSize; i++)
 				window[i] *= Math.sqrt(fftSize);
+			fft = new RealFFT(fftSize);
 		}
-		if (pcmInputStream == rawInputStream)
-			totalFrames = (int)(pcmInputStream.getFrameLength() / hopSize);
+		if (frameLength >= 0)
+			totalFrames = (int)(frameLength / hopSize);
 		else
-			totalFrames = (int) (MAX_LENGTH / hopTime);
-		if ((newFrame == null) || (newFrame.length != freqMapSize)) {
+			totalFrames = -1;
+		int capacity = (totalFrames >= 0)? totalFrames:
+										(int) (INITIAL_LENGTH / hopTime);
+		if ((newFrame == null) || (newFrame.length != freqMapSize))
 			newFrame = new double[freqMapSize];
-			frames = new double[totalFrames][freqMapSize];
-		} else if (frames.length != totalFrames)
-			frames = new double[totalFrames][freqMapSize];
-		energy = new double[totalFrames*energyOversampleFactor];
-		phaseDeviation = new double[totalFrames];
-		spectralFlux = new double[totalFrames];
+		if (headless) {
+			frames = null;
+			energy = null;
+		} else {
+			if ((frames == null) || (frames.length != capacity) ||
+					((capacity > 0) && (frames[0].length != freqMapSize)))
+				frames = new double[capacity][freqMapSize];
+			energy = new double[capacity*energyOversampleFactor];
+		}
+		spectralFlux = new double[capacity];
+		fluxNormalised = false;
+		onsetDetector.init(fftSize);
 		frameCount = 0;
 		cbIndex = 0;
+		hopFill = 0;
+		hopEnergy = 0;
 		frameRMS = 0;
 		ltAverage = 0;
 		progressCallback = null;
-	} // init()
+	} // init(long)
+
+	/** Makes sure that the feature arrays can hold at least n frames,
+	 *  doubling their size if necessary.
+	 *  @param n The number of frames
+	 */
+	protected void ensureCapacity(int n) {
+		if (n <= spectralFlux.length)
+			return;
+		int size = Math.max(n, spectralFlux.length * 2);
+		spectralFlux = Arrays.copyOf(spectralFlux, size);
+		if (energy != null)
+			energy = Arrays.copyOf(energy, size * energyOversampleFactor);
+		if (frames != null) {
+			int oldSize = frames.length;
+			frames = Arrays.copyOf(frames, size);
+			for (int i = oldSize; i < size; i++)
+				frames[i] = new double[freqMapSize];
+		}
+	} // ensureCapacity()
 
 	/** Closes the input stream(s) associated with this object. */
 	public void closeStreams() {
@@ -409,27 +579,6 @@ public class AudioProcessor {
 		freqMapSize = freqMap[i-1] + 1;
 	} // makeFreqMap()
 
-	/** Calculates the weighted phase deviation onset detection function.
-	 *  Not used.
-	 *  TODO: Test the change to WPD fn */
-	protected void weightedPhaseDeviation() {
-		if (frameCount < 2)
-			phaseDeviation[frameCount] = 0;
-		else {
-			for (int i = 0; i < fftSize; i++) {
-				double pd = imBuffer[i] - 2 * prevPhase[i] + prevPrevPhase[i];
-				double pd1 = Math.abs(Math.IEEEremainder(pd, 2 * Math.PI));
-				phaseDeviation[frameCount] += pd1 * reBuffer[i];
-				// System.err.printf("%7.3f   %7.3f\n", pd/Math.PI, pd1/Math.PI);
-			}
-		}
-		phaseDeviation[frameCount] /= fftSize * Math.PI;
-		double[] tmp = prevPrevPhase;
-		prevPrevPhase = prevPhase;
-		prevPhase = imBuffer;
-		imBuffer = tmp;
-	} // weightedPhaseDeviation()
-
 	/** Reads a frame of input data, averages the channels to mono, scales
 	 *  to a maximum possible absolute value of 1, and stores the audio data
 	 *  in a circular input buffer.
@@ -496,89 +645,134 @@ public class AudioProcessor {
 		return true;
 	} // getFrame()
 
-	/** Processes a frame of audio data by first computing the STFT with a
-	 *  Hamming window, then mapping the frequency bins into a part-linear
-	 *  part-logarithmic array, then computing the spectral flux 
-	 *  then (optionally) normalising and calculating onsets.
+	/** Processes mono audio data passed in by the caller, see
+	 *  <code>setInputFormat()</code>. The samples are stored in the circular
+	 *  buffer, and each time a hop is complete the frame is processed exactly
+	 *  as if it had been read by <code>getFrame()</code>. An incomplete final
+	 *  hop is ignored, like in <code>getFrame()</code>.
+	 *  @param buffer Audio data scaled to the range [-1,1]
+	 *  @param offset Index of the first sample in buffer
+	 *  @param length Number of samples
 	 */
+	public void processSamples(double[] buffer, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			double sample = buffer[i];
+			hopEnergy += sample * sample;
+			circBuffer[cbIndex++] = sample;
+			if (cbIndex == fftSize)
+				cbIndex = 0;
+			if (++hopFill == hopSize) {
+				frameRMS = Math.sqrt(hopEnergy / hopSize);
+				analyseFrame();
+				hopFill = 0;
+				hopEnergy = 0;
+			}
+		}
+	} // processSamples()
+
+	/** Reads and processes a frame of audio data, see analyseFrame(). */
 	protected void processFrame() {
-		if (getFrame()) {
+		if (getFrame())
+			analyseFrame();
+	} // processFrame()
+
+	/** Processes the frame of audio data in the circular buffer by first
+	 *  computing the STFT with a Hamming window (only if the onset detector
+	 *  or the spectrogram needs it), then computing the onset detection
+	 *  function and, unless headless, mapping the frequency bins into a
+	 *  part-linear part-logarithmic array for the spectrogram.
+	 */
+	protected void analyseFrame() {
+		ensureCapacity(frameCount + 1);
+		int spectrumType = onsetDetector.getSpectrumType();
+		if ((spectrumType == OnsetDetector.NO_SPECTRUM) && (frames != null))
+			spectrumType = OnsetDetector.MAGNITUDE;
+		if (spectrumType != OnsetDetector.NO_SPECTRUM) {
 			for (int i = 0; i < fftSize; i++) {
 				reBuffer[i] = window[i] * circBuffer[cbIndex];
 				if (++cbIndex == fftSize)
 					cbIndex = 0;
 			}
-			Arrays.fill(imBuffer, 0); // could probably be redundant
-			FFT.magnitudeRealPhaseFFT(reBuffer, imBuffer);
-			Arrays.fill(newFrame, 0);
-			double flux = 0;
-			for (int i = 0; i <= fftSize/2; i++) {
-				if (reBuffer[i] > prevFrame[i])
-					flux += reBuffer[i] - prevFrame[i];
-				newFrame[freqMap[i]] += reBuffer[i];
+			if (spectrumType == OnsetDetector.MAGNITUDE_AND_PHASE)
+				fft.magnitudePhase(reBuffer, reBuffer, imBuffer);
+			else
+				fft.magnitude(reBuffer, reBuffer);
+		}
+		spectralFlux[frameCount] = onsetDetector.detect(reBuffer, imBuffer, frameRMS);
+		double decay = frameCount >= 200? 0.99:
+					(frameCount < 100? 0: (frameCount - 100) / 100.0);
+		if (ltAverage == 0)
+			ltAverage = frameRMS;
+		else
+			ltAverage = ltAverage * decay + frameRMS * (1.0 - decay);
+		if (frames != null)
+			storeSpectrum();
+		if (energy != null)
+			storeEnergy();
+		frameCount++;
+		if ((frameCount % 100) == 0) {
+			if (!silent) {
+				System.err.printf("Progress: %1d %5.3f %5.3f\n", 
+						frameCount, frameRMS, ltAverage);
+				Profile.report();
 			}
-			spectralFlux[frameCount] = flux;
+			if ((progressCallback != null) && (totalFrames > 0))
+				progressCallback.setFraction((double)frameCount/totalFrames);
+		}
+	} // analyseFrame()
+
+	/** Maps the magnitude spectrum of the current frame (in
+	 *  <code>reBuffer</code>) to the part-linear part-logarithmic frequency
+	 *  bins, then normalises it and stores it in <code>frames</code> for
+	 *  displaying the spectrogram. */
+	protected void storeSpectrum() {
+		Arrays.fill(newFrame, 0);
+		for (int i = 0; i <= fftSize/2; i++)
+			newFrame[freqMap[i]] += reBuffer[i];
+		double[] frame = frames[frameCount];
+		for (int i = 0; i < freqMapSize; i++)
+			frame[i] = newFrame[i];
+		if (frameRMS <= silenceThreshold)
 			for (int i = 0; i < freqMapSize; i++)
-				frames[frameCount][i] = newFrame[i];
-			int index = cbIndex - (fftSize - hopSize);
-			if (index < 0)
-				index += fftSize;
-			int sz = (fftSize - hopSize) / energyOversampleFactor;
-			for (int j = 0; j < energyOversampleFactor; j++) {
-				double newEnergy = 0;
-				for (int i = 0; i < sz; i++) {
-					newEnergy += circBuffer[index] * circBuffer[index];
-					if (++index == fftSize)
-						index = 0;
-				}
-				energy[frameCount * energyOversampleFactor + j] =
-						newEnergy / sz <= 1e-6? 0: Math.log(newEnergy / sz) + 13.816;
-			}
-			double decay = frameCount >= 200? 0.99:
-						(frameCount < 100? 0: (frameCount - 100) / 100.0);
-			if (ltAverage == 0)
-				ltAverage = frameRMS;
-			else
-				ltAverage = ltAverage * decay + frameRMS * (1.0 - decay);
-			if (frameRMS <= silenceThreshold)
+				frame[i] = 0;
+		else {
+			if (normaliseMode == 1)
 				for (int i = 0; i < freqMapSize; i++)
-					frames[frameCount][i] = 0;
-			else {
-				if (normaliseMode == 1)
-					for (int i = 0; i < freqMapSize; i++)
-						frames[frameCount][i] /= frameRMS;
-				else if (normaliseMode == 2)
-					for (int i = 0; i < freqMapSize; i++)
-						frames[frameCount][i] /= ltAverage;
-				for (int i = 0; i < freqMapSize; i++) {
-					frames[frameCount][i] = Math.log(frames[frameCount][i]) + rangeThreshold;
-					if (frames[frameCount][i] < 0)
-						frames[frameCount][i] = 0;
-				}
+					frame[i] /= frameRMS;
+			else if (normaliseMode == 2)
+				for (int i = 0; i < freqMapSize; i++)
+					frame[i] /= ltAverage;
+			for (int i = 0; i < freqMapSize; i++) {
+				frame[i] = Math.log(frame[i]) + rangeThreshold;
+				if (frame[i] < 0)
+					frame[i] = 0;
 			}
-//			weightedPhaseDeviation();
-//			if (debug)
-//				System.err.printf("PhaseDev:  t=%7.3f  phDev=%7.3f  RMS=%7.3f\n",
-//						frameCount * hopTime,
-//						phaseDeviation[frameCount],
-//						frameRMS);
-			double[] tmp = prevFrame;
-			prevFrame = reBuffer;
-			reBuffer = tmp;
-			frameCount++;
-			if ((frameCount % 100) == 0) {
-				if (!silent) {
-					System.err.printf("Progress: %1d %5.3f %5.3f\n", 
-							frameCount, frameRMS, ltAverage);
-					Profile.report();
-				}
-				if ((progressCallback != null) && (totalFrames > 0))
-					progressCallback.setFraction((double)frameCount/totalFrames);
+		}
+	} // storeSpectrum()
+
+	/** Calculates the log energy of the new part of the circular buffer and
+	 *  stores it in <code>energy</code>, for displaying the amplitude
+	 *  envelope. */
+	protected void storeEnergy() {
+		int index = cbIndex - (fftSize - hopSize);
+		if (index < 0)
+			index += fftSize;
+		int sz = (fftSize - hopSize) / energyOversampleFactor;
+		for (int j = 0; j < energyOversampleFactor; j++) {
+			double newEnergy = 0;
+			for (int i = 0; i < sz; i++) {
+				newEnergy += circBuffer[index] * circBuffer[index];
+				if (++index == fftSize)
+					index = 0;
 			}
+			energy[frameCount * energyOversampleFactor + j] =
+					newEnergy / sz <= 1e-6? 0: Math.log(newEnergy / sz) + 13.816;
 		}
-	} // processFrame()
+	} // storeEnergy()
 
-	/** Processes a complete file of audio data. */
+	/** Processes a complete file of audio data. If the audio data has been
+	 *  passed in with <code>processSamples()</code>, only the onsets are
+	 *  calculated. */
 	public void processFile() {
 		while (pcmInputStream != null) {
 			// Profile.start(0);
@@ -621,7 +815,7 @@ public class AudioProcessor {
 //			int index = it.next();
 //			onsets[i] = index * hop;
 //			y2[i] = spectralFlux[index];
-//			Event e = BeatTrackDisplay.newBeat(onsets[i], 0);
+//			Event e = BeatTracker.newBeat(onsets[i], 0);
 ////			if (debug)
 ////				System.err.printf("Onset: %8.3f  %8.3f  %8.3f\n",
 ////						onsets[i], energy[index], slope[index]);
@@ -633,7 +827,14 @@ public class AudioProcessor {
 		double p1 = 0.35;
 		double p2 = 0.84;
 		
-		Peaks.normalise(spectralFlux);
+		totalFrames = frameCount;
+		if (spectralFlux.length != frameCount)	// only the frames read
+			spectralFlux = Arrays.copyOf(spectralFlux, frameCount);
+		if (!fluxNormalised) {
+			Peaks.normalise(spectralFlux);
+			fluxNormalised = true;
+			peakCandidateCount = -1;
+		}
 		findOnsets(p1, p2);
 		
 		if (progressCallback != null)
@@ -653,27 +854,47 @@ public class AudioProcessor {
 		}
 	} // processFile()
 	
+	/** Picks the onsets from the spectral flux. The peaks are searched once
+	 *  per decay rate, further calls with another threshold only filter them.
+	 *  @param p1 threshold: minimum value of peaks relative to the local average
+	 *  @param p2 decay rate: how quickly previous peaks are forgotten
+	 */
 	public void findOnsets(double p1, double p2){
-		LinkedList<Integer> peaks = Peaks.findPeaks(spectralFlux, (int)Math.round(0.06 / hopTime), p1, p2, true);
-		onsets = new double[peaks.size()];
+		int width = (int)Math.round(0.06 / hopTime);
+		if ((peakCandidateCount < 0) || (peakDecayRate != p2)) {
+			peakCandidates = new int[spectralFlux.length / (width + 1) + 1];
+			peakBase = new double[peakCandidates.length];
+			peakCandidateCount = Peaks.findPeakCandidates(spectralFlux, width,
+									p2, true, peakCandidates, peakBase);
+			peakDecayRate = p2;
+		}
+		int count = 0;
+		for (int i = 0; i < peakCandidateCount; i++)
+			if (spectralFlux[peakCandidates[i]] > peakBase[i] + p1)
+				count++;
+		onsets = new double[count];
 		y2Onsets = new double[onsets.length];
-		Iterator<Integer> it = peaks.iterator();
-		onsetList = new EventList();
+		onsetSequence = new EventSequence(count);
+		onsetList = headless? null: new EventList();
 		double minSalience = Peaks.min(spectralFlux);
-		for (int i = 0; i < onsets.length; i++) {
-			int index = it.next();
-			onsets[i] = index * hopTime;
-			y2Onsets[i] = spectralFlux[index];
-			Event e = BeatTrackDisplay.newBeat(onsets[i], 0);
-//			if (debug)
-//				System.err.printf("Onset: %8.3f  %8.3f  %8.3f\n",
-//						onsets[i], energy[index], slope[index]);
-//			e.salience = slope[index];	// or combination of energy + slope??
-			// Note that salience must be non-negative or the beat tracking system fails!
-			e.salience = spectralFlux[index] - minSalience;
-			onsetList.add(e);
+		int c = 0;
+		for (int i = 0; i < peakCandidateCount; i++) {
+			int index = peakCandidates[i];
+			if (spectralFlux[index] > peakBase[i] + p1) {
+				onsets[c] = index * hopTime;
+				y2Onsets[c] = spectralFlux[index];
+				// Note that salience must be non-negative or the beat tracking system fails!
+				onsetSequence.add(onsets[c], spectralFlux[index] - minSalience);
+				if (onsetList != null) {
+					Event e = BeatTracker.newBeat(onsets[c], 0);
+					e.salience = onsetSequence.salience(c);
+					onsetList.add(e);
+				}
+				c++;
+			}
 		}
-	}
+	} // findOnsets()
+
 	/** Reads a text file containing a list of whitespace-separated feature values.
 	 *  Created for paper submitted to ICASSP'07.
 	 *  @param fileName File containing the data
@@ -729,7 +950,8 @@ public class AudioProcessor {
 	} // getFeatures()
 	
 	/** Reads a file of feature values, treated as an onset detection function,
-	 *  and finds peaks, which are stored in <code>onsetList</code> and <code>onsets</code>.
+	 *  and finds peaks, which are stored in <code>onsetList</code>,
+	 *  <code>onsetSequence</code> and <code>onsets</code>.
 	 * @param fileName The file of feature values
 	 * @param hopTime The spacing of feature values in time
 	 */
@@ -747,10 +969,11 @@ public class AudioProcessor {
 			int index = it.next();
 			onsets[i] = index * hop;
 			y2[i] = features[index];
-			Event e = BeatTrackDisplay.newBeat(onsets[i], 0);
+			Event e = BeatTracker.newBeat(onsets[i], 0);
 			e.salience = features[index] - minSalience;
 			onsetList.add(e);
 		}
+		onsetSequence = EventSequence.fromEventList(onsetList);
 	} // processFeatures()
 
 	/** Copies output of audio processing to the display panel. */
@@ -48,6 +48,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.ListIterator;
 
+import javax.sound.sampled.AudioInputStream;
 import javax.swing.JOptionPane;
 
 import at.ofai.music.util.Event;
@@ -381,37 +382,34 @@ public class BeatRoot {
 //		}
 	}  // constructor
 
+	/** Estimates the tempo of an audio file.
+	 *  @param filename The path name of the input audio file.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 *  @see BeatTracker#getBPM(String)
+	 */
 	public static double getBPM(String filename) {
-		BeatRoot br = new BeatRoot();
-		br.batchMode = false;
-		br.playWithBeats = false;
-		br.argsFile = null;
-		br.reader = null;
-		br.fileChooser = null;
-		br.gui = null;
-		br.audioProcessor = new AudioProcessor();
-		br.audioIn = filename;
-		br.audioProcessor.setInputFile(br.audioIn);
-		br.audioProcessor.processFile();
-		// filter peaks:
-	    // first value: threshold minimum value of peaks
-	    // second value: decayRate how quickly previous peaks are forgotten
-		double bpm;
-		br.audioProcessor.findOnsets(0.9, 0.84);
-		EventList annotated = null;
-		EventList beats = BeatTrackDisplay.beatTrack(br.audioProcessor.onsetList, annotated);
-		bpm = beats.getBPM();
-		if (Double.isNaN(bpm)) {
-			br.audioProcessor.findOnsets(0.4, 0.84);
-			beats = BeatTrackDisplay.beatTrack(br.audioProcessor.onsetList, annotated);
-			bpm = beats.getBPM();
-			if (Double.isNaN(bpm)) {
-				br.audioProcessor.findOnsets(0.1, 0.84);
-				beats = BeatTrackDisplay.beatTrack(br.audioProcessor.onsetList, annotated);
-				bpm = beats.getBPM();
-			}
-		}
-		return bpm;
+		return BeatTracker.getBPM(filename);
+	}
+
+	/** Estimates the tempo of an already opened audio stream,
+	 *  e.g. PCM data which has been decoded into memory.
+	 *  @param name A name for the input, used in messages only.
+	 *  @param stream The input audio stream.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 *  @see BeatTracker#getBPM(String, AudioInputStream)
+	 */
+	public static double getBPM(String name, AudioInputStream stream) {
+		return BeatTracker.getBPM(name, stream);
+	}
+
+	/** Estimates the tempo of the audio data an AudioProcessor has been set
+	 *  up with.
+	 *  @param audioProcessor The AudioProcessor holding the input.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 *  @see BeatTracker#getBPM(AudioProcessor)
+	 */
+	public static double getBPM(AudioProcessor audioProcessor) {
+		return BeatTracker.getBPM(audioProcessor);
 	}
 
 	/**
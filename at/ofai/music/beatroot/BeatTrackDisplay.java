@@ -1019,7 +1019,7 @@ public class BeatTrackDisplay
 	 *  @return The Event object representing the beat
 	 */
 	public static Event newBeat(double time, int beatNum) {
-		return new Event(time,time, time, 56, 64, beatNum, 0, 1);
+		return BeatTracker.newBeat(time, beatNum);
 	} // newBeat()
 
 	/** Adds a beat at the current playback time, with an adjustment for audio latency.
@@ -1117,9 +1117,10 @@ public class BeatTrackDisplay
 	 *  there is no selected region.
 	 *  @param events The onsets or peaks in a feature list
 	 *  @return The list of beats, or an empty list if beat tracking fails
+	 *  @see BeatTracker#beatTrack(EventList)
 	 */
 	public static EventList beatTrack(EventList events) {
-		return beatTrack(events, null);
+		return BeatTracker.beatTrack(events);
 	}
 	
 	/** Perform beat tracking where the GUI is not active;
@@ -1127,33 +1128,10 @@ public class BeatTrackDisplay
 	 *  @param events The onsets or peaks in a feature list
 	 *  @param beats The initial beats which are given, if any
 	 *  @return The list of beats, or an empty list if beat tracking fails
+	 *  @see BeatTracker#beatTrack(EventList, EventList)
 	 */
 	public static EventList beatTrack(EventList events, EventList beats) {
-		AgentList agents = null;
-		int count = 0;
-		double beatTime = -1;
-		if (beats != null) {
-			count = beats.size() - 1;
-			beatTime = beats.l.getLast().keyDown;
-		}
-		if (count > 0) { // tempo given by mean of initial beats
-			double ioi = (beatTime - beats.l.getFirst().keyDown) / count;
-			agents = new AgentList(new Agent(ioi), null);
-		} else									// tempo not given; use tempo induction
-			agents = Induction.beatInduction(events);
-		if (beats != null)
-			for (AgentList ptr = agents; ptr.ag != null; ptr = ptr.next) {
-				ptr.ag.beatTime = beatTime;
-				ptr.ag.beatCount = count;
-				ptr.ag.events = new EventList(beats);
-			}
-		agents.beatTrack(events, -1);
-		Agent best = agents.bestAgent();
-		if (best != null) {
-			best.fillBeats(beatTime);
-			return best.events;
-		}
-		return new EventList();
+		return BeatTracker.beatTrack(events, beats);
 	} // beatTrack()/1
 	
 	/** Performs automatic beat tracking and updates the GUI accordingly.
@@ -1183,15 +1161,16 @@ public class BeatTrackDisplay
 		for (AgentList ptr = agents; ptr.ag != null; ptr = ptr.next) {
 			ptr.ag.beatTime = beatTime;
 			ptr.ag.beatCount = count;
-			ptr.ag.events = new EventList(beats);
+			ptr.ag.events = EventSequence.fromEventList(beats);
 		}
 		//onsetList.print();
 		agents.beatTrack(onsetList, endSelection);
 		Agent best = agents.bestAgent();
 		if (best != null) {
 			best.fillBeats(startSelection);
-			best.events.add(endBeats);
-			gui.setBeatData(best.events);
+			EventList newBeats = best.events.toEventList();
+			newBeats.add(endBeats);
+			gui.setBeatData(newBeats);
 		} else
 			System.err.println("No best agent");
 	} // beatTrack()
@@ -0,0 +1,182 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+import javax.sound.sampled.AudioInputStream;
+
+import at.ofai.music.util.Event;
+import at.ofai.music.util.EventList;
+
+/** Tempo induction and beat tracking without the user interface.
+ *  BeatTrackDisplay and BeatRoot are Swing / AWT classes, so the batch
+ *  path (onsets in, beats and tempo out) lives here and loads none of them.
+ *  BeatTrackDisplay.beatTrack() and BeatRoot.getBPM() delegate to this class.
+ *
+ *  @author Simon Dixon
+ */
+public class BeatTracker {
+
+	/** Onset thresholds tried by getBPM(), from strict to permissive */
+	public static final double[] ONSET_THRESHOLDS = {0.9, 0.4, 0.1};
+
+	/** Decay rate used for peak picking by getBPM() */
+	public static final double ONSET_DECAY_RATE = 0.84;
+
+	/** Creates a new Event object representing a beat.
+	 *  @param time The time of the beat in seconds
+	 *  @param beatNum The index of the beat
+	 *  @return The Event object representing the beat
+	 */
+	public static Event newBeat(double time, int beatNum) {
+		return new Event(time,time, time, 56, 64, beatNum, 0, 1);
+	} // newBeat()
+
+	/** Perform beat tracking on a list of onsets.
+	 *  @param events The onsets or peaks in a feature list
+	 *  @return The list of beats, or an empty list if beat tracking fails
+	 */
+	public static EventList beatTrack(EventList events) {
+		return beatTrack(events, null);
+	} // beatTrack()/1
+
+	/** Perform beat tracking on a list of onsets.
+	 *  @param events The onsets or peaks in a feature list
+	 *  @param beats The initial beats which are given, if any
+	 *  @return The list of beats, or an empty list if beat tracking fails
+	 */
+	public static EventList beatTrack(EventList events, EventList beats) {
+		return beatTrack(EventSequence.fromEventList(events),
+				beats == null? null: EventSequence.fromEventList(beats)).toEventList();
+	} // beatTrack()/2
+
+	/** Perform beat tracking on a sequence of onsets.
+	 *  @param onsets The onsets or peaks in a feature list
+	 *  @return The beats, empty if beat tracking fails
+	 */
+	public static EventSequence beatTrack(EventSequence onsets) {
+		return beatTrack(onsets, null);
+	} // beatTrack()/1
+
+	/** Perform beat tracking on a sequence of onsets.
+	 *  @param onsets The onsets or peaks in a feature list
+	 *  @param beats The initial beats which are given, if any
+	 *  @return The beats, empty if beat tracking fails
+	 */
+	public static EventSequence beatTrack(EventSequence onsets, EventSequence beats) {
+		AgentList agents = null;
+		int count = 0;
+		double beatTime = -1;
+		if (beats != null) {
+			count = beats.size() - 1;
+			beatTime = beats.lastTime();
+		}
+		if (count > 0) { // tempo given by mean of initial beats
+			double ioi = (beatTime - beats.time(0)) / count;
+			agents = new AgentList(new Agent(ioi), null);
+		} else									// tempo not given; use tempo induction
+			agents = Induction.beatInduction(onsets);
+		if (beats != null)
+			for (AgentList ptr = agents; ptr.ag != null; ptr = ptr.next) {
+				ptr.ag.beatTime = beatTime;
+				ptr.ag.beatCount = count;
+				ptr.ag.events = new EventSequence(beats);
+			}
+		agents.beatTrack(onsets, -1);
+		Agent best = agents.bestAgent();
+		if (best != null) {
+			best.fillBeats(beatTime);
+			return best.events;
+		}
+		return new EventSequence();
+	} // beatTrack()
+
+	/** Perform beat tracking on an array of onsets.
+	 *  @param onsets The onset times in seconds, in ascending order
+	 *  @param saliences The (non-negative) salience of each onset
+	 *  @return The beat times in seconds, an empty array if beat tracking fails
+	 */
+	public static double[] beatTrack(double[] onsets, double[] saliences) {
+		return beatTrack(new EventSequence(onsets, saliences)).getTimes();
+	} // beatTrack()/array
+
+	/** Estimates the tempo from an array of onsets.
+	 *  @param onsets The onset times in seconds, in ascending order
+	 *  @param saliences The (non-negative) salience of each onset
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 */
+	public static double getBPM(double[] onsets, double[] saliences) {
+		return beatTrack(new EventSequence(onsets, saliences)).toEventList().getBPM();
+	} // getBPM()/array
+
+	/** Estimates the tempo of an audio file.
+	 *  @param filename The path name of the input audio file.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 */
+	public static double getBPM(String filename) {
+		AudioProcessor audioProcessor = new AudioProcessor();
+		audioProcessor.setHeadless(true);
+		audioProcessor.setInputFile(filename);
+		return getBPM(audioProcessor);
+	} // getBPM()/file
+
+	/** Estimates the tempo of an already opened audio stream,
+	 *  e.g. PCM data which has been decoded into memory.
+	 *  @param name A name for the input, used in messages only.
+	 *  @param stream The input audio stream.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 */
+	public static double getBPM(String name, AudioInputStream stream) {
+		AudioProcessor audioProcessor = new AudioProcessor();
+		audioProcessor.setHeadless(true);
+		audioProcessor.setInputStream(name, stream);
+		return getBPM(audioProcessor);
+	} // getBPM()/stream
+
+	/** Estimates the tempo of the audio data an AudioProcessor has been set
+	 *  up with, either an input stream or samples which have already been
+	 *  passed to <code>processSamples()</code>.
+	 *  The thresholds in ONSET_THRESHOLDS are tried in turn until a tempo is
+	 *  found. The peaks of the spectral flux are only searched once, and
+	 *  since a lower threshold keeps all onsets of a higher one, an equal
+	 *  number of onsets means the same onsets and the same (failed) result.
+	 *  @param audioProcessor The AudioProcessor holding the input.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 */
+	public static double getBPM(AudioProcessor audioProcessor) {
+		audioProcessor.processFile();
+		int previousCount = -1;
+		for (double threshold : ONSET_THRESHOLDS) {
+			audioProcessor.findOnsets(threshold, ONSET_DECAY_RATE);
+			int count = audioProcessor.onsetSequence.size();
+			if (count == previousCount)
+				continue;
+			previousCount = count;
+			if (count < 2)		// no inter-onset intervals, no tempo
+				continue;
+			double bpm = beatTrack(audioProcessor.onsetSequence).toEventList().getBPM();
+			if (!Double.isNaN(bpm))
+				return bpm;
+		}
+		return Double.NaN;
+	} // getBPM()
+
+} // class BeatTracker
@@ -0,0 +1,124 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import at.ofai.music.util.EventList;
+
+/** Measures startup and per-track latency of the headless beat tracker
+ *  (BeatTracker) against the old path through the GUI classes
+ *  (BeatTrackDisplay, with the spectrogram kept for display).
+ *  Run each mode in a fresh JVM, e.g.<br>
+ *  <code>java at.ofai.music.beatroot.BeatTrackerBenchmark -n 5 a.wav b.wav</code><br>
+ *  <code>java at.ofai.music.beatroot.BeatTrackerBenchmark -gui -n 5 a.wav b.wav</code><br>
+ *  The onset detection function is chosen with <code>-detector</code>
+ *  <code>flux</code> (default), <code>complex</code>, <code>phase</code> or
+ *  <code>energy</code>.<br>
+ *  The first line shows the time from JVM start until the first tempo is
+ *  known and the number of classes loaded by then, the following lines the
+ *  mean onset detection and beat tracking time per track of the remaining
+ *  runs.
+ */
+public class BeatTrackerBenchmark {
+
+	public static void main(String[] args) {
+		boolean gui = false;
+		int runs = 5;
+		String detector = "flux";
+		ArrayList<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-gui"))
+				gui = true;
+			else if (args[i].equals("-n"))
+				runs = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-detector"))
+				detector = args[++i];
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			System.err.println("usage: BeatTrackerBenchmark [-gui] [-n runs] " +
+					"[-detector flux|complex|phase|energy] file.wav...");
+			System.exit(-1);
+		}
+		long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+		ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+		String mode = (gui? "gui": "headless") + " " + detector;
+		double onsetTime = 0;
+		double trackTime = 0;
+		int tracks = 0;
+		boolean first = true;
+		for (int run = 0; run < runs; run++) {
+			for (String file : files) {
+				long t0 = System.nanoTime();
+				AudioProcessor audioProcessor = new AudioProcessor();
+				audioProcessor.setHeadless(!gui);
+				audioProcessor.setOnsetDetector(makeDetector(detector));
+				audioProcessor.setInputFile(file);
+				audioProcessor.processFile();
+				long t1 = System.nanoTime();
+				double bpm = trackTempo(audioProcessor, gui);
+				long t2 = System.nanoTime();
+				if (first)
+					System.out.printf("%s: first tempo %.1f BPM after %d ms, %d classes loaded\n",
+							mode, bpm, System.currentTimeMillis() - jvmStart,
+							classes.getLoadedClassCount());
+				first = false;
+				if (run > 0 || runs == 1) {
+					onsetTime += (t1 - t0) / 1e6;
+					trackTime += (t2 - t1) / 1e6;
+					tracks++;
+				}
+			}
+		}
+		System.out.printf("%s: %d tracks, onset detection %.1f ms/track, beat tracking %.1f ms/track\n",
+				mode, tracks, onsetTime / tracks, trackTime / tracks);
+	} // main()
+
+	static OnsetDetector makeDetector(String name) {
+		if (name.equals("complex"))
+			return new ComplexDomainDetector();
+		if (name.equals("phase"))
+			return new PhaseDeviationDetector();
+		if (name.equals("energy"))
+			return new EnergySlopeDetector();
+		return new SpectralFluxDetector();
+	} // makeDetector()
+
+	/** Same as BeatTracker.getBPM() after the onset detection, but
+	 *  optionally through BeatTrackDisplay like before. */
+	static double trackTempo(AudioProcessor audioProcessor, boolean gui) {
+		for (double threshold : BeatTracker.ONSET_THRESHOLDS) {
+			audioProcessor.findOnsets(threshold, BeatTracker.ONSET_DECAY_RATE);
+			EventList beats = gui? BeatTrackDisplay.beatTrack(audioProcessor.onsetList):
+							BeatTracker.beatTrack(audioProcessor.onsetSequence).toEventList();
+			double bpm = beats.getBPM();
+			if (!Double.isNaN(bpm))
+				return bpm;
+		}
+		return Double.NaN;
+	} // trackTempo()
+
+} // class BeatTrackerBenchmark
@@ -0,0 +1,74 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+/** Rectified complex domain onset detection function: the distance of each
+ *  frequency bin from the value predicted by the magnitude and phase
+ *  advance of the previous frames, summed over the bins whose magnitude
+ *  increases (see Dixon, Onset Detection Revisited, DAFx 2006).
+ */
+public class ComplexDomainDetector implements OnsetDetector {
+
+	/** The magnitude spectrum of the previous frame */
+	protected double[] prevMagnitude;
+
+	/** The phase spectrum of the previous frame */
+	protected double[] prevPhase;
+
+	/** The phase spectrum of the frame before the previous frame */
+	protected double[] prevPrevPhase;
+
+	/** The number of frequency bins used */
+	protected int bins;
+
+	public int getSpectrumType() {
+		return MAGNITUDE_AND_PHASE;
+	} // getSpectrumType()
+
+	public void init(int fftSize) {
+		bins = fftSize / 2 + 1;
+		prevMagnitude = new double[bins];
+		prevPhase = new double[bins];
+		prevPrevPhase = new double[bins];
+	} // init()
+
+	public double detect(double[] magnitude, double[] phase, double frameRMS) {
+		double cd = 0;
+		for (int i = 0; i < bins; i++) {
+			double m = magnitude[i];
+			double pm = prevMagnitude[i];
+			if (m >= pm) {
+				double dPhase = phase[i] - 2 * prevPhase[i] + prevPrevPhase[i];
+				double d2 = m * m + pm * pm - 2 * m * pm * Math.cos(dPhase);
+				if (d2 > 0)
+					cd += Math.sqrt(d2);
+			}
+		}
+		double[] tmp = prevPrevPhase;
+		prevPrevPhase = prevPhase;
+		prevPhase = tmp;
+		System.arraycopy(phase, 0, prevPhase, 0, bins);
+		System.arraycopy(magnitude, 0, prevMagnitude, 0, bins);
+		return cd;
+	} // detect()
+
+} // class ComplexDomainDetector
@@ -0,0 +1,52 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+/** Onset detection function from the time domain: the increase of the log
+ *  energy of the new samples of each frame over the previous frame. No FFT
+ *  is needed, but it is the least precise detector for music with soft
+ *  onsets.
+ */
+public class EnergySlopeDetector implements OnsetDetector {
+
+	/** The log energy of the previous frame */
+	protected double prevEnergy;
+
+	public int getSpectrumType() {
+		return NO_SPECTRUM;
+	} // getSpectrumType()
+
+	public void init(int fftSize) {
+		prevEnergy = 0;
+	} // init()
+
+	/** The log energy is scaled and floored like the amplitude envelope of
+	 *  AudioProcessor.storeEnergy(). */
+	public double detect(double[] magnitude, double[] phase, double frameRMS) {
+		double power = frameRMS * frameRMS;
+		double energy = power <= 1e-6? 0: Math.log(power) + 13.816;
+		double slope = energy - prevEnergy;
+		prevEnergy = energy;
+		return slope > 0? slope: 0;
+	} // detect()
+
+} // class EnergySlopeDetector
@@ -0,0 +1,183 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+import java.util.Arrays;
+
+import at.ofai.music.util.Event;
+import at.ofai.music.util.EventList;
+
+/** A sequence of onsets or beats in ascending order of time, stored in
+ *  primitive arrays of times and saliences. This is all beat tracking needs
+ *  to know about an event, so the tracking itself works on
+ *  EventSequences with index-based iteration. EventLists (of full Event
+ *  objects) are converted at the boundaries, see fromEventList() and
+ *  toEventList().
+ *  <p>The events are stored in chunks of CHUNK_SIZE events. Since a sequence
+ *  only grows at the end, full chunks never change and are shared between
+ *  a sequence and its copies. Beat tracking copies an Agent whenever it
+ *  forks, and both Agents go on adding beats, so a copy only costs the
+ *  array of chunks and the last, partly filled chunk (see add()).
+ */
+public class EventSequence {
+
+	/** The number of events per chunk, a power of 2 */
+	protected static final int CHUNK_SIZE = 32;
+
+	/** log2(CHUNK_SIZE) */
+	protected static final int CHUNK_SHIFT = 5;
+
+	/** The events, CHUNK_SIZE per chunk, with the time (in seconds) and the
+	 *  salience of each event stored alternately. Chunks are allocated as
+	 *  they are needed. */
+	protected double[][] chunks;
+
+	/** The number of events in the sequence */
+	protected int size;
+
+	/** True if <code>chunks</code> and the last chunk may also be used by
+	 *  another sequence, in which case they are copied before this sequence
+	 *  is changed. */
+	protected boolean shared;
+
+	/** Constructor for an empty sequence */
+	public EventSequence() {
+		this(CHUNK_SIZE);
+	} // constructor
+
+	/** Constructor for an empty sequence.
+	 *  @param capacity The expected number of events
+	 */
+	public EventSequence(int capacity) {
+		chunks = new double[Math.max((capacity + CHUNK_SIZE - 1) >> CHUNK_SHIFT, 1)][];
+		size = 0;
+	} // constructor
+
+	/** Copy constructor. Nothing is copied until one of the sequences is
+	 *  changed, see <code>shared</code>.
+	 *  @param es The sequence to copy
+	 */
+	public EventSequence(EventSequence es) {
+		chunks = es.chunks;
+		size = es.size;
+		shared = true;
+	} // copy constructor
+
+	/** Constructor from arrays, which are copied.
+	 *  @param times The times of the events in seconds, in ascending order
+	 *  @param saliences The salience of each event
+	 */
+	public EventSequence(double[] times, double[] saliences) {
+		this(times.length);
+		for (int i = 0; i < times.length; i++)
+			add(times[i], saliences[i]);
+	} // constructor
+
+	/** Converts an EventList, keeping the onset times (keyDown) and
+	 *  saliences of the events.
+	 *  @param el The list of events
+	 *  @return The sequence of events
+	 */
+	public static EventSequence fromEventList(EventList el) {
+		EventSequence es = new EventSequence(el.size());
+		for (Event e : el.l)
+			es.add(e.keyDown, e.salience);
+		return es;
+	} // fromEventList()
+
+	/** Converts this sequence to an EventList of beats (see
+	 *  BeatTracker.newBeat()) with the saliences of the events.
+	 *  @return The list of events
+	 */
+	public EventList toEventList() {
+		EventList el = new EventList();
+		for (int i = 0; i < size; i++) {
+			Event e = BeatTracker.newBeat(time(i), 0);
+			e.salience = salience(i);
+			el.add(e);
+		}
+		return el;
+	} // toEventList()
+
+	/** @return The number of events in the sequence */
+	public int size() {
+		return size;
+	} // size()
+
+	/** @param i The index of an event
+	 *  @return The time of the event in seconds */
+	public double time(int i) {
+		return chunks[i >> CHUNK_SHIFT][(i & (CHUNK_SIZE - 1)) << 1];
+	} // time()
+
+	/** @param i The index of an event
+	 *  @return The salience of the event */
+	public double salience(int i) {
+		return chunks[i >> CHUNK_SHIFT][((i & (CHUNK_SIZE - 1)) << 1) + 1];
+	} // salience()
+
+	/** @return The time of the last event in seconds (the sequence must
+	 *  not be empty) */
+	public double lastTime() {
+		return time(size - 1);
+	} // lastTime()
+
+	/** @return A copy of the event times */
+	public double[] getTimes() {
+		double[] times = new double[size];
+		for (int i = 0; i < size; i++)
+			times[i] = time(i);
+		return times;
+	} // getTimes()
+
+	/** Appends an event to the sequence. A shared sequence first copies the
+	 *  array of chunks and its last chunk, if it is partly filled (the other
+	 *  sequences may add their own events to it).
+	 *  @param time The time of the event in seconds
+	 *  @param salience The salience of the event
+	 */
+	public void add(double time, double salience) {
+		int c = size >> CHUNK_SHIFT;
+		int k = (size & (CHUNK_SIZE - 1)) << 1;
+		if (shared) {
+			chunks = Arrays.copyOf(chunks, Math.max(chunks.length, c + 1));
+			if (k > 0)
+				chunks[c] = Arrays.copyOf(chunks[c], 2 * CHUNK_SIZE);
+			shared = false;
+		}
+		if (k == 0) {
+			if (c == chunks.length)
+				chunks = Arrays.copyOf(chunks, 2 * c);
+			chunks[c] = new double[2 * CHUNK_SIZE];
+		}
+		chunks[c][k] = time;
+		chunks[c][k + 1] = salience;
+		size++;
+	} // add()
+
+	/** Print the event times for debugging */
+	public void print() {
+		for (int i = 0; i < size; i++)
+			System.out.printf("%8.3f %6.3f\n", time(i), salience(i));
+	} // print()
+
+} // class EventSequence
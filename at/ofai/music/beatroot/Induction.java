@@ -69,6 +69,17 @@ class Induction {
 	 *          of the top tempo hypotheses but no beats
 	 */
 	public static AgentList beatInduction(EventList events) {
+		return beatInduction(EventSequence.fromEventList(events));
+	} // beatInduction()/EventList
+
+	/** Performs tempo induction (see JNMR 2001 paper by Simon Dixon for details).
+	 *  Only the intervals up to maxIOI are visited, so the cost is linear in
+	 *  the number of onsets times the number of onsets within maxIOI.
+	 *  @param events The onsets (or other events) from which the tempo is induced
+	 *  @return A list of beat tracking agents, where each is initialised with one
+	 *          of the top tempo hypotheses but no beats
+	 */
+	public static AgentList beatInduction(EventSequence events) {
 		int i, j, b, bestCount;
 		boolean submult;
 		int intervals = 0;			// number of interval clusters
@@ -80,18 +91,9 @@ class Induction {
 		int[] clusterSize = new int[maxClusterCount];
 		int[] clusterScore = new int[maxClusterCount];
 		
-		ListIterator<Event> ptr1, ptr2;
-		Event e1,e2;
-		ptr1 = events.listIterator();
-		while (ptr1.hasNext()) {
-			e1 = ptr1.next();
-			ptr2 = events.listIterator();
-			e2 = ptr2.next();
-			while (e2 != e1)
-				e2 = ptr2.next();
-			while (ptr2.hasNext()) {
-				e2 = ptr2.next();
-				double ioi = e2.keyDown - e1.keyDown;
+		for (int e1 = 0; e1 < events.size(); e1++) {
+			for (int e2 = e1 + 1; e2 < events.size(); e2++) {
+				double ioi = events.time(e2) - events.time(e1);
 				if (ioi < minIOI)		// skip short intervals
 					continue;
 				if (ioi > maxIOI)		// ioi too long
@@ -0,0 +1,105 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+/** Estimates the tempo of audio which is passed in block by block while it
+ *  is recorded (see <code>processSamples()</code>), e.g. a DJ set. Only the
+ *  onset detection function of the last <code>windowTime</code> seconds is
+ *  kept, so the memory needed doesn't grow with the length of the input,
+ *  and the tempo is estimated from this window with TempoEstimator when it
+ *  is asked for.
+ */
+public class LiveTempoEstimator extends AudioProcessor {
+
+	/** The length of the analysed part of the input in seconds */
+	protected double windowTime;
+
+	/** The length of the analysed part of the input in frames */
+	protected int windowFrames;
+
+	/** The number of frames which have been dropped from the start of
+	 *  <code>spectralFlux</code> */
+	protected long droppedFrames;
+
+	/** The value of <code>frameCount</code> when <code>bpm</code> was
+	 *  estimated */
+	protected int estimateFrame;
+
+	/** The last tempo estimate in BPM */
+	protected double bpm;
+
+	/** Constructor.
+	 *  @param sampleRate The sample rate of the (mono) input
+	 *  @param windowTime The length of the analysed part of the input in
+	 *  seconds, at least a few beats of the slowest tempo (see Induction.maxIBI)
+	 */
+	public LiveTempoEstimator(float sampleRate, double windowTime) {
+		this.windowTime = windowTime;
+		setHeadless(true);
+		setInputFormat("live input", sampleRate, -1);
+	} // constructor
+
+	/** Allocates the buffers, with room for two windows of the onset
+	 *  detection function. */
+	protected void init(long frameLength) {
+		super.init(frameLength);
+		windowFrames = Math.max((int) Math.round(windowTime / hopTime), 1);
+		spectralFlux = new double[2 * windowFrames];
+		droppedFrames = 0;
+		estimateFrame = -1;
+		bpm = Double.NaN;
+	} // init()
+
+	/** Makes room for the next frame by dropping all but the last window of
+	 *  the onset detection function, if necessary. */
+	protected void ensureCapacity(int n) {
+		if (n <= spectralFlux.length)
+			return;
+		int keep = windowFrames - 1;
+		int drop = frameCount - keep;
+		System.arraycopy(spectralFlux, drop, spectralFlux, 0, keep);
+		frameCount = keep;
+		droppedFrames += drop;
+		estimateFrame = -1;
+	} // ensureCapacity()
+
+	/** @return The time of input processed so far in seconds */
+	public double getTime() {
+		return (droppedFrames + frameCount) * TempoEstimator.getHopTime(this);
+	} // getTime()
+
+	/** Estimates the tempo of the last window of input, unless this has
+	 *  already been done for the same input.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found
+	 *  (yet).
+	 */
+	public double getBPM() {
+		if (estimateFrame != frameCount) {
+			int start = Math.max(frameCount - windowFrames, 0);
+			bpm = TempoEstimator.getBPM(spectralFlux, start, frameCount - start,
+										TempoEstimator.getHopTime(this));
+			estimateFrame = frameCount;
+		}
+		return bpm;
+	} // getBPM()
+
+} // class LiveTempoEstimator
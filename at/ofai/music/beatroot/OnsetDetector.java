@@ -0,0 +1,60 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+/** Interface for onset detection functions, which AudioProcessor computes
+ *  frame by frame before peak picking (see AudioProcessor.setOnsetDetector()).
+ *  A detector states which spectrum it needs, so that AudioProcessor only
+ *  computes that: no FFT at all, the magnitude spectrum, or the magnitude and
+ *  phase spectrum.
+ */
+public interface OnsetDetector {
+
+	/** Spectrum type: the detector only uses the frame energy */
+	public static final int NO_SPECTRUM = 0;
+
+	/** Spectrum type: the detector uses the magnitude spectrum */
+	public static final int MAGNITUDE = 1;
+
+	/** Spectrum type: the detector uses the magnitude and phase spectrum */
+	public static final int MAGNITUDE_AND_PHASE = 2;
+
+	/** @return The spectrum needed by detect(), one of NO_SPECTRUM,
+	 *  MAGNITUDE or MAGNITUDE_AND_PHASE */
+	public int getSpectrumType();
+
+	/** Resets the detector before the first frame of an input.
+	 *  @param fftSize The size of the FFT frames
+	 */
+	public void init(int fftSize);
+
+	/** Computes the onset detection function for the next frame.
+	 *  @param magnitude The magnitude spectrum of the frame (bins 0 to
+	 *  fftSize/2 are used), or undefined for NO_SPECTRUM
+	 *  @param phase The phase spectrum of the frame, or undefined unless the
+	 *  spectrum type is MAGNITUDE_AND_PHASE
+	 *  @param frameRMS The RMS amplitude of the new samples of the frame
+	 *  @return The value of the onset detection function
+	 */
+	public double detect(double[] magnitude, double[] phase, double frameRMS);
+
+} // interface OnsetDetector
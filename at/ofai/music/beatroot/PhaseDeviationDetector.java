@@ -0,0 +1,72 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+/** Weighted phase deviation onset detection function: the deviation of
+ *  the phase of each frequency bin from the phase predicted by the
+ *  previous frames, weighted by the magnitude of the bin.
+ *  Moved here from AudioProcessor.weightedPhaseDeviation(), which was not
+ *  used (and got no phase from the real FFT).
+ */
+public class PhaseDeviationDetector implements OnsetDetector {
+
+	/** The phase spectrum of the previous frame */
+	protected double[] prevPhase;
+
+	/** The phase spectrum of the frame before the previous frame */
+	protected double[] prevPrevPhase;
+
+	/** The number of frequency bins used */
+	protected int bins;
+
+	/** The number of frames seen since init() */
+	protected int frameCount;
+
+	public int getSpectrumType() {
+		return MAGNITUDE_AND_PHASE;
+	} // getSpectrumType()
+
+	public void init(int fftSize) {
+		bins = fftSize / 2 + 1;
+		prevPhase = new double[bins];
+		prevPrevPhase = new double[bins];
+		frameCount = 0;
+	} // init()
+
+	public double detect(double[] magnitude, double[] phase, double frameRMS) {
+		double wpd = 0;
+		if (frameCount >= 2) {
+			for (int i = 0; i < bins; i++) {
+				double pd = phase[i] - 2 * prevPhase[i] + prevPrevPhase[i];
+				wpd += Math.abs(Math.IEEEremainder(pd, 2 * Math.PI)) * magnitude[i];
+			}
+			wpd /= bins * Math.PI;
+		}
+		double[] tmp = prevPrevPhase;
+		prevPrevPhase = prevPhase;
+		prevPhase = tmp;
+		System.arraycopy(phase, 0, prevPhase, 0, bins);
+		frameCount++;
+		return wpd;
+	} // detect()
+
+} // class PhaseDeviationDetector
@@ -0,0 +1,57 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+/** Spectral flux onset detection function, the sum of the increases in
+ *  magnitude of all frequency bins from the previous frame. This is the
+ *  default OnsetDetector of AudioProcessor.
+ */
+public class SpectralFluxDetector implements OnsetDetector {
+
+	/** The magnitude spectrum of the previous frame */
+	protected double[] prevFrame;
+
+	/** The number of frequency bins used */
+	protected int bins;
+
+	public int getSpectrumType() {
+		return MAGNITUDE;
+	} // getSpectrumType()
+
+	public void init(int fftSize) {
+		bins = fftSize / 2 + 1;
+		prevFrame = new double[bins];
+	} // init()
+
+	/** Sums the positive differences d between the frames as (d + |d|) / 2,
+	 *  which is exact and avoids a data-dependent branch in the loop. */
+	public double detect(double[] magnitude, double[] phase, double frameRMS) {
+		double flux = 0;
+		for (int i = 0; i < bins; i++) {
+			double d = magnitude[i] - prevFrame[i];
+			flux += d + Math.abs(d);
+		}
+		System.arraycopy(magnitude, 0, prevFrame, 0, bins);
+		return flux / 2;
+	} // detect()
+
+} // class SpectralFluxDetector
@@ -0,0 +1,106 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+import java.util.ArrayList;
+
+/** Compares the fast tempo estimate (TempoEstimator) with the tempo found
+ *  by beat tracking (BeatTracker) on the same files, e.g.<br>
+ *  <code>java at.ofai.music.beatroot.TempoComparison -tolerance 0.04 *.wav</code><br>
+ *  Both work on the same onset detection function, which is only computed
+ *  once per file. For each file both tempi are printed with their relation:
+ *  <code>same</code> if they differ by at most the relative tolerance
+ *  (default 4%), <code>metrical</code> if their ratio is 2, 3, 3/2 or one of
+ *  the inverses (within the tolerance), <code>different</code> otherwise.
+ *  The last lines show how often each relation occurred, and the mean time
+ *  per file of the onset detection, the beat tracking and the fast estimate.
+ */
+public class TempoComparison {
+
+	/** The tempo ratios counted as metrical level errors */
+	static final double[] RATIOS = {2, 3, 1.5, 1 / 2.0, 1 / 3.0, 1 / 1.5};
+
+	public static void main(String[] args) {
+		double tolerance = 0.04;
+		ArrayList<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-tolerance"))
+				tolerance = Double.parseDouble(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			System.err.println("usage: TempoComparison [-tolerance t] file.wav...");
+			System.exit(-1);
+		}
+		int same = 0;
+		int metrical = 0;
+		int different = 0;
+		double onsetTime = 0;
+		double trackTime = 0;
+		double fastTime = 0;
+		for (String file : files) {
+			long t0 = System.nanoTime();
+			AudioProcessor audioProcessor = new AudioProcessor();
+			audioProcessor.setHeadless(true);
+			audioProcessor.setInputFile(file);
+			audioProcessor.processFile();
+			long t1 = System.nanoTime();
+			double bpm = BeatTrackerBenchmark.trackTempo(audioProcessor, false);
+			long t2 = System.nanoTime();
+			double fastBpm = TempoEstimator.getBPM(audioProcessor.spectralFlux,
+									TempoEstimator.getHopTime(audioProcessor));
+			long t3 = System.nanoTime();
+			onsetTime += (t1 - t0) / 1e6;
+			trackTime += (t2 - t1) / 1e6;
+			fastTime += (t3 - t2) / 1e6;
+			String relation;
+			if (Math.abs(fastBpm / bpm - 1) <= tolerance) {
+				relation = "same";
+				same++;
+			} else if (isMetrical(fastBpm / bpm, tolerance)) {
+				relation = "metrical";
+				metrical++;
+			} else {
+				relation = "different";
+				different++;
+			}
+			System.out.printf("%s: beatroot %.1f fast %.1f %s\n",
+								file, bpm, fastBpm, relation);
+		}
+		int n = files.size();
+		System.out.printf("same %d (%.1f%%), metrical %d (%.1f%%), different %d (%.1f%%)\n",
+				same, 100.0 * same / n, metrical, 100.0 * metrical / n,
+				different, 100.0 * different / n);
+		System.out.printf("onset detection %.1f ms/file, beat tracking %.1f ms/file, fast estimate %.1f ms/file\n",
+				onsetTime / n, trackTime / n, fastTime / n);
+	} // main()
+
+	/** @return true if the ratio is within the tolerance of one of RATIOS */
+	static boolean isMetrical(double ratio, double tolerance) {
+		for (double r : RATIOS)
+			if (Math.abs(ratio / r - 1) <= tolerance)
+				return true;
+		return false;
+	} // isMetrical()
+
+} // class TempoComparison
@@ -0,0 +1,266 @@
+/*  BeatRoot: An interactive beat tracking system
+	Copyright (C) 2001, 2006 by Simon Dixon
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License along
+	with this program (the file gpl.txt); if not, download it from
+	http://www.gnu.org/licenses/gpl.txt or write to the Free Software Foundation, Inc.,
+	51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+/* This file was modified in 2012 by Thomas Friedel */
+
+package at.ofai.music.beatroot;
+
+import java.util.Arrays;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+
+/** Estimates a global tempo directly from the onset detection function
+ *  (<code>AudioProcessor.spectralFlux</code>), without onset picking and
+ *  beat tracking. This is much cheaper than BeatTracker.getBPM(), but only
+ *  gives the tempo, not the beats.
+ *  <p>The onset detection function is reduced to the parts which rise above
+ *  its local average, and its autocorrelation is computed with an FFT. Each
+ *  candidate tempo in the range of Induction.minIBI to Induction.maxIBI is
+ *  scored by a comb filter, the mean autocorrelation at the first
+ *  <code>harmonics</code> multiples of its beat period, weighted by a
+ *  log-Gaussian tempo prior which decides between tempi an octave apart.
+ *  Finally the beat period is refined from the positions of the
+ *  autocorrelation peaks at the multiples.
+ *  <p>Like the beat tracker, the estimator only reports tempi between
+ *  60/Induction.maxIBI and 60/Induction.minIBI, i.e. about 67 to 165 BPM.
+ *  Faster music (e.g. drum and bass at 174 BPM) comes back at half its
+ *  tempo, slower music at double its tempo. Near the ends of the range the
+ *  prior may also pick the other octave, e.g. 80 for 160 BPM.
+ */
+public class TempoEstimator {
+
+	/** The number of multiples of the beat period summed by the comb filter */
+	public static int harmonics = 4;
+
+	/** The spacing of the candidate tempi in BPM */
+	public static double bpmStep = 0.1;
+
+	/** The centre of the tempo prior in BPM */
+	public static double preferredBPM = 120;
+
+	/** The standard deviation of the tempo prior in octaves */
+	public static double priorWidth = 1.0;
+
+	/** The width of the local average subtracted from the onset detection
+	 *  function, in seconds */
+	public static double averageTime = 0.2;
+
+	/** Estimates the tempo of the audio data an AudioProcessor has been set
+	 *  up with, like BeatTracker.getBPM(AudioProcessor).
+	 *  @param audioProcessor The AudioProcessor holding the input.
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found.
+	 */
+	public static double getBPM(AudioProcessor audioProcessor) {
+		audioProcessor.processFile();
+		return getBPM(audioProcessor.spectralFlux, getHopTime(audioProcessor));
+	} // getBPM()
+
+	/** @return The exact time between frames of an AudioProcessor in
+	 *  seconds. <code>hopTime</code> is the nominal value, which is rounded
+	 *  to whole samples (e.g. 221 samples or 10.023ms at 22050Hz).
+	 */
+	public static double getHopTime(AudioProcessor audioProcessor) {
+		return audioProcessor.hopSize / (double) audioProcessor.sampleRate;
+	} // getHopTime()
+
+	/** Estimates the tempo from an onset detection function.
+	 *  @param odf The onset detection function, one value per frame
+	 *  @param hopTime The time between frames in seconds
+	 *  @return The tempo in beats per minute, or NaN if no tempo was found
+	 *  (e.g. if the input is shorter than two beat periods of the slowest
+	 *  tempo, or silent).
+	 */
+	public static double getBPM(double[] odf, double hopTime) {
+		return getBPM(odf, 0, odf.length, hopTime);
+	} // getBPM()
+
+	/** Estimates the tempo from a part of an onset detection function.
+	 *  @param odf The onset detection function, one value per frame
+	 *  @param start The index of the first frame used
+	 *  @param length The number of frames used
+	 *  @param hopTime The time between frames in seconds
+	 *  @return The tempo in beats per minute, between 60/Induction.maxIBI
+	 *  and 60/Induction.minIBI, or NaN if no tempo was found.
+	 */
+	public static double getBPM(double[] odf, int start, int length,
+								double hopTime) {
+		double minBPM = 60 / Induction.maxIBI;
+		double maxBPM = 60 / Induction.minIBI;
+		double maxPeriod = Induction.maxIBI / hopTime;
+		int lags = Math.min((int) Math.ceil(harmonics * maxPeriod) + 2,
+							length / 2);
+		if (lags < maxPeriod + 2)
+			return Double.NaN;
+		double[] acf = autocorrelation(enhance(odf, start, length, hopTime),
+										lags);
+		if (!(acf[0] > 0))
+			return Double.NaN;
+		double bestScore = 0;
+		double bestPeriod = 0;
+		int candidates = (int) ((maxBPM - minBPM) / bpmStep);
+		for (int i = 0; i <= candidates; i++) {
+			double bpm = minBPM + i * bpmStep;
+			double period = 60 / (bpm * hopTime);
+			double score = comb(acf, period);
+			if (score <= 0)
+				continue;
+			double octaves = Math.log(bpm / preferredBPM) / Math.log(2) / priorWidth;
+			score *= Math.exp(-0.5 * octaves * octaves);
+			if (score > bestScore) {
+				bestScore = score;
+				bestPeriod = period;
+			}
+		}
+		if (bestPeriod == 0)
+			return Double.NaN;
+		return 60 / (refine(acf, bestPeriod) * hopTime);
+	} // getBPM()
+
+	/** The confidence of a tempo estimate, whichever way it was found: the
+	 *  comb filter score of its beat period relative to the autocorrelation
+	 *  at lag 0, i.e. how strongly the onsets repeat with this period.
+	 *  @param odf The onset detection function, one value per frame
+	 *  @param hopTime The time between frames in seconds
+	 *  @param bpm The tempo in beats per minute
+	 *  @return The confidence from 0 (no periodicity) to 1, or NaN if the
+	 *  tempo is NaN or the input is too short for a single beat period.
+	 */
+	public static double getConfidence(double[] odf, double hopTime, double bpm) {
+		if (!(bpm > 0))
+			return Double.NaN;
+		double period = 60 / (bpm * hopTime);
+		int lags = Math.min((int) Math.ceil(harmonics * period) + 2,
+							odf.length / 2);
+		if (lags < period + 2)
+			return Double.NaN;
+		double[] acf = autocorrelation(enhance(odf, 0, odf.length, hopTime),
+										lags);
+		if (!(acf[0] > 0))
+			return 0;
+		return Math.max(0, Math.min(1, comb(acf, period) / acf[0]));
+	} // getConfidence()
+
+	/** Half-wave rectifies the onset detection function relative to its
+	 *  local average (see <code>averageTime</code>), so that only the
+	 *  onsets remain, and removes the mean of the result.
+	 *  @return The new array of <code>n</code> values
+	 */
+	protected static double[] enhance(double[] odf, int start, int n,
+										double hopTime) {
+		int w = Math.max((int) Math.round(averageTime / hopTime / 2), 1);
+		double[] sum = new double[n + 1];
+		for (int i = 0; i < n; i++)
+			sum[i+1] = sum[i] + odf[start + i];
+		double[] x = new double[n];
+		double mean = 0;
+		for (int i = 0; i < n; i++) {
+			int lo = Math.max(i - w, 0);
+			int hi = Math.min(i + w + 1, n);
+			double d = odf[start + i] - (sum[hi] - sum[lo]) / (hi - lo);
+			x[i] = d > 0? d: 0;
+			mean += x[i];
+		}
+		mean /= n;
+		for (int i = 0; i < n; i++)
+			x[i] -= mean;
+		return x;
+	} // enhance()
+
+	/** Computes the (unbiased) autocorrelation for lags 0 to lags-1 as the
+	 *  inverse FFT of the power spectrum, zero-padded so that it doesn't
+	 *  wrap around.
+	 *  @param x The input data
+	 *  @param lags The number of lags, at most the length of x
+	 *  @return The autocorrelation, indexed by lag
+	 */
+	protected static double[] autocorrelation(double[] x, int lags) {
+		int n = x.length;
+		int size = 1;
+		while (size < n + lags)
+			size <<= 1;
+		double[] buffer = Arrays.copyOf(x, size);
+		DoubleFFT_1D fft = new DoubleFFT_1D(size);
+		fft.realForward(buffer);
+		buffer[0] *= buffer[0];		// bin 0
+		buffer[1] *= buffer[1];		// bin size/2
+		for (int i = 2; i < size; i += 2) {
+			buffer[i] = buffer[i] * buffer[i] + buffer[i+1] * buffer[i+1];
+			buffer[i+1] = 0;
+		}
+		fft.realInverse(buffer, true);
+		double[] acf = new double[lags];
+		for (int lag = 0; lag < lags; lag++)
+			acf[lag] = buffer[lag] / (n - lag);
+		return acf;
+	} // autocorrelation()
+
+	/** The comb filter: the mean of the (linearly interpolated)
+	 *  autocorrelation at the first <code>harmonics</code> multiples of a
+	 *  beat period, as far as they have been computed.
+	 *  @param acf The autocorrelation
+	 *  @param period The beat period in frames
+	 *  @return The score of the beat period
+	 */
+	protected static double comb(double[] acf, double period) {
+		double sum = 0;
+		int count = 0;
+		for (int k = 1; k <= harmonics; k++) {
+			double lag = k * period;
+			int i = (int) lag;
+			if (i + 1 >= acf.length)
+				break;
+			double f = lag - i;
+			sum += (1 - f) * acf[i] + f * acf[i+1];
+			count++;
+		}
+		return count == 0? 0: sum / count;
+	} // comb()
+
+	/** Refines a beat period by finding the autocorrelation peak next to
+	 *  each multiple of the period, interpolating its position with a
+	 *  parabola, and fitting a period to the peak positions (least squares,
+	 *  through the origin).
+	 *  @param acf The autocorrelation
+	 *  @param period The beat period in frames
+	 *  @return The refined beat period in frames
+	 */
+	protected static double refine(double[] acf, double period) {
+		double sumKL = 0;
+		double sumKK = 0;
+		for (int k = 1; k <= harmonics; k++) {
+			int lag = (int) Math.round(k * period);
+			if (lag + 2 >= acf.length)
+				break;
+			if (acf[lag+1] > acf[lag])
+				lag++;
+			else if (acf[lag-1] > acf[lag])
+				lag--;
+			double a = acf[lag-1];
+			double b = acf[lag];
+			double c = acf[lag+1];
+			double peak = lag;
+			if ((b >= a) && (b >= c) && (a - 2 * b + c < 0))
+				peak += (a - c) / (2 * (a - 2 * b + c));
+			sumKL += k * peak;
+			sumKK += k * k;
+		}
+		return sumKK == 0? period: sumKL / sumKK;
+	} // refine()
+
+} // class TempoEstimator
@@ -120,6 +120,68 @@ public class Peaks {
 		return peaks;
 	} // findPeaks()
 
+	/** Finds the candidates for findPeaks(data, width, threshold, decayRate,
+	 *  isRelative) independently of the threshold, so that several
+	 *  thresholds can be tried without searching the data again. Candidate i
+	 *  is a peak for a given threshold if
+	 *  <code>data[peaks[i]] &gt; base[i] + threshold</code>, where base is
+	 *  the local average if isRelative is set, otherwise 0.
+	 *  @param data input data
+	 *  @param width minimum distance between peaks
+	 *  @param decayRate how quickly previous peaks are forgotten
+	 *  @param isRelative minimum value of peaks is relative to local average
+	 *  @param peaks returns the candidate indexes; peaks are more than width
+	 *  apart, so data.length / (width + 1) + 1 entries are enough
+	 *  @param base returns the threshold base of each candidate
+	 *  @return number of candidates
+	 */
+	public static int findPeakCandidates(double[] data, int width,
+				double decayRate, boolean isRelative, int[] peaks, double[] base) {
+		if (data.length == 0)
+			return 0;
+		int count = 0;
+		int maxp = 0;
+		int mid = 0;
+		int end = data.length;
+		double av = data[0];
+		while (mid < end) {
+			av = decayRate * av + (1 - decayRate) * data[mid];
+			if (av < data[mid])
+				av = data[mid];
+			int i = mid - width;
+			if (i < 0)
+				i = 0;
+			int stop = mid + width + 1;
+			if (stop > data.length)
+				stop = data.length;
+			maxp = i;
+			for (i++; i < stop; i++)
+				if (data[i] > data[maxp])
+					maxp = i;
+			if ((maxp == mid) && (data[mid] >= av)) {	// see overThreshold()
+				double b = 0;
+				if (isRelative) {
+					int iStart = mid - pre * width;
+					if (iStart < 0)
+						iStart = 0;
+					int iStop = mid + post * width;
+					if (iStop > data.length)
+						iStop = data.length;
+					double sum = 0;
+					int n = iStop - iStart;
+					while (iStart < iStop)
+						sum += data[iStart++];
+					b = sum / n;
+				}
+				peaks[count] = mid;
+				base[count] = b;
+				count++;
+			}
+			mid++;
+		}
+		return count;
+	} // findPeakCandidates()
+
 	public static double expDecayWithHold(double av, double decayRate,
 										  double[] data, int start, int stop) {
 		while (start < stop) {